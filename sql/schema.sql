@@ -15,7 +15,50 @@ CREATE TABLE IF NOT EXISTS students (
   data_encrypted BLOB NOT NULL,
   iv VARBINARY(16) NOT NULL,
   meta VARCHAR(255),
-  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+  -- 1: separate AES-CBC name/data ciphertexts under iv; 2: single AES-GCM blob in data_encrypted
+  format_version TINYINT NOT NULL DEFAULT 1,
+  created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  -- Revision of the row's latest write, from change_sequence (see StudentDAO.changesSince)
+  revision BIGINT NOT NULL DEFAULT 0,
+  -- Newest-first listing and scans; id breaks ties between rows created in the same second
+  INDEX idx_students_created_at (created_at, id),
+  INDEX idx_students_revision (revision)
+);
+
+-- Existing databases created before format_version:
+-- ALTER TABLE students ADD COLUMN format_version TINYINT NOT NULL DEFAULT 1 AFTER meta;
+-- Existing databases created before idx_students_created_at:
+-- ALTER TABLE students ADD INDEX idx_students_created_at (created_at, id);
+-- Existing databases created before revision (rows written earlier stay at revision 0):
+-- ALTER TABLE students ADD COLUMN revision BIGINT NOT NULL DEFAULT 0, ADD INDEX idx_students_revision (revision);
+
+-- Source of revisions for the change feed. Writers lock this single row for the rest of
+-- their transaction, so revisions commit in order.
+CREATE TABLE IF NOT EXISTS change_sequence (
+  id TINYINT PRIMARY KEY,
+  revision BIGINT NOT NULL
+);
+INSERT IGNORE INTO change_sequence (id, revision) VALUES (1, 0);
+
+-- Deleted students, under the revision of the deletion, so other nodes can apply them;
+-- pruned after knn-change-retention-seconds
+CREATE TABLE IF NOT EXISTS student_deletions (
+  revision BIGINT PRIMARY KEY,
+  student_id VARCHAR(100) NOT NULL,
+  deleted_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  INDEX idx_student_deletions_deleted_at (deleted_at)
+);
+
+-- Progress of key-rotation jobs (see KeyRotationJob); committed with each page of rows
+CREATE TABLE IF NOT EXISTS key_rotation_checkpoints (
+  job_id VARCHAR(64) PRIMARY KEY,
+  last_id INT NOT NULL DEFAULT 0,
+  rows_rotated INT NOT NULL DEFAULT 0,
+  rows_skipped INT NOT NULL DEFAULT 0,
+  rows_failed INT NOT NULL DEFAULT 0,
+  new_key_hash CHAR(64) NOT NULL,
+  completed BOOLEAN NOT NULL DEFAULT FALSE,
+  updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP
 );
 
 -- sample admin
@@ -0,0 +1,144 @@
+package com.example.encryptedknn.dao;
+
+import com.example.encryptedknn.model.StudentChange;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps this process's caches in step with writes made by other nodes. Every interval it
+// reads the change feed (StudentRepository.changesSince) from where it last stopped and replays
+// each change to the registered StudentChangeListeners, exactly as if the write had been
+// made through this process's DAO. A poll costs one indexed range read per side of the
+// feed, so catching up takes time proportional to the number of changes, not the table.
+//
+// Writes made by this process were already announced when they committed and are
+// skipped. A node that has not polled successfully for longer than the deletion log is
+// kept may have missed deletions; it calls onResync (which should drop whatever the
+// listeners hold), advances the dataset version so no result cached before the missed
+// changes is served again, and continues from the current revision.
+public class ChangeFeedPoller {
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final long DEFAULT_DELETION_RETENTION_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long PRUNE_INTERVAL_MILLIS = 60L * 60 * 1000;
+
+    private final StudentRepository studentDAO;
+    private final long intervalMillis;
+    private final int batchSize;
+    private final long deletionRetentionMillis;
+    private final Runnable onResync;
+
+    private ScheduledExecutorService scheduler;
+    // Only touched on the scheduler thread
+    private long revision = -1;
+    private long lastPollMillis;
+    private long lastPruneMillis;
+    private volatile long changesApplied;
+
+    public ChangeFeedPoller(StudentRepository studentDAO, long intervalMillis, int batchSize,
+                            long deletionRetentionMillis, Runnable onResync) {
+        this.studentDAO = studentDAO;
+        this.intervalMillis = Math.max(intervalMillis, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.deletionRetentionMillis = deletionRetentionMillis;
+        this.onResync = onResync;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        StudentDAO.setTrackLocalRevisions(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "student-change-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        scheduler = null;
+        StudentDAO.setTrackLocalRevisions(false);
+    }
+
+    // Revision this node has caught up to, or -1 before the first successful poll
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    public long getChangesApplied() {
+        return changesApplied;
+    }
+
+    private void poll() {
+        try {
+            long now = System.currentTimeMillis();
+            if (revision < 0 || now - lastPollMillis > deletionRetentionMillis) {
+                resync(now);
+                return;
+            }
+
+            List<StudentChange> changes;
+            do {
+                changes = studentDAO.changesSince(revision, batchSize);
+                if (changes == null) {
+                    // Logged by the DAO; try again next interval from the same revision
+                    return;
+                }
+                for (StudentChange change : changes) {
+                    if (!StudentDAO.isLocalRevision(change.getRevision())) {
+                        if (change.isDeletion()) {
+                            StudentDAO.notifyDeleted(change.getStudentId());
+                        } else {
+                            StudentDAO.notifyUpdated(change.getStudent());
+                        }
+                        changesApplied++;
+                    }
+                    setRevision(change.getRevision());
+                }
+                StudentDAO.forgetLocalRevisions(revision);
+            } while (!changes.isEmpty() && !Thread.currentThread().isInterrupted());
+            lastPollMillis = now;
+
+            if (now - lastPruneMillis > PRUNE_INTERVAL_MILLIS) {
+                lastPruneMillis = now;
+                studentDAO.pruneDeletions(deletionRetentionMillis);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule
+            e.printStackTrace();
+        }
+    }
+
+    // Start following the feed from its current position, dropping anything older
+    private void resync(long now) {
+        long current = studentDAO.currentRevision();
+        if (current < 0) {
+            return;
+        }
+        if (revision >= 0) {
+            System.err.println("Change feed fell more than " + deletionRetentionMillis
+                    + " ms behind at revision " + revision + "; resynchronizing at " + current);
+            if (onResync != null) {
+                onResync.run();
+            }
+            // After the listeners have dropped their data, so a query that sees the new
+            // version also sees the reloaded training sets
+            StudentDAO.advanceDatasetVersion();
+        }
+        setRevision(current);
+        StudentDAO.forgetLocalRevisions(current);
+        lastPollMillis = now;
+    }
+
+    private synchronized void setRevision(long revision) {
+        this.revision = revision;
+    }
+}
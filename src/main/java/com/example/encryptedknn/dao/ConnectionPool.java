@@ -0,0 +1,433 @@
+package com.example.encryptedknn.dao;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Small built-in JDBC pool, used when no container DataSource is configured.
+//
+// Up to maxSize physical connections are shared; getConnection() waits up to the
+// connection timeout for one to be free. Borrowed connections are proxies whose close()
+// hands the physical connection back, with auto-commit restored. An idle connection
+// that has not been used for a moment is checked with isValid() before it is handed
+// out, and a connection that failed with a connection-level error is discarded.
+//
+// A housekeeping thread keeps minIdle connections open, closes extra connections idle
+// for longer than the idle timeout, and reports connections borrowed for longer than
+// the leak-detection timeout, with the stack that borrowed them.
+public class ConnectionPool implements DataSource {
+    public static final int DEFAULT_MIN_IDLE = 2;
+    public static final int DEFAULT_MAX_SIZE = 10;
+    public static final long DEFAULT_CONNECTION_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_VALIDATION_TIMEOUT_SECONDS = 2;
+    public static final long DEFAULT_LEAK_DETECTION_MILLIS = 60_000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 600_000;
+
+    // Connections used this recently are handed out without a validation round trip
+    private static final long VALIDATION_SKIP_MILLIS = 500;
+    private static final long HOUSEKEEPING_MILLIS = 10_000;
+
+    // Point-in-time pool counters
+    public static class Metrics {
+        public final int active;
+        public final int idle;
+        public final int maxSize;
+        public final int waiting;
+        public final long borrows;
+        public final long timeouts;
+        public final long created;
+        public final long leaksDetected;
+        public final long totalWaitMillis;
+        public final long maxWaitMillis;
+
+        Metrics(int active, int idle, int maxSize, int waiting, long borrows, long timeouts, long created,
+                long leaksDetected, long totalWaitMillis, long maxWaitMillis) {
+            this.active = active;
+            this.idle = idle;
+            this.maxSize = maxSize;
+            this.waiting = waiting;
+            this.borrows = borrows;
+            this.timeouts = timeouts;
+            this.created = created;
+            this.leaksDetected = leaksDetected;
+            this.totalWaitMillis = totalWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        // Over every getConnection() call, including those that timed out
+        public double getAverageWaitMillis() {
+            long attempts = borrows + timeouts;
+            return attempts == 0 ? 0 : (double) totalWaitMillis / attempts;
+        }
+    }
+
+    private static class PooledConnection {
+        final Connection physical;
+        volatile long lastUsed;
+        volatile long borrowedAt;
+        volatile Exception borrowedBy;
+        volatile boolean leakReported;
+        volatile boolean broken;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private final String url;
+    private final Properties info;
+    private final int minIdle;
+    private final int maxSize;
+    private final long connectionTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final long leakDetectionMillis;
+    private final long idleTimeoutMillis;
+
+    // One permit per connection that may be borrowed
+    private final Semaphore permits;
+    // Most recently returned last, so the warmest connection is reused first
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong leaksDetected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private volatile boolean closed;
+
+    // info holds the driver properties (user, password and any driver settings)
+    public ConnectionPool(String url, Properties info, int minIdle, int maxSize, long connectionTimeoutMillis,
+                          int validationTimeoutSeconds, long leakDetectionMillis, long idleTimeoutMillis) {
+        this.url = url;
+        this.info = info;
+        this.maxSize = Math.max(maxSize, 1);
+        this.minIdle = Math.min(Math.max(minIdle, 0), this.maxSize);
+        this.connectionTimeoutMillis = Math.max(connectionTimeoutMillis, 0);
+        this.validationTimeoutSeconds = Math.max(validationTimeoutSeconds, 1);
+        this.leakDetectionMillis = leakDetectionMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.permits = new Semaphore(this.maxSize, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "db-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The first run opens the minimum idle connections; leaks are looked for at least
+        // twice per leak-detection timeout
+        long interval = leakDetectionMillis > 0 ? Math.min(HOUSEKEEPING_MILLIS, Math.max(leakDetectionMillis / 2, 100))
+                : HOUSEKEEPING_MILLIS;
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+        boolean acquired;
+        waiting.incrementAndGet();
+        try {
+            acquired = permits.tryAcquire(connectionTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (!acquired) {
+            timeouts.incrementAndGet();
+            throw new SQLTransientConnectionException("No database connection available within "
+                    + connectionTimeoutMillis + " ms (" + borrowed.size() + " of " + maxSize + " in use)");
+        }
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = open();
+            }
+            pooled.borrowedAt = System.currentTimeMillis();
+            pooled.borrowedBy = leakDetectionMillis > 0 ? new Exception("Connection borrowed here") : null;
+            pooled.leakReported = false;
+            borrowed.add(pooled);
+            borrows.incrementAndGet();
+            return wrap(pooled);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // An idle connection that still works, or null if there is none
+    private PooledConnection takeIdle() {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (idle) {
+                pooled = idle.pollLast();
+            }
+            if (pooled == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - pooled.lastUsed < VALIDATION_SKIP_MILLIS || isValid(pooled)) {
+                return pooled;
+            }
+            closeQuietly(pooled);
+        }
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        PooledConnection pooled = new PooledConnection(DriverManager.getConnection(url, info));
+        created.incrementAndGet();
+        return pooled;
+    }
+
+    // Called once per borrowed connection, from the proxy's close()
+    private void release(PooledConnection pooled) {
+        try {
+            borrowed.remove(pooled);
+            if (pooled.leakReported) {
+                System.err.println("Connection reported as leaked was returned after "
+                        + (System.currentTimeMillis() - pooled.borrowedAt) + " ms");
+            }
+            if (closed || pooled.broken || !reset(pooled)) {
+                closeQuietly(pooled);
+                return;
+            }
+            pooled.lastUsed = System.currentTimeMillis();
+            pooled.borrowedBy = null;
+            synchronized (idle) {
+                idle.addLast(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    // Undo what a borrower may have left behind; false if the connection is unusable
+    private static boolean reset(PooledConnection pooled) {
+        try {
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            return !pooled.physical.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void housekeep() {
+        try {
+            long now = System.currentTimeMillis();
+            if (leakDetectionMillis > 0) {
+                for (PooledConnection pooled : borrowed) {
+                    if (!pooled.leakReported && now - pooled.borrowedAt > leakDetectionMillis) {
+                        pooled.leakReported = true;
+                        leaksDetected.incrementAndGet();
+                        System.err.println("Possible connection leak: connection borrowed "
+                                + (now - pooled.borrowedAt) + " ms ago has not been returned");
+                        Exception borrowedBy = pooled.borrowedBy;
+                        if (borrowedBy != null) {
+                            borrowedBy.printStackTrace();
+                        }
+                    }
+                }
+            }
+
+            List<PooledConnection> expired = new ArrayList<>();
+            int missing;
+            synchronized (idle) {
+                Iterator<PooledConnection> it = idle.iterator();
+                while (it.hasNext() && idle.size() > minIdle) {
+                    PooledConnection pooled = it.next();
+                    if (now - pooled.lastUsed > idleTimeoutMillis) {
+                        it.remove();
+                        expired.add(pooled);
+                    }
+                }
+                missing = minIdle - idle.size() - borrowed.size();
+            }
+            for (PooledConnection pooled : expired) {
+                closeQuietly(pooled);
+            }
+            for (int i = 0; i < missing && !closed; i++) {
+                PooledConnection pooled = open();
+                synchronized (idle) {
+                    idle.addFirst(pooled);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Could not open idle database connection: " + e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Metrics getMetrics() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        return new Metrics(borrowed.size(), idleCount, maxSize, waiting.get(), borrows.get(), timeouts.get(),
+                created.get(), leaksDetected.get(), TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get()),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+    }
+
+    // Close idle connections now; borrowed ones are closed when they are returned
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        List<PooledConnection> toClose;
+        synchronized (idle) {
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for (PooledConnection pooled : toClose) {
+            closeQuietly(pooled);
+        }
+    }
+
+    private static void closeQuietly(PooledConnection pooled) {
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            // Already unusable
+        }
+    }
+
+    private Connection wrap(PooledConnection pooled) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new ConnectionHandler(pooled));
+    }
+
+    // Borrowed connection: close() returns it, and it cannot be used afterwards
+    private class ConnectionHandler implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned;
+
+        ConnectionHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooled.physical;
+                case "abort":
+                    pooled.broken = true;
+                    break;
+                default:
+                    break;
+            }
+            if (returned) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            try {
+                return method.invoke(pooled.physical, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                // SQLState class 08 is a connection exception; do not reuse the connection
+                if (cause instanceof SQLException) {
+                    String state = ((SQLException) cause).getSQLState();
+                    if (state != null && state.startsWith("08")) {
+                        pooled.broken = true;
+                    }
+                }
+                throw cause;
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pooled connections use the configured credentials");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.encryptedknn.dao;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.function.Function;
+
+// The one place that knows how to reach the database. Everything that needs a
+// connection asks dataSource(), which is either a container DataSource looked up in JNDI
+// (db-jndi-name) or the built-in ConnectionPool. Student records are read and written
+// through studentRepository(): the students table (student-store=mysql), or local
+// segment files in student-store-dir (student-store=segment). Accounts always live in
+// the users table, so even a segment store needs MySQL for registration and login; the
+// pool then opens connections only when those ask for one.
+//
+// In the web application DatabaseContextListener configures it from the context-params
+// in web.xml. Standalone processes (ShardWorker) read the same names from
+// system properties, e.g. -Ddb-url=jdbc:mysql://db:3306/encrypted_knn.
+public final class DatabaseConfig {
+    public static final String DEFAULT_URL = "jdbc:mysql://localhost:3306/encrypted_knn";
+    public static final String DEFAULT_USER = "root";
+    public static final String DEFAULT_PASSWORD = "";
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    public static final String STORE_MYSQL = "mysql";
+    public static final String STORE_SEGMENT = "segment";
+    public static final String DEFAULT_STORE_DIR =
+            System.getProperty("user.home") + File.separator + "encrypted-knn" + File.separator + "students";
+
+    private static volatile DataSource dataSource;
+    // Null when the DataSource comes from JNDI, whose pool reports its own metrics
+    private static ConnectionPool pool;
+    // JNDI name of the container DataSource in use, or null for the built-in pool
+    private static String jndiName;
+    private static volatile StudentRepository studentRepository;
+    // Set when student-store=segment, so shutdown() can close it
+    private static SegmentStudentStore segmentStore;
+
+    private DatabaseConfig() {
+    }
+
+    // Replace the DataSource and student repository using the named settings; missing ones
+    // take the defaults. Throws IllegalStateException if the segment store cannot be opened.
+    public static synchronized void configure(Function<String, String> settings) {
+        shutdown();
+        boolean segment = STORE_SEGMENT.equals(setting(settings, "student-store", STORE_MYSQL));
+        configureDataSource(settings, segment);
+        studentRepository = createStudentRepository(settings);
+    }
+
+    // With a segment store only accounts use the database, so db-pool-min-idle is ignored
+    // and no idle connections are kept open (or attempted while MySQL is down)
+    private static void configureDataSource(Function<String, String> settings, boolean segment) {
+        String jndiName = setting(settings, "db-jndi-name", "");
+        if (!jndiName.isEmpty()) {
+            try {
+                dataSource = (DataSource) new InitialContext().lookup(jndiName);
+                DatabaseConfig.jndiName = jndiName;
+                return;
+            } catch (NamingException | ClassCastException e) {
+                System.err.println("No DataSource at " + jndiName + " (" + e.getMessage() + "), using the built-in pool");
+            }
+        }
+
+        Properties info = new Properties();
+        info.setProperty("user", setting(settings, "db-user", DEFAULT_USER));
+        // Not trimmed; a password may end in spaces
+        String password = settings.apply("db-password");
+        info.setProperty("password", password != null ? password : DEFAULT_PASSWORD);
+        // Cursor fetch only applies to statements given a fetch size (the streaming scans),
+        // and batch rewriting only to executeBatch()
+        info.setProperty("useCursorFetch", "true");
+        info.setProperty("rewriteBatchedStatements", "true");
+        // Pooled connections live long enough for a per-connection statement cache to pay off
+        int statementCacheSize = intSetting(settings, "db-statement-cache-size", DEFAULT_STATEMENT_CACHE_SIZE);
+        if (statementCacheSize > 0) {
+            info.setProperty("useServerPrepStmts", "true");
+            info.setProperty("cachePrepStmts", "true");
+            info.setProperty("prepStmtCacheSize", String.valueOf(statementCacheSize));
+            info.setProperty("prepStmtCacheSqlLimit", "2048");
+        }
+
+        pool = new ConnectionPool(
+                setting(settings, "db-url", DEFAULT_URL),
+                info,
+                segment ? 0 : intSetting(settings, "db-pool-min-idle", ConnectionPool.DEFAULT_MIN_IDLE),
+                intSetting(settings, "db-pool-max-size", ConnectionPool.DEFAULT_MAX_SIZE),
+                longSetting(settings, "db-pool-connection-timeout-ms", ConnectionPool.DEFAULT_CONNECTION_TIMEOUT_MILLIS),
+                intSetting(settings, "db-pool-validation-timeout-seconds", ConnectionPool.DEFAULT_VALIDATION_TIMEOUT_SECONDS),
+                longSetting(settings, "db-pool-leak-detection-ms", ConnectionPool.DEFAULT_LEAK_DETECTION_MILLIS),
+                longSetting(settings, "db-pool-idle-timeout-ms", ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS));
+        dataSource = pool;
+    }
+
+    // The users table stays in MySQL either way
+    private static StudentRepository createStudentRepository(Function<String, String> settings) {
+        String store = setting(settings, "student-store", STORE_MYSQL);
+        if (STORE_SEGMENT.equals(store)) {
+            File directory = new File(setting(settings, "student-store-dir", DEFAULT_STORE_DIR));
+            try {
+                segmentStore = SegmentStudentStore.open(directory,
+                        intSetting(settings, "student-store-segment-bytes", SegmentStudentStore.DEFAULT_SEGMENT_BYTES),
+                        doubleSetting(settings, "student-store-compaction-ratio",
+                                SegmentStudentStore.DEFAULT_COMPACTION_GARBAGE_RATIO));
+            } catch (IOException | IllegalArgumentException e) {
+                // Falling back to MySQL would hide the local records, so refuse to start
+                throw new IllegalStateException("Cannot open the student store in " + directory, e);
+            }
+            System.err.println("Using the student store in " + directory);
+            return segmentStore;
+        }
+        if (!STORE_MYSQL.equals(store)) {
+            System.err.println("Invalid value for student-store: " + store + ", using " + STORE_MYSQL);
+        }
+        return new StudentDAO();
+    }
+
+    // Configured from system properties on first use if nothing configured it before.
+    // Called for every connection, so the common path takes no lock.
+    public static DataSource dataSource() {
+        DataSource current = dataSource;
+        if (current != null) {
+            return current;
+        }
+        synchronized (DatabaseConfig.class) {
+            if (dataSource == null) {
+                configure(System::getProperty);
+            }
+            return dataSource;
+        }
+    }
+
+    // Configured the same way as dataSource()
+    public static StudentRepository studentRepository() {
+        StudentRepository current = studentRepository;
+        if (current != null) {
+            return current;
+        }
+        synchronized (DatabaseConfig.class) {
+            if (studentRepository == null) {
+                configure(System::getProperty);
+            }
+            return studentRepository;
+        }
+    }
+
+    // Built-in pool counters, or null when a JNDI DataSource is in use or none was created
+    public static synchronized ConnectionPool.Metrics poolMetrics() {
+        return pool != null ? pool.getMetrics() : null;
+    }
+
+    // Name the container DataSource was looked up under, or null when the built-in pool is in use
+    public static synchronized String jndiName() {
+        return jndiName;
+    }
+
+    // Close the built-in pool and the segment store; a JNDI DataSource belongs to the container
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.close();
+        }
+        if (segmentStore != null) {
+            segmentStore.close();
+        }
+        pool = null;
+        jndiName = null;
+        dataSource = null;
+        segmentStore = null;
+        studentRepository = null;
+    }
+
+    private static String setting(Function<String, String> settings, String name, String defaultValue) {
+        String value = settings.apply(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private static int intSetting(Function<String, String> settings, String name, int defaultValue) {
+        return (int) longSetting(settings, name, defaultValue);
+    }
+
+    private static double doubleSetting(Function<String, String> settings, String name, double defaultValue) {
+        String value = setting(settings, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static long longSetting(Function<String, String> settings, String name, long defaultValue) {
+        String value = setting(settings, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
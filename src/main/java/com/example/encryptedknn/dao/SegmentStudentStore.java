@@ -0,0 +1,1340 @@
+package com.example.encryptedknn.dao;
+
+import com.example.encryptedknn.model.RotationCheckpoint;
+import com.example.encryptedknn.model.Student;
+import com.example.encryptedknn.model.StudentChange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// Student records in local segment files instead of MySQL, for single-node deployments
+// without a database server. Holds the same encrypted columns as the students table.
+//
+// Segments are fixed-size, memory-mapped files that are only ever appended to. Every
+// write appends one frame (length, CRC32, entries) to the active segment and forces it
+// to disk before returning, so a committed write survives a crash, and a frame torn by
+// a crash fails its checksum and is discarded on the next open. A multi-row write such
+// as a key-rotation page is one frame, so it commits as a whole.
+//
+// Which entry holds the current copy of each student is kept in memory, sorted the ways
+// the repository is read, and saved to an index file on close, after compaction and
+// after every segment's worth of writes. Opening loads the index and replays only what
+// was appended after it was saved; without a usable index every segment is replayed.
+// Entries carry their revision, so replay does not depend on the order of segments.
+//
+// Reads copy fields straight out of the mappings. A background thread compacts the
+// store once more than the configured share of it is superseded: live entries are
+// copied into new segments without blocking writers, and the old files are deleted.
+public class SegmentStudentStore implements StudentRepository, Closeable {
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_GARBAGE_RATIO = 0.5;
+    private static final long MAINTENANCE_MILLIS = 10_000;
+
+    private static final int SEGMENT_MAGIC = 0x4b4e4e53;
+    private static final int INDEX_MAGIC = 0x4b4e4e49;
+    private static final int FORMAT_VERSION = 1;
+    // Magic and format version
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    // Length of the entries that follow, and their CRC32
+    private static final int FRAME_HEADER_BYTES = 8;
+    // Entry length and type
+    private static final int ENTRY_HEADER_BYTES = 5;
+    // Compaction copies live entries into frames of about this size
+    private static final int COMPACTION_FRAME_BYTES = 1024 * 1024;
+
+    private static final byte ENTRY_STUDENT = 1;
+    private static final byte ENTRY_DELETION = 2;
+    private static final byte ENTRY_CHECKPOINT = 3;
+    // Revision, id and checkpoint version counters, written by compaction so they survive
+    // the entries that last raised them
+    private static final byte ENTRY_SEQUENCE = 4;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_FILE = "index.dat";
+    private static final String LOCK_FILE = "lock";
+
+    private static final Comparator<Location> NEWEST_FIRST = (a, b) -> a.timeMillis != b.timeMillis
+            ? Long.compare(b.timeMillis, a.timeMillis) : Integer.compare(b.id, a.id);
+
+    private static class Segment {
+        final long number;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // Bytes in use, header included; the rest of the file is zeros
+        int end;
+
+        Segment(long number, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    // Where the current copy of a record is, and the fields the in-memory indexes sort on.
+    // key is the student ID, or the job ID of a checkpoint; revision is a checkpoint's
+    // version; timeMillis is a student's creation time or a deletion's time.
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+        final String key;
+        final int id;
+        final long revision;
+        final long timeMillis;
+
+        Location(Segment segment, int offset, int length, String key, int id, long revision, long timeMillis) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.key = key;
+            this.id = id;
+            this.revision = revision;
+            this.timeMillis = timeMillis;
+        }
+
+        Location movedTo(Segment segment, int offset) {
+            return new Location(segment, offset, length, key, id, revision, timeMillis);
+        }
+    }
+
+    // Columns a read needs, like the column lists of StudentDAO's queries
+    private enum Fields { TRAINING, LISTING, CHANGE, FULL }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final double compactionGarbageRatio;
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private final AtomicLong nextSegmentNumber = new AtomicLong(1);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService maintenance;
+
+    // Guarded by lock
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private final Map<String, Location> byStudentId = new HashMap<>();
+    private final TreeMap<Integer, Location> byId = new TreeMap<>();
+    private final TreeMap<Long, Location> byRevision = new TreeMap<>();
+    private final TreeSet<Location> newestFirst = new TreeSet<>(NEWEST_FIRST);
+    private final TreeMap<Long, Location> deletions = new TreeMap<>();
+    private final Map<String, Location> checkpoints = new HashMap<>();
+    private long lastRevision;
+    private int lastId;
+    private long lastCheckpointVersion;
+    // Frame bytes in all segments, and bytes of the entries still referenced
+    private long appendedBytes;
+    private long liveBytes;
+    private long appendedSinceIndex;
+    private boolean closed;
+
+    private SegmentStudentStore(File directory, int segmentBytes, double compactionGarbageRatio) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.compactionGarbageRatio = compactionGarbageRatio;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException(directory + " is already open in another store");
+        }
+        fileLock = acquired;
+
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            releaseFiles();
+            throw e;
+        }
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "student-store-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_MILLIS, MAINTENANCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Open the store in directory, creating it if needed. One store per directory; a
+    // second open, from this process or another, fails until the first is closed.
+    public static SegmentStudentStore open(File directory, int segmentBytes, double compactionGarbageRatio)
+            throws IOException {
+        if (segmentBytes < 64 * 1024) {
+            throw new IllegalArgumentException("Segments must be at least 64KB");
+        }
+        return new SegmentStudentStore(directory, segmentBytes, compactionGarbageRatio);
+    }
+
+    // Save the index, so the next open does not replay the segments, and release the directory
+    @Override
+    public void close() {
+        maintenance.shutdownNow();
+        try {
+            maintenance.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                writeIndex();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            closed = true;
+            releaseFiles();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Mappings stay valid after their channels close, so reads already under way finish
+    private void releaseFiles() {
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            fileLock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean insertStudent(Student student) {
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            if (byStudentId.containsKey(student.getStudentId())) {
+                System.err.println("Student " + student.getStudentId() + " already exists");
+                return false;
+            }
+            long revision = lastRevision + 1;
+            int id = lastId + 1;
+            byte[] entry = studentEntry(student, student.getStudentId(), revision, id, now, student.getMeta());
+            int offset = append(Collections.singletonList(entry));
+            putStudent(new Location(active, offset, entry.length, student.getStudentId(), id, revision, now));
+            lastRevision = revision;
+            lastId = id;
+            student.setId(id);
+            student.setCreatedAt(new Timestamp(now));
+            student.setRevision(revision);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        StudentDAO.notifyInserted(student);
+        return true;
+    }
+
+    @Override
+    public Student getStudentByStudentId(String studentId) {
+        lock.readLock().lock();
+        try {
+            Location location = byStudentId.get(studentId);
+            return location != null ? readStudent(location, Fields.FULL) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Student> getTrainingRowsByStudentIds(List<String> studentIds) {
+        List<Student> students = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String studentId : studentIds) {
+                Location location = byStudentId.get(studentId);
+                if (location != null) {
+                    students.add(readStudent(location, Fields.TRAINING));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return students;
+    }
+
+    @Override
+    public List<Student> getAllStudents() {
+        List<Student> students = new ArrayList<>();
+        streamStudents(0, students::add);
+        return students;
+    }
+
+    @Override
+    public List<Student> listStudents(Timestamp afterCreatedAt, int afterId, int limit) {
+        List<Student> students = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Set<Location> page = afterCreatedAt == null ? newestFirst
+                    : newestFirst.tailSet(new Location(null, 0, 0, null, afterId, 0, afterCreatedAt.getTime()), false);
+            for (Location location : page) {
+                if (students.size() >= limit) {
+                    break;
+                }
+                students.add(readStudent(location, Fields.LISTING));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return students;
+    }
+
+    @Override
+    public int countStudents() {
+        lock.readLock().lock();
+        try {
+            return byStudentId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // fetchSize does not apply; rows are read from the mappings as the consumer asks
+    @Override
+    public boolean streamTrainingRows(int fetchSize, Consumer<Student> consumer) {
+        return stream(Fields.TRAINING, null, consumer);
+    }
+
+    // Other shards' records are skipped by their index entry, without reading them
+    @Override
+    public boolean streamTrainingRows(int fetchSize, int shardIndex, int shardCount, Consumer<Student> consumer) {
+        return stream(Fields.TRAINING, studentId -> shardOf(studentId, shardCount) == shardIndex, consumer);
+    }
+
+    @Override
+    public boolean streamStudents(int fetchSize, Consumer<Student> consumer) {
+        return stream(Fields.FULL, null, consumer);
+    }
+
+    // The scan runs over a snapshot of the locations without holding the lock, so it sees
+    // the table as of its start and does not hold up writes. Segments compacted away
+    // meanwhile stay mapped until the scan lets go of them.
+    private boolean stream(Fields fields, Predicate<String> include, Consumer<Student> consumer) {
+        List<Location> locations;
+        lock.readLock().lock();
+        try {
+            locations = new ArrayList<>(newestFirst);
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Location location : locations) {
+            if (include == null || include.test(location.key)) {
+                consumer.accept(readStudent(location, fields));
+            }
+        }
+        return true;
+    }
+
+    // Same assignment as ShardSpec.shardOf
+    private static int shardOf(String studentId, int shardCount) {
+        CRC32 crc = new CRC32();
+        crc.update(studentId.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % shardCount);
+    }
+
+    @Override
+    public List<Student> getStudentsAfterId(int afterId, int limit) {
+        List<Student> students = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Location location : byId.tailMap(afterId, false).values()) {
+                if (students.size() >= limit) {
+                    break;
+                }
+                students.add(readStudent(location, Fields.FULL));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return students;
+    }
+
+    @Override
+    public RotationCheckpoint getRotationCheckpoint(String jobId) {
+        lock.readLock().lock();
+        try {
+            Location location = checkpoints.get(jobId);
+            return location != null ? readCheckpoint(location) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The rows and the checkpoint are appended as one frame
+    @Override
+    public boolean[] rotateStudents(List<Student> rotated, List<byte[]> previousData, RotationCheckpoint next) {
+        boolean[] written = new boolean[rotated.size()];
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            List<byte[]> entries = new ArrayList<>();
+            List<Location> current = new ArrayList<>();
+            long revision = lastRevision;
+            int unchanged = 0;
+            for (int i = 0; i < rotated.size(); i++) {
+                Student student = rotated.get(i);
+                Location location = byId.get(student.getId());
+                Student stored = location != null ? readStudent(location, Fields.FULL) : null;
+                if (stored == null || !Arrays.equals(stored.getDataEncrypted(), previousData.get(i))) {
+                    unchanged++;
+                    continue;
+                }
+                // Like the UPDATE in StudentDAO, the row keeps its student ID, meta and creation time
+                student.setRevision(++revision);
+                entries.add(studentEntry(student, stored.getStudentId(), revision, location.id,
+                        location.timeMillis, stored.getMeta()));
+                current.add(location);
+                written[i] = true;
+            }
+            next.setRowsRotated(next.getRowsRotated() - unchanged);
+            next.setRowsSkipped(next.getRowsSkipped() + unchanged);
+            next.setUpdatedAt(new Timestamp(now));
+            long checkpointVersion = lastCheckpointVersion + 1;
+            entries.add(checkpointEntry(next, checkpointVersion));
+
+            int offset = append(entries);
+            for (int i = 0; i < current.size(); i++) {
+                Location location = current.get(i);
+                putStudent(new Location(active, offset, entries.get(i).length, location.key, location.id,
+                        lastRevision + i + 1, location.timeMillis));
+                offset += entries.get(i).length;
+            }
+            int checkpointLength = entries.get(entries.size() - 1).length;
+            Location previous = checkpoints.put(next.getJobId(),
+                    new Location(active, offset, checkpointLength, next.getJobId(), 0, checkpointVersion, now));
+            liveBytes += checkpointLength - (previous != null ? previous.length : 0);
+            lastRevision = revision;
+            lastCheckpointVersion = checkpointVersion;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (int i = 0; i < written.length; i++) {
+            if (written[i]) {
+                StudentDAO.notifyUpdated(rotated.get(i));
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public long currentRevision() {
+        lock.readLock().lock();
+        try {
+            return lastRevision;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<StudentChange> changesSince(long revision, int limit) {
+        List<StudentChange> changes = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Iterator<Location> rows = byRevision.tailMap(revision, false).values().iterator();
+            Iterator<Location> deleted = deletions.tailMap(revision, false).values().iterator();
+            Location row = rows.hasNext() ? rows.next() : null;
+            Location deletion = deleted.hasNext() ? deleted.next() : null;
+            while (changes.size() < limit && (row != null || deletion != null)) {
+                if (deletion == null || (row != null && row.revision < deletion.revision)) {
+                    changes.add(new StudentChange(row.revision, row.key, readStudent(row, Fields.CHANGE)));
+                    row = rows.hasNext() ? rows.next() : null;
+                } else {
+                    changes.add(new StudentChange(deletion.revision, deletion.key, null));
+                    deletion = deleted.hasNext() ? deleted.next() : null;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return changes;
+    }
+
+    // The entries stay on disk until the next compaction
+    @Override
+    public int pruneDeletions(long olderThanMillis) {
+        long cutoff = System.currentTimeMillis() - olderThanMillis;
+        int pruned = 0;
+        lock.writeLock().lock();
+        try {
+            Iterator<Location> it = deletions.values().iterator();
+            while (it.hasNext()) {
+                Location deletion = it.next();
+                if (deletion.timeMillis < cutoff) {
+                    it.remove();
+                    liveBytes -= deletion.length;
+                    pruned++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return pruned;
+    }
+
+    @Override
+    public boolean updateStudent(Student student) {
+        lock.writeLock().lock();
+        try {
+            Location location = byStudentId.get(student.getStudentId());
+            if (location == null) {
+                return false;
+            }
+            long revision = lastRevision + 1;
+            byte[] entry = studentEntry(student, student.getStudentId(), revision, location.id,
+                    location.timeMillis, student.getMeta());
+            int offset = append(Collections.singletonList(entry));
+            putStudent(new Location(active, offset, entry.length, location.key, location.id, revision,
+                    location.timeMillis));
+            lastRevision = revision;
+            student.setRevision(revision);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        StudentDAO.notifyUpdated(student);
+        return true;
+    }
+
+    @Override
+    public boolean deleteStudent(String studentId) {
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            if (!byStudentId.containsKey(studentId)) {
+                return false;
+            }
+            long revision = lastRevision + 1;
+            byte[] entry = deletionEntry(studentId, revision, now);
+            int offset = append(Collections.singletonList(entry));
+            removeStudent(studentId);
+            deletions.put(revision, new Location(active, offset, entry.length, studentId, 0, revision, now));
+            liveBytes += entry.length;
+            lastRevision = revision;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        StudentDAO.notifyDeleted(studentId);
+        return true;
+    }
+
+    @Override
+    public boolean studentExists(String studentId) {
+        lock.readLock().lock();
+        try {
+            return byStudentId.containsKey(studentId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Caller holds the write lock
+    private void putStudent(Location location) {
+        removeStudent(location.key);
+        byStudentId.put(location.key, location);
+        byId.put(location.id, location);
+        byRevision.put(location.revision, location);
+        newestFirst.add(location);
+        liveBytes += location.length;
+    }
+
+    private void removeStudent(String studentId) {
+        Location old = byStudentId.remove(studentId);
+        if (old != null) {
+            byId.remove(old.id);
+            byRevision.remove(old.revision);
+            newestFirst.remove(old);
+            liveBytes -= old.length;
+        }
+    }
+
+    // Append the entries to the active segment as one frame and force it to disk; the
+    // offset of the first entry. Caller holds the write lock.
+    private int append(List<byte[]> entries) throws IOException {
+        if (closed) {
+            throw new IOException("Student store " + directory + " is closed");
+        }
+        int length = 0;
+        for (byte[] entry : entries) {
+            length += entry.length;
+        }
+        if (FRAME_HEADER_BYTES + length > segmentBytes - SEGMENT_HEADER_BYTES) {
+            throw new IOException("A write of " + length + " bytes does not fit in a segment");
+        }
+        if (active.end + FRAME_HEADER_BYTES + length > active.buffer.capacity()) {
+            active = createSegment();
+            segments.add(active);
+        }
+
+        int position = active.end;
+        ByteBuffer frame = slice(active.buffer, position + FRAME_HEADER_BYTES, length);
+        CRC32 crc = new CRC32();
+        for (byte[] entry : entries) {
+            frame.put(entry);
+            crc.update(entry);
+        }
+        active.buffer.putInt(position, length);
+        active.buffer.putInt(position + 4, (int) crc.getValue());
+        active.buffer.force();
+
+        active.end = position + FRAME_HEADER_BYTES + length;
+        appendedBytes += FRAME_HEADER_BYTES + length;
+        appendedSinceIndex += FRAME_HEADER_BYTES + length;
+        return position + FRAME_HEADER_BYTES;
+    }
+
+    private Segment createSegment() throws IOException {
+        long number = nextSegmentNumber.getAndIncrement();
+        File file = new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            buffer.putInt(0, SEGMENT_MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.force();
+            syncDirectory();
+            Segment segment = new Segment(number, file, channel, buffer);
+            segment.end = SEGMENT_HEADER_BYTES;
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private Segment openSegment(long number, File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            if (channel.size() < SEGMENT_HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a segment file");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.getInt(0) == 0 && buffer.getInt(4) == 0) {
+                // Created just before a crash, before its header reached the disk
+                buffer.putInt(0, SEGMENT_MAGIC);
+                buffer.putInt(4, FORMAT_VERSION);
+                buffer.force();
+            } else if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException(file + " is not a segment file of this version");
+            }
+            Segment segment = new Segment(number, file, channel, buffer);
+            segment.end = SEGMENT_HEADER_BYTES;
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        TreeMap<Long, Segment> byNumber = new TreeMap<>();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            long number;
+            try {
+                number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = openSegment(number, file);
+            segments.add(segment);
+            byNumber.put(number, segment);
+        }
+
+        Map<Long, Integer> indexedEnds = readIndex(byNumber);
+        Map<String, Long> deleted = new HashMap<>();
+        for (Location deletion : deletions.values()) {
+            deleted.merge(deletion.key, deletion.revision, Math::max);
+        }
+        for (Segment segment : byNumber.values()) {
+            Integer indexedEnd = indexedEnds != null ? indexedEnds.get(segment.number) : null;
+            segment.end = replay(segment, indexedEnd != null ? indexedEnd : SEGMENT_HEADER_BYTES, deleted);
+        }
+
+        nextSegmentNumber.set(byNumber.isEmpty() ? 1 : byNumber.lastKey() + 1);
+        if (byNumber.isEmpty()) {
+            active = createSegment();
+            segments.add(active);
+        } else {
+            active = byNumber.lastEntry().getValue();
+        }
+        recountBytes();
+        appendedSinceIndex = indexedEnds != null ? 0 : appendedBytes;
+    }
+
+    // Apply every intact frame from start on and return where the log ends. Anything
+    // after the first bad frame is a write that never completed, and is zeroed so it is
+    // not mistaken for data once new frames are written over it.
+    private int replay(Segment segment, int start, Map<String, Long> deleted) throws IOException {
+        ByteBuffer buffer = segment.buffer;
+        int capacity = buffer.capacity();
+        int position = start;
+        while (position + FRAME_HEADER_BYTES <= capacity) {
+            int length = buffer.getInt(position);
+            if (length == 0 && buffer.getInt(position + 4) == 0) {
+                break;
+            }
+            if (length <= 0 || length > capacity - position - FRAME_HEADER_BYTES
+                    || crc(buffer, position + FRAME_HEADER_BYTES, length) != buffer.getInt(position + 4)) {
+                System.err.println("Discarding incomplete write at " + segment.file + ":" + position);
+                int end = length > 0 && length <= capacity - position - FRAME_HEADER_BYTES
+                        ? position + FRAME_HEADER_BYTES + length : capacity;
+                for (int i = position; i < end; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                segment.buffer.force();
+                break;
+            }
+            int entry = position + FRAME_HEADER_BYTES;
+            int frameEnd = entry + length;
+            while (entry < frameEnd) {
+                int entryLength = buffer.getInt(entry);
+                replayEntry(segment, entry, entryLength, deleted);
+                entry += entryLength;
+            }
+            position = frameEnd;
+        }
+        return position;
+    }
+
+    // Revisions decide which copy of a student wins, so entries may be replayed in any order
+    private void replayEntry(Segment segment, int offset, int length, Map<String, Long> deleted) throws IOException {
+        byte type = segment.buffer.get(offset + 4);
+        EntryReader in = new EntryReader(segment.buffer, offset + ENTRY_HEADER_BYTES);
+        switch (type) {
+            case ENTRY_STUDENT: {
+                long revision = in.readLong();
+                int id = in.readInt();
+                long createdAt = in.readLong();
+                in.readInt();
+                String studentId = in.readString();
+                lastRevision = Math.max(lastRevision, revision);
+                lastId = Math.max(lastId, id);
+                Location current = byStudentId.get(studentId);
+                if ((current == null || current.revision < revision) && deleted.getOrDefault(studentId, 0L) < revision) {
+                    putStudent(new Location(segment, offset, length, studentId, id, revision, createdAt));
+                }
+                break;
+            }
+            case ENTRY_DELETION: {
+                long revision = in.readLong();
+                long deletedAt = in.readLong();
+                String studentId = in.readString();
+                lastRevision = Math.max(lastRevision, revision);
+                deletions.putIfAbsent(revision, new Location(segment, offset, length, studentId, 0, revision, deletedAt));
+                deleted.merge(studentId, revision, Math::max);
+                Location current = byStudentId.get(studentId);
+                if (current != null && current.revision < revision) {
+                    removeStudent(studentId);
+                }
+                break;
+            }
+            case ENTRY_CHECKPOINT: {
+                long version = in.readLong();
+                String jobId = in.readString();
+                lastCheckpointVersion = Math.max(lastCheckpointVersion, version);
+                Location current = checkpoints.get(jobId);
+                if (current == null || current.revision < version) {
+                    checkpoints.put(jobId, new Location(segment, offset, length, jobId, 0, version, 0));
+                }
+                break;
+            }
+            case ENTRY_SEQUENCE:
+                lastRevision = Math.max(lastRevision, in.readLong());
+                lastId = Math.max(lastId, in.readInt());
+                lastCheckpointVersion = Math.max(lastCheckpointVersion, in.readLong());
+                break;
+            default:
+                throw new IOException("Unknown entry type " + type + " at " + segment.file + ":" + offset);
+        }
+    }
+
+    private void recountBytes() {
+        appendedBytes = 0;
+        for (Segment segment : segments) {
+            appendedBytes += segment.end - SEGMENT_HEADER_BYTES;
+        }
+        liveBytes = 0;
+        for (Location location : byStudentId.values()) {
+            liveBytes += location.length;
+        }
+        for (Location location : deletions.values()) {
+            liveBytes += location.length;
+        }
+        for (Location location : checkpoints.values()) {
+            liveBytes += location.length;
+        }
+    }
+
+    private void maintain() {
+        try {
+            boolean compact;
+            boolean saveIndex;
+            lock.readLock().lock();
+            try {
+                compact = appendedBytes > segmentBytes
+                        && appendedBytes - liveBytes > appendedBytes * compactionGarbageRatio;
+                saveIndex = appendedSinceIndex >= segmentBytes;
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (compact) {
+                compact();
+            } else if (saveIndex) {
+                lock.writeLock().lock();
+                try {
+                    if (!closed) {
+                        writeIndex();
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Thrown out of a scheduled task, it would stop all further maintenance
+            e.printStackTrace();
+        }
+    }
+
+    // Copy the live entries of every segment but the active one into new segments, then
+    // delete the old ones. Writes carry on into the active segment meanwhile; an entry
+    // superseded while it was being copied leaves its copy as garbage for next time.
+    void compact() throws IOException {
+        List<Segment> sealed;
+        List<Location> students;
+        List<Location> deletionList;
+        List<Location> checkpointList;
+        byte[] sequence;
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (active.end > SEGMENT_HEADER_BYTES) {
+                active = createSegment();
+                segments.add(active);
+            }
+            sealed = new ArrayList<>(segments);
+            sealed.remove(active);
+            if (sealed.isEmpty()) {
+                return;
+            }
+            students = new ArrayList<>(byId.values());
+            deletionList = new ArrayList<>(deletions.values());
+            checkpointList = new ArrayList<>(checkpoints.values());
+            sequence = sequenceEntry(lastRevision, lastId, lastCheckpointVersion);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        List<Location> all = new ArrayList<>(students.size() + deletionList.size() + checkpointList.size());
+        all.addAll(students);
+        all.addAll(deletionList);
+        all.addAll(checkpointList);
+        List<Segment> outputs = new ArrayList<>();
+        Map<Location, Location> moved = new IdentityHashMap<>();
+        try {
+            copyEntries(sequence, all, outputs, moved);
+        } catch (IOException | RuntimeException e) {
+            for (Segment output : outputs) {
+                output.channel.close();
+                Files.deleteIfExists(output.file.toPath());
+            }
+            throw e;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (Location old : students) {
+                if (byStudentId.get(old.key) == old) {
+                    putStudent(moved.get(old));
+                }
+            }
+            for (Location old : deletionList) {
+                if (deletions.get(old.revision) == old) {
+                    deletions.put(old.revision, moved.get(old));
+                }
+            }
+            for (Location old : checkpointList) {
+                if (checkpoints.get(old.key) == old) {
+                    checkpoints.put(old.key, moved.get(old));
+                }
+            }
+            segments.removeAll(sealed);
+            segments.addAll(outputs);
+            recountBytes();
+            writeIndex();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (Segment segment : sealed) {
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                // Still mapped by a running scan on platforms that refuse to delete mapped files
+                segment.file.deleteOnExit();
+            }
+        }
+        System.err.println("Compacted " + sealed.size() + " student store segment(s) into " + outputs.size());
+    }
+
+    // The counters first, then the entries, in frames of up to COMPACTION_FRAME_BYTES
+    private void copyEntries(byte[] sequence, List<Location> entries, List<Segment> outputs,
+                             Map<Location, Location> moved) throws IOException {
+        Segment output = createSegment();
+        outputs.add(output);
+        int frameStart = output.end;
+        slice(output.buffer, frameStart + FRAME_HEADER_BYTES, sequence.length).put(sequence);
+        int frameLength = sequence.length;
+        for (Location entry : entries) {
+            if (frameLength + entry.length > COMPACTION_FRAME_BYTES
+                    || frameStart + FRAME_HEADER_BYTES + frameLength + entry.length > output.buffer.capacity()) {
+                if (frameLength > 0) {
+                    sealFrame(output, frameStart, frameLength);
+                }
+                if (output.end + FRAME_HEADER_BYTES + entry.length > output.buffer.capacity()) {
+                    output = createSegment();
+                    outputs.add(output);
+                }
+                frameStart = output.end;
+                frameLength = 0;
+            }
+            int offset = frameStart + FRAME_HEADER_BYTES + frameLength;
+            slice(output.buffer, offset, entry.length).put(slice(entry.segment.buffer, entry.offset, entry.length));
+            moved.put(entry, entry.movedTo(output, offset));
+            frameLength += entry.length;
+        }
+        sealFrame(output, frameStart, frameLength);
+        for (Segment segment : outputs) {
+            segment.buffer.force();
+        }
+        syncDirectory();
+    }
+
+    private static void sealFrame(Segment segment, int start, int length) {
+        segment.buffer.putInt(start, length);
+        segment.buffer.putInt(start + 4, crc(segment.buffer, start + FRAME_HEADER_BYTES, length));
+        segment.end = start + FRAME_HEADER_BYTES + length;
+    }
+
+    // Where every live entry is, and how far each segment had been written. Replaced
+    // atomically, so a crash leaves either the old index or the new one. Caller holds the
+    // write lock.
+    private void writeIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(lastRevision);
+        out.writeInt(lastId);
+        out.writeLong(lastCheckpointVersion);
+        out.writeInt(segments.size());
+        for (Segment segment : segments) {
+            out.writeLong(segment.number);
+            out.writeInt(segment.end);
+        }
+        writeLocations(out, byStudentId.values());
+        writeLocations(out, deletions.values());
+        writeLocations(out, checkpoints.values());
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        File temp = new File(directory, INDEX_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(directory, INDEX_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        appendedSinceIndex = 0;
+    }
+
+    private static void writeLocations(DataOutputStream out, Collection<Location> locations) throws IOException {
+        out.writeInt(locations.size());
+        for (Location location : locations) {
+            out.writeLong(location.segment.number);
+            out.writeInt(location.offset);
+            out.writeInt(location.length);
+            writeString(out, location.key);
+            out.writeInt(location.id);
+            out.writeLong(location.revision);
+            out.writeLong(location.timeMillis);
+        }
+    }
+
+    // Load the index into memory and return how far it says each segment had been
+    // written, or null (leaving memory empty) if there is no index or it does not match
+    // the segments on disk
+    private Map<Long, Integer> readIndex(Map<Long, Segment> byNumber) throws IOException {
+        File file = new File(directory, INDEX_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < 4) {
+            System.err.println("Ignoring truncated student store index " + file);
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+            System.err.println("Ignoring corrupt student store index " + file);
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (in.readInt() != INDEX_MAGIC || in.readInt() != FORMAT_VERSION) {
+            System.err.println("Ignoring student store index " + file + " of another version");
+            return null;
+        }
+        long revision = in.readLong();
+        int id = in.readInt();
+        long checkpointVersion = in.readLong();
+        Map<Long, Integer> ends = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            long number = in.readLong();
+            int end = in.readInt();
+            Segment segment = byNumber.get(number);
+            if (segment == null || end > segment.buffer.capacity()) {
+                System.err.println("Student store index " + file + " refers to missing segment " + number);
+                return null;
+            }
+            ends.put(number, end);
+        }
+        List<Location> students = readLocations(in, byNumber);
+        List<Location> deleted = readLocations(in, byNumber);
+        List<Location> checkpointList = readLocations(in, byNumber);
+        if (students == null || deleted == null || checkpointList == null) {
+            System.err.println("Student store index " + file + " refers to missing segments");
+            return null;
+        }
+
+        for (Location location : students) {
+            putStudent(location);
+        }
+        for (Location location : deleted) {
+            deletions.put(location.revision, location);
+        }
+        for (Location location : checkpointList) {
+            checkpoints.put(location.key, location);
+        }
+        lastRevision = revision;
+        lastId = id;
+        lastCheckpointVersion = checkpointVersion;
+        return ends;
+    }
+
+    private static List<Location> readLocations(DataInputStream in, Map<Long, Segment> byNumber) throws IOException {
+        int count = in.readInt();
+        List<Location> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Segment segment = byNumber.get(in.readLong());
+            int offset = in.readInt();
+            int length = in.readInt();
+            String key = readString(in);
+            int id = in.readInt();
+            long revision = in.readLong();
+            long timeMillis = in.readLong();
+            if (segment == null || offset + length > segment.buffer.capacity()) {
+                return null;
+            }
+            locations.add(new Location(segment, offset, length, key, id, revision, timeMillis));
+        }
+        return locations;
+    }
+
+    private static Student readStudent(Location location, Fields fields) {
+        EntryReader in = new EntryReader(location.segment.buffer, location.offset + ENTRY_HEADER_BYTES);
+        Student student = new Student();
+        long revision = in.readLong();
+        int id = in.readInt();
+        long createdAt = in.readLong();
+        int formatVersion = in.readInt();
+        student.setStudentId(in.readString());
+        if (fields == Fields.FULL) {
+            student.setNameEncrypted(in.readBytes());
+        } else {
+            in.skipBytes();
+        }
+        if (fields == Fields.LISTING) {
+            in.skipBytes();
+            in.skipBytes();
+        } else {
+            student.setDataEncrypted(in.readBytes());
+            student.setIv(in.readBytes());
+            student.setFormatVersion(formatVersion);
+        }
+        if (fields == Fields.FULL || fields == Fields.LISTING) {
+            student.setMeta(in.readString());
+            student.setCreatedAt(new Timestamp(createdAt));
+        }
+        if (fields != Fields.TRAINING) {
+            student.setId(id);
+        }
+        if (fields == Fields.FULL || fields == Fields.CHANGE) {
+            student.setRevision(revision);
+        }
+        return student;
+    }
+
+    private static RotationCheckpoint readCheckpoint(Location location) {
+        EntryReader in = new EntryReader(location.segment.buffer, location.offset + ENTRY_HEADER_BYTES);
+        in.readLong();
+        RotationCheckpoint checkpoint = new RotationCheckpoint();
+        checkpoint.setJobId(in.readString());
+        checkpoint.setLastId(in.readInt());
+        checkpoint.setRowsRotated(in.readInt());
+        checkpoint.setRowsSkipped(in.readInt());
+        checkpoint.setRowsFailed(in.readInt());
+        checkpoint.setNewKeyHash(in.readString());
+        checkpoint.setCompleted(in.readByte() != 0);
+        checkpoint.setUpdatedAt(new Timestamp(in.readLong()));
+        return checkpoint;
+    }
+
+    // Entry layouts, after the 4-byte length and 1-byte type:
+    //   student:    revision, id, created at, format version, student ID, name, data, iv, meta
+    //   deletion:   revision, deleted at, student ID
+    //   checkpoint: version, job ID, last id, rotated, skipped, failed, new key hash, completed, updated at
+    //   sequence:   last revision, last id, last checkpoint version
+    // Byte arrays and strings are a 4-byte length (-1 for null) and the bytes.
+    private static byte[] studentEntry(Student student, String studentId, long revision, int id, long createdAt,
+                                       String meta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startEntry(bytes, ENTRY_STUDENT);
+        out.writeLong(revision);
+        out.writeInt(id);
+        out.writeLong(createdAt);
+        out.writeInt(student.getFormatVersion());
+        writeString(out, studentId);
+        writeBytes(out, student.getNameEncrypted());
+        writeBytes(out, student.getDataEncrypted());
+        writeBytes(out, student.getIv());
+        writeString(out, meta);
+        return finishEntry(bytes);
+    }
+
+    private static byte[] deletionEntry(String studentId, long revision, long deletedAt) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startEntry(bytes, ENTRY_DELETION);
+        out.writeLong(revision);
+        out.writeLong(deletedAt);
+        writeString(out, studentId);
+        return finishEntry(bytes);
+    }
+
+    private static byte[] checkpointEntry(RotationCheckpoint checkpoint, long version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startEntry(bytes, ENTRY_CHECKPOINT);
+        out.writeLong(version);
+        writeString(out, checkpoint.getJobId());
+        out.writeInt(checkpoint.getLastId());
+        out.writeInt(checkpoint.getRowsRotated());
+        out.writeInt(checkpoint.getRowsSkipped());
+        out.writeInt(checkpoint.getRowsFailed());
+        writeString(out, checkpoint.getNewKeyHash());
+        out.writeByte(checkpoint.isCompleted() ? 1 : 0);
+        out.writeLong(checkpoint.getUpdatedAt() != null ? checkpoint.getUpdatedAt().getTime() : 0);
+        return finishEntry(bytes);
+    }
+
+    private static byte[] sequenceEntry(long revision, int id, long checkpointVersion) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = startEntry(bytes, ENTRY_SEQUENCE);
+            out.writeLong(revision);
+            out.writeInt(id);
+            out.writeLong(checkpointVersion);
+            return finishEntry(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static DataOutputStream startEntry(ByteArrayOutputStream bytes, byte type) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Length, filled in by finishEntry
+        out.writeInt(0);
+        out.writeByte(type);
+        return out;
+    }
+
+    private static byte[] finishEntry(ByteArrayOutputStream bytes) {
+        byte[] entry = bytes.toByteArray();
+        ByteBuffer.wrap(entry).putInt(0, entry.length);
+        return entry;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value != null ? value.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Reads an entry's fields in order straight from a mapping, without moving the
+    // mapping's own position, so any number of threads can read at once
+    private static class EntryReader {
+        private final ByteBuffer buffer;
+        private int position;
+
+        EntryReader(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        byte readByte() {
+            return buffer.get(position++);
+        }
+
+        int readInt() {
+            int value = buffer.getInt(position);
+            position += 4;
+            return value;
+        }
+
+        long readLong() {
+            long value = buffer.getLong(position);
+            position += 8;
+            return value;
+        }
+
+        byte[] readBytes() {
+            int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] value = new byte[length];
+            slice(buffer, position, length).get(value);
+            position += length;
+            return value;
+        }
+
+        void skipBytes() {
+            int length = readInt();
+            position += Math.max(length, 0);
+        }
+
+        String readString() {
+            byte[] value = readBytes();
+            return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+        }
+    }
+
+    // A view of length bytes at offset. The casts keep Java 8 linkage when compiled on a
+    // newer JDK, where ByteBuffer overrides these methods.
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(offset);
+        ((Buffer) view).limit(offset + length);
+        return view;
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(slice(buffer, offset, length));
+        return (int) crc.getValue();
+    }
+
+    // New and renamed files are only durable once their directory entry is. Not every
+    // platform can open a directory for this; there the file system's own ordering applies.
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Not supported here
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.encryptedknn.dao;
+
+import com.example.encryptedknn.model.Student;
+
+// Notified by the StudentRepository after a student row has been written successfully,
+// on the thread that performed the write
+public interface StudentChangeListener {
+    void studentInserted(Student student);
+
+    void studentUpdated(Student student);
+
+    void studentDeleted(String studentId);
+}
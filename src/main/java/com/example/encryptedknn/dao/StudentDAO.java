@@ -1,34 +1,165 @@
 package com.example.encryptedknn.dao;
 
+import com.example.encryptedknn.model.RotationCheckpoint;
 import com.example.encryptedknn.model.Student;
+import com.example.encryptedknn.model.StudentChange;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-public class StudentDAO {
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/encrypted_knn";
-    private static final String DB_USER = "root"; // Change as needed
-    private static final String DB_PASSWORD = ""; // Change as needed
+public class StudentDAO implements StudentRepository {
+    // Upper bound on parameters in one IN (...) lookup
+    private static final int MAX_IN_LIST_IDS = 500;
+    // Rows per round trip when streaming the table through a server-side cursor
+    public static final int DEFAULT_FETCH_SIZE = 1000;
 
+    // Shared by every DAO instance so in-memory copies of the table see all writes
+    private static final List<StudentChangeListener> LISTENERS = new CopyOnWriteArrayList<>();
+    // Bumped after every successful write, once listeners have applied it
+    private static final AtomicLong DATASET_VERSION = new AtomicLong();
+    private static final ConcurrentSkipListSet<Long> LOCAL_REVISIONS = new ConcurrentSkipListSet<>();
+    private static volatile boolean trackLocalRevisions;
+
+    // Pooled; see DatabaseConfig. Pooled connections also stream result sets through a
+    // server-side cursor when a statement has a fetch size, and send batches in one round trip.
     private Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        return DatabaseConfig.dataSource().getConnection();
+    }
+
+    public static void addChangeListener(StudentChangeListener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void removeChangeListener(StudentChangeListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    // Reserve count consecutive revisions for writes in conn's transaction and return the
+    // first. The counter row stays locked until the transaction ends, so revisions become
+    // visible in the order they were handed out and a reader that has seen revision r
+    // will never later find a new change at or below r.
+    private static long reserveRevisions(Connection conn, int count) throws SQLException {
+        try (PreparedStatement bump = conn.prepareStatement(
+                "UPDATE change_sequence SET revision = LAST_INSERT_ID(revision + ?) WHERE id = 1")) {
+            bump.setInt(1, count);
+            if (bump.executeUpdate() != 1) {
+                throw new SQLException("change_sequence has no row; see sql/schema.sql");
+            }
+        }
+        long last;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()")) {
+            rs.next();
+            last = rs.getLong(1);
+        }
+        long first = last - count + 1;
+        if (trackLocalRevisions) {
+            for (long revision = first; revision <= last; revision++) {
+                LOCAL_REVISIONS.add(revision);
+            }
+        }
+        return first;
+    }
+
+    // While a ChangeFeedPoller runs, revisions written by this process are remembered so
+    // the poller does not apply them a second time
+    static void setTrackLocalRevisions(boolean track) {
+        trackLocalRevisions = track;
+        if (!track) {
+            LOCAL_REVISIONS.clear();
+        }
+    }
+
+    static boolean isLocalRevision(long revision) {
+        return LOCAL_REVISIONS.contains(revision);
+    }
+
+    // Revisions at or below the poller's position can no longer show up in the feed
+    static void forgetLocalRevisions(long upTo) {
+        LOCAL_REVISIONS.headSet(upTo, true).clear();
+    }
+
+    // Changes whenever the students table is written through a DAO. Anything derived from
+    // the table can record the version it read first and is stale once the version moves.
+    public static long getDatasetVersion() {
+        return DATASET_VERSION.get();
+    }
+
+    // For changes that were missed rather than announced: everything recorded against an
+    // earlier version, such as cached query results, is stale from now on
+    static void advanceDatasetVersion() {
+        DATASET_VERSION.incrementAndGet();
+    }
+
+    // A failing listener is logged and skipped; the write itself has already succeeded
+    static void notifyInserted(Student student) {
+        for (StudentChangeListener listener : LISTENERS) {
+            try {
+                listener.studentInserted(student);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        DATASET_VERSION.incrementAndGet();
+    }
+
+    static void notifyUpdated(Student student) {
+        for (StudentChangeListener listener : LISTENERS) {
+            try {
+                listener.studentUpdated(student);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        DATASET_VERSION.incrementAndGet();
+    }
+
+    static void notifyDeleted(String studentId) {
+        for (StudentChangeListener listener : LISTENERS) {
+            try {
+                listener.studentDeleted(studentId);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        DATASET_VERSION.incrementAndGet();
     }
 
     // Insert a new student record
+    @Override
     public boolean insertStudent(Student student) {
-        String sql = "INSERT INTO students (student_id, name_encrypted, data_encrypted, iv, meta) VALUES (?, ?, ?, ?, ?)";
+        String sql = "INSERT INTO students (student_id, name_encrypted, data_encrypted, iv, meta, format_version, revision) VALUES (?, ?, ?, ?, ?, ?, ?)";
         
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            
-            stmt.setString(1, student.getStudentId());
-            stmt.setBytes(2, student.getNameEncrypted());
-            stmt.setBytes(3, student.getDataEncrypted());
-            stmt.setBytes(4, student.getIv());
-            stmt.setString(5, student.getMeta());
-            
-            int rowsAffected = stmt.executeUpdate();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            int rowsAffected;
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                long revision = reserveRevisions(conn, 1);
+                stmt.setString(1, student.getStudentId());
+                stmt.setBytes(2, student.getNameEncrypted());
+                stmt.setBytes(3, student.getDataEncrypted());
+                stmt.setBytes(4, student.getIv());
+                stmt.setString(5, student.getMeta());
+                stmt.setInt(6, student.getFormatVersion());
+                stmt.setLong(7, revision);
+                
+                rowsAffected = stmt.executeUpdate();
+                conn.commit();
+                student.setRevision(revision);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            if (rowsAffected > 0) {
+                notifyInserted(student);
+            }
             return rowsAffected > 0;
             
         } catch (SQLException e) {
@@ -38,6 +169,7 @@ public class StudentDAO {
     }
 
     // Get a student by student ID
+    @Override
     public Student getStudentByStudentId(String studentId) {
         String sql = "SELECT * FROM students WHERE student_id = ?";
         
@@ -57,7 +189,43 @@ public class StudentDAO {
         return null;
     }
 
+    // Get the training columns of the students with the given IDs in one round trip per
+    // batch of IN-list parameters. IDs that no longer exist are simply absent from the
+    // result; null if any batch failed.
+    @Override
+    public List<Student> getTrainingRowsByStudentIds(List<String> studentIds) {
+        List<Student> students = new ArrayList<>();
+        for (int from = 0; from < studentIds.size(); from += MAX_IN_LIST_IDS) {
+            List<String> batch = studentIds.subList(from, Math.min(from + MAX_IN_LIST_IDS, studentIds.size()));
+            StringBuilder sql = new StringBuilder(
+                    "SELECT student_id, data_encrypted, iv, format_version FROM students WHERE student_id IN (");
+            for (int i = 0; i < batch.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+
+            try (Connection conn = getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+
+                for (int i = 0; i < batch.size(); i++) {
+                    stmt.setString(i + 1, batch.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        students.add(mapTrainingRow(rs));
+                    }
+                }
+
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return students;
+    }
+
     // Get all students
+    @Override
     public List<Student> getAllStudents() {
         List<Student> students = new ArrayList<>();
         String sql = "SELECT * FROM students ORDER BY created_at DESC";
@@ -76,20 +244,434 @@ public class StudentDAO {
         return students;
     }
 
+    // One page of the newest-first listing: ID, meta and creation time only, never the
+    // encrypted columns. Pass a null afterCreatedAt for the first page, then the
+    // created_at and id of the last row of the previous page; this seeks on the
+    // (created_at, id) index instead of skipping rows the way OFFSET does.
+    @Override
+    public List<Student> listStudents(Timestamp afterCreatedAt, int afterId, int limit) {
+        List<Student> students = new ArrayList<>();
+        String sql = afterCreatedAt == null
+                ? "SELECT id, student_id, meta, created_at FROM students ORDER BY created_at DESC, id DESC LIMIT ?"
+                : "SELECT id, student_id, meta, created_at FROM students "
+                        + "WHERE created_at < ? OR (created_at = ? AND id < ?) ORDER BY created_at DESC, id DESC LIMIT ?";
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            int param = 1;
+            if (afterCreatedAt != null) {
+                stmt.setTimestamp(param++, afterCreatedAt);
+                stmt.setTimestamp(param++, afterCreatedAt);
+                stmt.setInt(param++, afterId);
+            }
+            stmt.setInt(param, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Student student = new Student();
+                    student.setId(rs.getInt("id"));
+                    student.setStudentId(rs.getString("student_id"));
+                    student.setMeta(rs.getString("meta"));
+                    student.setCreatedAt(rs.getTimestamp("created_at"));
+                    students.add(student);
+                }
+            }
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return students;
+    }
+
+    // Number of students, or -1 if the query failed
+    @Override
+    public int countStudents() {
+        String sql = "SELECT COUNT(*) FROM students";
+
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+
+            return rs.next() ? rs.getInt(1) : 0;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // Stream every student's ID, encrypted data, IV and format version to the consumer as rows arrive, in the
+    // same order as getAllStudents(), fetchSize rows per round trip. The encrypted name is
+    // not selected, and only the current batch of rows is held in memory. Returns false if
+    // the scan failed part way, in which case the consumer has seen only some rows.
+    @Override
+    public boolean streamTrainingRows(int fetchSize, Consumer<Student> consumer) {
+        return streamTrainingRows(fetchSize, 0, 1, consumer);
+    }
+
+    // MySQL's CRC32() hashes the column's bytes, which for utf8/utf8mb4 (and for any
+    // ASCII ID) are the UTF-8 bytes ShardSpec hashes, so each worker is sent only its rows
+    @Override
+    public boolean streamTrainingRows(int fetchSize, int shardIndex, int shardCount, Consumer<Student> consumer) {
+        String sql = "SELECT student_id, data_encrypted, iv, format_version FROM students"
+                + (shardCount > 1 ? " WHERE CRC32(student_id) % ? = ?" : "")
+                + " ORDER BY created_at DESC";
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+            if (shardCount > 1) {
+                stmt.setInt(1, shardCount);
+                stmt.setInt(2, shardIndex);
+            }
+            stmt.setFetchSize(Math.max(fetchSize, 1));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapTrainingRow(rs));
+                }
+            }
+            return true;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Stream every full student row to the consumer as rows arrive, in the same order as
+    // getAllStudents(), fetchSize rows per round trip, without holding the table in
+    // memory. Returns false if the scan failed part way. An exception thrown by the
+    // consumer stops the scan and is rethrown.
+    @Override
+    public boolean streamStudents(int fetchSize, Consumer<Student> consumer) {
+        String sql = "SELECT * FROM students ORDER BY created_at DESC";
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+            stmt.setFetchSize(Math.max(fetchSize, 1));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(mapResultSetToStudent(rs));
+                }
+            }
+            return true;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Up to limit full rows with id > afterId, in id order, or null if the query failed.
+    // Paging on the primary key costs the same for the last page as for the first,
+    // unlike OFFSET.
+    @Override
+    public List<Student> getStudentsAfterId(int afterId, int limit) {
+        List<Student> students = new ArrayList<>();
+        String sql = "SELECT * FROM students WHERE id > ? ORDER BY id LIMIT ?";
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, afterId);
+            stmt.setInt(2, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    students.add(mapResultSetToStudent(rs));
+                }
+            }
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return students;
+    }
+
+    @Override
+    public RotationCheckpoint getRotationCheckpoint(String jobId) {
+        String sql = "SELECT * FROM key_rotation_checkpoints WHERE job_id = ?";
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setString(1, jobId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    RotationCheckpoint checkpoint = new RotationCheckpoint();
+                    checkpoint.setJobId(rs.getString("job_id"));
+                    checkpoint.setLastId(rs.getInt("last_id"));
+                    checkpoint.setRowsRotated(rs.getInt("rows_rotated"));
+                    checkpoint.setRowsSkipped(rs.getInt("rows_skipped"));
+                    checkpoint.setRowsFailed(rs.getInt("rows_failed"));
+                    checkpoint.setNewKeyHash(rs.getString("new_key_hash"));
+                    checkpoint.setCompleted(rs.getBoolean("completed"));
+                    checkpoint.setUpdatedAt(rs.getTimestamp("updated_at"));
+                    return checkpoint;
+                }
+            }
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Write re-encrypted rows and the job's next checkpoint in one transaction, so a job
+    // resumed after a crash neither repeats nor misses rows. Each row is written only if
+    // its data_encrypted still equals previousData[i]; a row changed since it was read
+    // keeps the concurrent write and is moved from next's rotated count to its skipped
+    // count. Returns which rows were written, or null if nothing was committed.
+    @Override
+    public boolean[] rotateStudents(List<Student> rotated, List<byte[]> previousData, RotationCheckpoint next) {
+        String updateSql = "UPDATE students SET name_encrypted = ?, data_encrypted = ?, iv = ?, format_version = ?, "
+                + "revision = ? WHERE id = ? AND data_encrypted = ?";
+        String checkpointSql = "INSERT INTO key_rotation_checkpoints "
+                + "(job_id, last_id, rows_rotated, rows_skipped, rows_failed, new_key_hash, completed) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE last_id = VALUES(last_id), "
+                + "rows_rotated = VALUES(rows_rotated), rows_skipped = VALUES(rows_skipped), "
+                + "rows_failed = VALUES(rows_failed), completed = VALUES(completed)";
+        boolean[] written = new boolean[rotated.size()];
+
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement update = conn.prepareStatement(updateSql);
+                 PreparedStatement checkpoint = conn.prepareStatement(checkpointSql)) {
+
+                if (!rotated.isEmpty()) {
+                    long firstRevision = reserveRevisions(conn, rotated.size());
+                    for (int i = 0; i < rotated.size(); i++) {
+                        Student student = rotated.get(i);
+                        student.setRevision(firstRevision + i);
+                        update.setBytes(1, student.getNameEncrypted());
+                        update.setBytes(2, student.getDataEncrypted());
+                        update.setBytes(3, student.getIv());
+                        update.setInt(4, student.getFormatVersion());
+                        update.setLong(5, student.getRevision());
+                        update.setInt(6, student.getId());
+                        update.setBytes(7, previousData.get(i));
+                        update.addBatch();
+                    }
+                    int[] counts = update.executeBatch();
+                    List<Integer> unknown = new ArrayList<>();
+                    for (int i = 0; i < counts.length; i++) {
+                        // Rewritten batches may not report per-row counts; a guess either
+                        // way would miscount the checkpoint or announce ciphertext that a
+                        // concurrent update kept out of the table
+                        if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                            unknown.add(i);
+                        } else {
+                            written[i] = counts[i] > 0;
+                        }
+                    }
+                    confirmRotated(conn, rotated, unknown, written);
+                    int unchanged = 0;
+                    for (boolean rowWritten : written) {
+                        if (!rowWritten) {
+                            unchanged++;
+                        }
+                    }
+                    next.setRowsRotated(next.getRowsRotated() - unchanged);
+                    next.setRowsSkipped(next.getRowsSkipped() + unchanged);
+                }
+
+                checkpoint.setString(1, next.getJobId());
+                checkpoint.setInt(2, next.getLastId());
+                checkpoint.setInt(3, next.getRowsRotated());
+                checkpoint.setInt(4, next.getRowsSkipped());
+                checkpoint.setInt(5, next.getRowsFailed());
+                checkpoint.setString(6, next.getNewKeyHash());
+                checkpoint.setBoolean(7, next.isCompleted());
+                checkpoint.executeUpdate();
+
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        for (int i = 0; i < written.length; i++) {
+            if (written[i]) {
+                notifyUpdated(rotated.get(i));
+            }
+        }
+        return written;
+    }
+
+    // Settle the rows whose update count was not reported by reading them back in the
+    // same transaction: each rotated row was given its own revision, so it was written
+    // exactly when it now carries that revision
+    private static void confirmRotated(Connection conn, List<Student> rotated, List<Integer> unknown,
+                                       boolean[] written) throws SQLException {
+        for (int from = 0; from < unknown.size(); from += MAX_IN_LIST_IDS) {
+            List<Integer> batch = unknown.subList(from, Math.min(from + MAX_IN_LIST_IDS, unknown.size()));
+            StringBuilder sql = new StringBuilder("SELECT id, revision FROM students WHERE id IN (");
+            for (int i = 0; i < batch.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+
+            Map<Integer, Long> revisions = new HashMap<>();
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                for (int i = 0; i < batch.size(); i++) {
+                    stmt.setInt(i + 1, rotated.get(batch.get(i)).getId());
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        revisions.put(rs.getInt("id"), rs.getLong("revision"));
+                    }
+                }
+            }
+            for (int index : batch) {
+                Student student = rotated.get(index);
+                Long revision = revisions.get(student.getId());
+                written[index] = revision != null && revision == student.getRevision();
+            }
+        }
+    }
+
+    // The feed's current position, or -1 if it could not be read
+    @Override
+    public long currentRevision() {
+        String sql = "SELECT revision FROM change_sequence WHERE id = 1";
+
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+
+            return rs.next() ? rs.getLong(1) : -1;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // Up to about limit changes after the given revision, in revision order, or null if
+    // the query failed. Written rows carry only the columns classification needs (no
+    // encrypted name, meta or creation time). A row written several times appears once,
+    // at its latest revision; a deleted row appears as a deletion. Continue from the
+    // revision of the last change returned.
+    @Override
+    public List<StudentChange> changesSince(long revision, int limit) {
+        String rowsSql = "SELECT id, student_id, data_encrypted, iv, format_version, revision FROM students "
+                + "WHERE revision > ? ORDER BY revision LIMIT ?";
+        String deletionsSql = "SELECT revision, student_id FROM student_deletions WHERE revision > ? ORDER BY revision LIMIT ?";
+        List<StudentChange> rows = new ArrayList<>();
+        List<StudentChange> deletions = new ArrayList<>();
+
+        try (Connection conn = getConnection();
+             PreparedStatement rowsStmt = conn.prepareStatement(rowsSql);
+             PreparedStatement deletionsStmt = conn.prepareStatement(deletionsSql)) {
+
+            // One snapshot for both reads, so a row and its deletion are seen consistently
+            conn.setAutoCommit(false);
+            conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            rowsStmt.setLong(1, revision);
+            rowsStmt.setInt(2, limit);
+            try (ResultSet rs = rowsStmt.executeQuery()) {
+                while (rs.next()) {
+                    Student student = new Student();
+                    student.setId(rs.getInt("id"));
+                    student.setStudentId(rs.getString("student_id"));
+                    student.setDataEncrypted(rs.getBytes("data_encrypted"));
+                    student.setIv(rs.getBytes("iv"));
+                    student.setFormatVersion(rs.getInt("format_version"));
+                    student.setRevision(rs.getLong("revision"));
+                    rows.add(new StudentChange(student.getRevision(), student.getStudentId(), student));
+                }
+            }
+            deletionsStmt.setLong(1, revision);
+            deletionsStmt.setInt(2, limit);
+            try (ResultSet rs = deletionsStmt.executeQuery()) {
+                while (rs.next()) {
+                    deletions.add(new StudentChange(rs.getLong("revision"), rs.getString("student_id"), null));
+                }
+            }
+            conn.commit();
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        // A list cut off by the limit may be missing changes past its last revision that
+        // the other list would include, so stop at the lower of the two cut-off points
+        long upTo = Long.MAX_VALUE;
+        if (rows.size() == limit) {
+            upTo = rows.get(rows.size() - 1).getRevision();
+        }
+        if (deletions.size() == limit) {
+            upTo = Math.min(upTo, deletions.get(deletions.size() - 1).getRevision());
+        }
+        List<StudentChange> changes = new ArrayList<>(rows.size() + deletions.size());
+        int r = 0;
+        int d = 0;
+        while (r < rows.size() || d < deletions.size()) {
+            StudentChange next = d >= deletions.size()
+                    || (r < rows.size() && rows.get(r).getRevision() < deletions.get(d).getRevision())
+                    ? rows.get(r++) : deletions.get(d++);
+            if (next.getRevision() > upTo) {
+                break;
+            }
+            changes.add(next);
+        }
+        return changes;
+    }
+
+    // Drop deletion records older than the given age; nodes further behind than that
+    // must reload instead of following the feed
+    @Override
+    public int pruneDeletions(long olderThanMillis) {
+        String sql = "DELETE FROM student_deletions WHERE deleted_at < ?";
+
+        try (Connection conn = getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - olderThanMillis));
+            return stmt.executeUpdate();
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
     // Update student data
+    @Override
     public boolean updateStudent(Student student) {
-        String sql = "UPDATE students SET name_encrypted = ?, data_encrypted = ?, iv = ?, meta = ? WHERE student_id = ?";
+        String sql = "UPDATE students SET name_encrypted = ?, data_encrypted = ?, iv = ?, meta = ?, format_version = ?, revision = ? WHERE student_id = ?";
         
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            
-            stmt.setBytes(1, student.getNameEncrypted());
-            stmt.setBytes(2, student.getDataEncrypted());
-            stmt.setBytes(3, student.getIv());
-            stmt.setString(4, student.getMeta());
-            stmt.setString(5, student.getStudentId());
-            
-            int rowsAffected = stmt.executeUpdate();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            int rowsAffected;
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                long revision = reserveRevisions(conn, 1);
+                stmt.setBytes(1, student.getNameEncrypted());
+                stmt.setBytes(2, student.getDataEncrypted());
+                stmt.setBytes(3, student.getIv());
+                stmt.setString(4, student.getMeta());
+                stmt.setInt(5, student.getFormatVersion());
+                stmt.setLong(6, revision);
+                stmt.setString(7, student.getStudentId());
+                
+                rowsAffected = stmt.executeUpdate();
+                conn.commit();
+                student.setRevision(revision);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            if (rowsAffected > 0) {
+                notifyUpdated(student);
+            }
             return rowsAffected > 0;
             
         } catch (SQLException e) {
@@ -99,14 +681,33 @@ public class StudentDAO {
     }
 
     // Delete a student by student ID
+    // The deletion is logged under its revision so other nodes can apply it
+    @Override
     public boolean deleteStudent(String studentId) {
         String sql = "DELETE FROM students WHERE student_id = ?";
+        String logSql = "INSERT INTO student_deletions (revision, student_id) VALUES (?, ?)";
         
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            
-            stmt.setString(1, studentId);
-            int rowsAffected = stmt.executeUpdate();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            int rowsAffected;
+            try (PreparedStatement stmt = conn.prepareStatement(sql);
+                 PreparedStatement log = conn.prepareStatement(logSql)) {
+                long revision = reserveRevisions(conn, 1);
+                stmt.setString(1, studentId);
+                rowsAffected = stmt.executeUpdate();
+                if (rowsAffected > 0) {
+                    log.setLong(1, revision);
+                    log.setString(2, studentId);
+                    log.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            if (rowsAffected > 0) {
+                notifyDeleted(studentId);
+            }
             return rowsAffected > 0;
             
         } catch (SQLException e) {
@@ -116,6 +717,7 @@ public class StudentDAO {
     }
 
     // Check if a student exists
+    @Override
     public boolean studentExists(String studentId) {
         String sql = "SELECT COUNT(*) FROM students WHERE student_id = ?";
         
@@ -145,6 +747,18 @@ public class StudentDAO {
         student.setIv(rs.getBytes("iv"));
         student.setMeta(rs.getString("meta"));
         student.setCreatedAt(rs.getTimestamp("created_at"));
+        student.setFormatVersion(rs.getInt("format_version"));
+        student.setRevision(rs.getLong("revision"));
+        return student;
+    }
+
+    // Maps the student_id, data_encrypted, iv and format_version projection
+    private Student mapTrainingRow(ResultSet rs) throws SQLException {
+        Student student = new Student();
+        student.setStudentId(rs.getString("student_id"));
+        student.setDataEncrypted(rs.getBytes("data_encrypted"));
+        student.setIv(rs.getBytes("iv"));
+        student.setFormatVersion(rs.getInt("format_version"));
         return student;
     }
 }
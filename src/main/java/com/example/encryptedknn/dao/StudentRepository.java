@@ -0,0 +1,73 @@
+package com.example.encryptedknn.dao;
+
+import com.example.encryptedknn.model.RotationCheckpoint;
+import com.example.encryptedknn.model.Student;
+import com.example.encryptedknn.model.StudentChange;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Where encrypted student records are kept. StudentDAO keeps them in MySQL and
+// SegmentStudentStore in local segment files; DatabaseConfig.studentRepository() returns
+// the configured one. Every implementation announces successful writes to the
+// StudentChangeListeners registered with StudentDAO.
+public interface StudentRepository {
+    // False if the student ID is taken or the write failed
+    boolean insertStudent(Student student);
+
+    Student getStudentByStudentId(String studentId);
+
+    // ID, encrypted data, IV and format version of the given students; IDs that do not
+    // exist are absent from the result. Null if the read failed.
+    List<Student> getTrainingRowsByStudentIds(List<String> studentIds);
+
+    // Newest first
+    List<Student> getAllStudents();
+
+    // One page of the newest-first listing (id, student ID, meta and creation time only),
+    // after the given creation time and id; null afterCreatedAt for the first page.
+    // Null if the read failed.
+    List<Student> listStudents(Timestamp afterCreatedAt, int afterId, int limit);
+
+    // -1 if the count failed
+    int countStudents();
+
+    // Every student's ID, encrypted data, IV and format version, newest first, without
+    // holding the whole table in memory. False if the scan failed part way.
+    boolean streamTrainingRows(int fetchSize, Consumer<Student> consumer);
+
+    // Like streamTrainingRows, limited to the rows of one shard: those whose student ID's
+    // CRC32 (of its UTF-8 bytes) modulo shardCount is shardIndex, as in ShardSpec.
+    // Rows of other shards are filtered out by the store, not sent to the caller.
+    boolean streamTrainingRows(int fetchSize, int shardIndex, int shardCount, Consumer<Student> consumer);
+
+    // Like streamTrainingRows, with full rows
+    boolean streamStudents(int fetchSize, Consumer<Student> consumer);
+
+    // Up to limit full rows with id > afterId in id order, or null if the read failed
+    List<Student> getStudentsAfterId(int afterId, int limit);
+
+    RotationCheckpoint getRotationCheckpoint(String jobId);
+
+    // Write re-encrypted rows whose data_encrypted still equals previousData[i], and the
+    // job's next checkpoint, atomically. Rows not written move from next's rotated count
+    // to its skipped count. Which rows were written, or null if nothing was.
+    boolean[] rotateStudents(List<Student> rotated, List<byte[]> previousData, RotationCheckpoint next);
+
+    // Position of the change feed, or -1 if it could not be read
+    long currentRevision();
+
+    // Up to about limit changes after revision in revision order, or null if the read failed
+    List<StudentChange> changesSince(long revision, int limit);
+
+    // Forget deletions older than the given age; the number dropped, or -1 on failure
+    int pruneDeletions(long olderThanMillis);
+
+    // False if the student does not exist or the write failed
+    boolean updateStudent(Student student);
+
+    boolean deleteStudent(String studentId);
+
+    boolean studentExists(String studentId);
+}
@@ -0,0 +1,159 @@
+package com.example.encryptedknn.knn;
+
+import java.util.Arrays;
+
+// Exact ball tree. Each node stores the centroid of its rows and the radius of the
+// smallest centroid-centred ball containing them; a node is skipped when the query's
+// distance to that ball already exceeds the current k-th best. Rows are split at the
+// median of the widest dimension, and leaves hold up to LEAF_SIZE rows.
+public class BallTreeIndex implements NeighborIndex {
+    private static final int LEAF_SIZE = 16;
+
+    private final FeatureStore store;
+    private final int dimension;
+    private final int[] rows;
+    // Rows appended to the store after the build are scanned linearly
+    private final int indexedRows;
+    // Per node: centroid (dimension values at node * dimension), radius, children, row range
+    private double[] centroids;
+    private double[] radius;
+    private int[] left;
+    private int[] right;
+    private int[] from;
+    private int[] to;
+    private int nodeCount;
+
+    public BallTreeIndex(FeatureStore store) {
+        this.store = store;
+        this.dimension = store.getDimension();
+        this.rows = RowPartitioning.identity(store.size());
+        this.indexedRows = store.size();
+        int capacity = Math.max(1, 2 * (store.size() / LEAF_SIZE + 1));
+        centroids = new double[capacity * dimension];
+        radius = new double[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        from = new int[capacity];
+        to = new int[capacity];
+        build(0, store.size());
+    }
+
+    private int build(int start, int end) {
+        int node = newNode(start, end);
+        computeBall(node, start, end);
+        if (end - start <= LEAF_SIZE) {
+            left[node] = -1;
+            return node;
+        }
+        int splitDimension = RowPartitioning.widestDimension(store, rows, start, end);
+        int mid = RowPartitioning.splitAtMedian(store, rows, start, end, splitDimension);
+        int leftChild = build(start, mid);
+        int rightChild = build(mid, end);
+        left[node] = leftChild;
+        right[node] = rightChild;
+        return node;
+    }
+
+    private void computeBall(int node, int start, int end) {
+        int offset = node * dimension;
+        for (int i = start; i < end; i++) {
+            for (int d = 0; d < dimension; d++) {
+                centroids[offset + d] += store.getValue(rows[i], d);
+            }
+        }
+        int count = Math.max(end - start, 1);
+        for (int d = 0; d < dimension; d++) {
+            centroids[offset + d] /= count;
+        }
+
+        double[] centroid = Arrays.copyOfRange(centroids, offset, offset + dimension);
+        double maxSquaredDistance = 0;
+        for (int i = start; i < end; i++) {
+            maxSquaredDistance = Math.max(maxSquaredDistance, store.squaredDistance(centroid, rows[i]));
+        }
+        radius[node] = Math.sqrt(maxSquaredDistance);
+    }
+
+    private int newNode(int start, int end) {
+        if (nodeCount == radius.length) {
+            int capacity = nodeCount * 2;
+            centroids = Arrays.copyOf(centroids, capacity * dimension);
+            radius = Arrays.copyOf(radius, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            from = Arrays.copyOf(from, capacity);
+            to = Arrays.copyOf(to, capacity);
+        }
+        from[nodeCount] = start;
+        to[nodeCount] = end;
+        return nodeCount++;
+    }
+
+    @Override
+    public void search(double[] query, TopKSelector selector) {
+        if (indexedRows > 0) {
+            search(0, query, selector);
+        }
+        store.scanLiveRows(query, indexedRows, store.size(), selector);
+    }
+
+    @Override
+    public int getIndexedRows() {
+        return indexedRows;
+    }
+
+    private void search(int node, double[] query, TopKSelector selector) {
+        if (left[node] < 0) {
+            for (int i = from[node]; i < to[node]; i++) {
+                if (!store.isDeleted(rows[i])) {
+                    selector.offer(store.squaredDistance(query, rows[i]), rows[i]);
+                }
+            }
+            return;
+        }
+
+        // Visit the child whose centroid is closer first to tighten the bound early
+        int first = left[node];
+        int second = right[node];
+        double firstDistance = distanceToCentroid(query, first);
+        double secondDistance = distanceToCentroid(query, second);
+        if (secondDistance < firstDistance) {
+            int tmpNode = first;
+            first = second;
+            second = tmpNode;
+            double tmpDistance = firstDistance;
+            firstDistance = secondDistance;
+            secondDistance = tmpDistance;
+        }
+
+        if (mayContainCandidate(first, firstDistance, selector)) {
+            search(first, query, selector);
+        }
+        if (mayContainCandidate(second, secondDistance, selector)) {
+            search(second, query, selector);
+        }
+    }
+
+    // Triangle inequality: no row in the ball is closer than centroidDistance - radius.
+    // The selector holds squared distances, so the bound is squared before comparing.
+    private boolean mayContainCandidate(int node, double centroidDistance, TopKSelector selector) {
+        double slack = RowPartitioning.BOUND_SLACK * (centroidDistance + radius[node]);
+        double bound = centroidDistance - radius[node] - slack;
+        return bound <= 0 || bound * bound <= selector.threshold();
+    }
+
+    private double distanceToCentroid(double[] query, int node) {
+        int offset = node * dimension;
+        double sum = 0.0;
+        for (int d = 0; d < dimension; d++) {
+            double diff = query[d] - centroids[offset + d];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return 4L * rows.length + 8L * centroids.length + (8L + 4L * 4) * radius.length;
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.encryptedknn.knn;
+
+// Inner loop of every distance computation: squared Euclidean distance between a query
+// and one row of a row-major feature array. Ranking only needs squared distances, so no
+// square root is taken here. Pick an implementation through DistanceKernels.get().
+//
+// Query distances support early abandoning: once a partial sum exceeds bound the kernel
+// may stop and return it. The summation order never depends on bound, so a distance that
+// is not abandoned is bit-for-bit the same as with an infinite bound.
+public interface DistanceKernel {
+    double squaredDistance(double[] query, double[] values, int offset, int dimension, double bound);
+
+    double squaredDistance(double[] query, float[] values, int offset, int dimension, double bound);
+
+    // Between two rows of the same array
+    double squaredDistance(double[] values, int offsetA, int offsetB, int dimension);
+
+    double squaredDistance(float[] values, int offsetA, int offsetB, int dimension);
+
+    String getName();
+}
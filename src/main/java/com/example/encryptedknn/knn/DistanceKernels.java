@@ -0,0 +1,51 @@
+package com.example.encryptedknn.knn;
+
+// Chooses the distance kernel once at class initialisation. The Vector API kernel is
+// compiled only by the JDK 17+ build profile (src/main/java17) and is used when the
+// running JVM is 17+ with the jdk.incubator.vector module added; otherwise, or if the
+// system property knn.distance.kernel=scalar is set, the scalar kernel is used. The
+// choice is reported as distanceKernel in GET /classify.
+public final class DistanceKernels {
+    private static final String VECTOR_KERNEL_CLASS = "com.example.encryptedknn.knn.VectorDistanceKernel";
+
+    private static final DistanceKernel KERNEL = select();
+
+    private DistanceKernels() {
+    }
+
+    public static DistanceKernel get() {
+        return KERNEL;
+    }
+
+    private static DistanceKernel select() {
+        String requested = System.getProperty("knn.distance.kernel", "auto");
+        if (!"scalar".equalsIgnoreCase(requested) && javaFeatureVersion() >= 17) {
+            try {
+                return (DistanceKernel) Class.forName(VECTOR_KERNEL_CLASS)
+                        .getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Built on an older JDK, or the JVM was started without --add-modules jdk.incubator.vector
+                if ("vector".equalsIgnoreCase(requested)) {
+                    System.err.println("Vector API kernel unavailable, using scalar kernel: " + e);
+                }
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Vector API kernel failed to load, using scalar kernel: " + e);
+            }
+        }
+        return new ScalarDistanceKernel();
+    }
+
+    // 8 for "1.8", otherwise the leading number ("17", "21.0.1")
+    private static int javaFeatureVersion() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        int dot = version.indexOf('.');
+        try {
+            return Integer.parseInt(dot >= 0 ? version.substring(0, dot) : version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.encryptedknn.knn;
+
+// Distance used to rank neighbours. Every metric takes the current k-th best distance as
+// a bound and may abandon a row as soon as its partial distance exceeds it; an abandoned
+// row always reports a value above the bound, so it can never enter the selection.
+// Values compared during the scan are "ranking distances"; report() converts one into
+// the distance shown to callers.
+public enum DistanceMetric {
+    // Ranks by squared Euclidean distance (via the distance kernel), reports the root
+    EUCLIDEAN {
+        @Override
+        public double distance(double[] query, double queryNorm, FeatureStore store, int row, double bound) {
+            return store.squaredDistance(query, row, bound);
+        }
+
+        @Override
+        public double distance(double[] query, double queryNorm, double[] features) {
+            return KERNEL.squaredDistance(query, features, 0, features.length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double report(double rankingDistance) {
+            return Math.sqrt(rankingDistance);
+        }
+    },
+    MANHATTAN {
+        @Override
+        public double distance(double[] query, double queryNorm, FeatureStore store, int row, double bound) {
+            return store.manhattanDistance(query, row, bound);
+        }
+
+        @Override
+        public double distance(double[] query, double queryNorm, double[] features) {
+            double sum = 0.0;
+            for (int i = 0; i < features.length; i++) {
+                sum += Math.abs(query[i] - features[i]);
+            }
+            return sum;
+        }
+    },
+    CHEBYSHEV {
+        @Override
+        public double distance(double[] query, double queryNorm, FeatureStore store, int row, double bound) {
+            return store.chebyshevDistance(query, row, bound);
+        }
+
+        @Override
+        public double distance(double[] query, double queryNorm, double[] features) {
+            double max = 0.0;
+            for (int i = 0; i < features.length; i++) {
+                max = Math.max(max, Math.abs(query[i] - features[i]));
+            }
+            return max;
+        }
+    },
+    // 1 - cosine similarity, using precomputed row norms. A partial dot product says
+    // nothing about the final value, so cosine cannot abandon early.
+    COSINE {
+        @Override
+        public double prepare(double[] query) {
+            double sum = 0.0;
+            for (double v : query) {
+                sum += v * v;
+            }
+            return Math.sqrt(sum);
+        }
+
+        @Override
+        public double distance(double[] query, double queryNorm, FeatureStore store, int row, double bound) {
+            double denominator = queryNorm * store.norm(row);
+            if (denominator == 0) {
+                return 1.0;
+            }
+            return 1.0 - store.dot(query, row) / denominator;
+        }
+
+        @Override
+        public double distance(double[] query, double queryNorm, double[] features) {
+            double dot = 0.0;
+            double sum = 0.0;
+            for (int i = 0; i < features.length; i++) {
+                dot += query[i] * features[i];
+                sum += features[i] * features[i];
+            }
+            double denominator = queryNorm * Math.sqrt(sum);
+            return denominator == 0 ? 1.0 : 1.0 - dot / denominator;
+        }
+    };
+
+    private static final DistanceKernel KERNEL = DistanceKernels.get();
+
+    // Per-query value passed back into distance() (the query norm for cosine)
+    public double prepare(double[] query) {
+        return 0.0;
+    }
+
+    public abstract double distance(double[] query, double queryNorm, FeatureStore store, int row, double bound);
+
+    // Ranking distance to a full-precision vector, used to re-rank quantized candidates
+    public abstract double distance(double[] query, double queryNorm, double[] features);
+
+    public double report(double rankingDistance) {
+        return rankingDistance;
+    }
+
+    // The exact indexes and the HNSW graph are built for Euclidean geometry only
+    public boolean supportsIndexes() {
+        return this == EUCLIDEAN;
+    }
+
+    public static DistanceMetric fromString(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return EUCLIDEAN;
+        }
+        switch (value.trim().toLowerCase()) {
+            case "euclidean":
+            case "l2":
+                return EUCLIDEAN;
+            case "manhattan":
+            case "l1":
+                return MANHATTAN;
+            case "chebyshev":
+            case "linf":
+                return CHEBYSHEV;
+            case "cosine":
+                return COSINE;
+            default:
+                throw new IllegalArgumentException("Unknown distance metric: " + value);
+        }
+    }
+}
@@ -1,19 +1,71 @@
 package com.example.encryptedknn.knn;
 
+import com.example.encryptedknn.dao.DatabaseConfig;
 import com.example.encryptedknn.dao.StudentDAO;
+import com.example.encryptedknn.dao.StudentRepository;
 import com.example.encryptedknn.model.Student;
-import com.example.encryptedknn.util.AESUtil;
+import com.example.encryptedknn.util.PayloadCodec;
+import com.example.encryptedknn.util.RecordCodec;
 
 import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
 public class EncryptedKNN {
-    private StudentDAO studentDAO;
+    // Rows decrypted per parallel task; decryption costs far more per row than a distance
+    private static final int DECRYPT_CHUNK_ROWS = 256;
+    // Decrypt chunks allowed in flight per pool worker while streaming the table
+    private static final int PIPELINE_CHUNKS_PER_WORKER = 2;
+
+    // Batch tiling: training rows per block (a few hundred KB of features, sized to stay
+    // in L2) and queries per parallel task
+    private static final int BATCH_TRAINING_BLOCK = 1024;
+    private static final int BATCH_QUERY_BLOCK = 64;
+
+    // Quantized stores select k * factor candidates for exact re-ranking
+    public static final int DEFAULT_RERANK_FACTOR = 4;
+
+    // Added to distances before inverting them for weighted scores, so exact matches
+    // get a large but finite weight
+    static final double WEIGHT_EPSILON = 1e-9;
+
+    // Decryption output per thread, grown to the largest row seen
+    private static final ThreadLocal<byte[]> PLAINTEXT_BUFFER = ThreadLocal.withInitial(() -> new byte[256]);
+
+    // Label strings of binary payloads per decrypting thread; label sets are small
+    private static final ThreadLocal<PayloadCodec.LabelInterner> LABELS =
+            ThreadLocal.withInitial(PayloadCodec.LabelInterner::new);
+
+    // One selector per request thread, reset for every scan
+    private static final ThreadLocal<TopKSelector> SELECTOR = ThreadLocal.withInitial(() -> new TopKSelector(16));
+
+    private TrainingSetCache trainingSetCache;
     private int k;
+    // In-memory representation of decrypted features
+    private volatile FeatureEncoding featureEncoding = FeatureEncoding.FLOAT64;
+    private volatile int rerankFactor = DEFAULT_RERANK_FACTOR;
+    private volatile IndexType indexType = IndexType.BRUTE_FORCE;
+    // HNSW graph parameters for approximate queries
+    private volatile int hnswM = HnswIndex.DEFAULT_M;
+    private volatile int hnswEfConstruction = HnswIndex.DEFAULT_EF_CONSTRUCTION;
+    private volatile ParallelScanner scanner = ParallelScanner.sequential();
+    // Rows per round trip when streaming the table on a cache fill
+    private volatile int fetchSize = StudentDAO.DEFAULT_FETCH_SIZE;
+    // Partition of the table this instance serves, or null for the whole table
+    private volatile ShardSpec shard;
+    private final QueryResultCache resultCache = new QueryResultCache();
 
     public EncryptedKNN(int k) {
+        this(k, TrainingSetCache.shared());
+    }
+
+    public EncryptedKNN(int k, TrainingSetCache trainingSetCache) {
         this.k = k;
-        this.studentDAO = new StudentDAO();
+        this.trainingSetCache = trainingSetCache;
     }
 
     // Simple data point representation for KNN
@@ -29,28 +81,34 @@ public class EncryptedKNN {
         }
     }
 
-    // Distance calculation (Euclidean distance)
-    private double calculateDistance(double[] point1, double[] point2) {
-        if (point1.length != point2.length) {
-            throw new IllegalArgumentException("Feature vectors must have the same length");
-        }
-
-        double sum = 0.0;
-        for (int i = 0; i < point1.length; i++) {
-            sum += Math.pow(point1[i] - point2[i], 2);
-        }
-        return Math.sqrt(sum);
+    // Decrypt and parse student data into feature vector
+    private static DataPoint decryptStudentData(Student student, SecretKey key) {
+        return decryptStudentData(student, key, true);
     }
 
-    // Decrypt and parse student data into feature vector
-    private DataPoint decryptStudentData(Student student, SecretKey key) {
+    // Rows encrypted under other keys fail here by design; logFailures=false keeps that quiet
+    static DataPoint decryptStudentData(Student student, SecretKey key, boolean logFailures) {
         try {
-            // Decrypt the data
-            byte[] decryptedData = AESUtil.decrypt(student.getDataEncrypted(), key, student.getIv());
-            byte[] decryptedName = AESUtil.decrypt(student.getNameEncrypted(), key, student.getIv());
+            // Decrypt only the feature payload into this thread's buffer; the name is not
+            // needed for classification
+            int maxLength = RecordCodec.maxDataLength(student);
+            byte[] buffer = PLAINTEXT_BUFFER.get();
+            if (buffer.length < maxLength) {
+                buffer = new byte[Math.max(maxLength, buffer.length * 2)];
+                PLAINTEXT_BUFFER.set(buffer);
+            }
+            int length = RecordCodec.decryptDataInto(student, key, buffer);
+
+            // Binary payloads decode straight from the buffer; the row's vector is the only
+            // allocation, and the label is shared with earlier rows that carry the same one
+            if (PayloadCodec.isBinary(buffer, length)) {
+                double[] features = new double[PayloadCodec.dimension(buffer, length)];
+                int labelOffset = PayloadCodec.decodeFeatures(buffer, length, features);
+                String label = LABELS.get().label(buffer, length, labelOffset);
+                return new DataPoint(features, label, student.getStudentId());
+            }
 
-            String dataStr = new String(decryptedData);
-            String name = new String(decryptedName);
+            String dataStr = new String(buffer, 0, length, StandardCharsets.UTF_8);
 
             // Parse the data string into features
             // Expected format: "feature1,feature2,feature3,...,label"
@@ -69,113 +127,503 @@ public class EncryptedKNN {
             return new DataPoint(features, label, student.getStudentId());
 
         } catch (Exception e) {
-            System.err.println("Error decrypting data for student " + student.getStudentId() + ": " + e.getMessage());
+            if (logFailures) {
+                System.err.println("Error decrypting data for student " + student.getStudentId() + ": " + e.getMessage());
+            }
             return null;
         }
     }
 
-    // Classify a new data point using K-NN
-    public String classify(double[] queryFeatures, SecretKey key) {
-        List<Student> allStudents = studentDAO.getAllStudents();
-        List<DataPoint> trainingData = new ArrayList<>();
+    // Decrypted training data for this key, served from the cache when possible
+    private TrainingSet loadTrainingSet(SecretKey key) {
+        return trainingSetCache.get(key, () -> decryptAll(key));
+    }
+
+    // Stream, decrypt and append every student row (of this shard, if one is set); rows
+    // that fail to decrypt are skipped. The request thread reads rows off the cursor and
+    // hands each chunk to the scanner's pool for decryption while the database sends the
+    // next; at most a few chunks per worker are in flight, so only those are held
+    // encrypted. Chunks are appended in table order so row indices stay deterministic.
+    private TrainingSet decryptAll(SecretKey key) {
+        ShardSpec owned = shard;
+        ParallelScanner pool = scanner;
+        Semaphore inFlight = new Semaphore(PIPELINE_CHUNKS_PER_WORKER * pool.getParallelism());
+        ArrayDeque<Future<DataPoint[]>> chunks = new ArrayDeque<>();
+        List<Student> pending = new ArrayList<>(DECRYPT_CHUNK_ROWS);
+        FeatureStore.Builder builder = new FeatureStore.Builder(featureEncoding);
+
+        // A shard's rows are filtered by the repository, so other shards' ciphertext is never sent
+        Consumer<Student> consumer = student -> {
+            pending.add(student);
+            if (pending.size() == DECRYPT_CHUNK_ROWS) {
+                chunks.add(submitDecrypt(pool, new ArrayList<>(pending), key, inFlight));
+                pending.clear();
+                // Append finished chunks now so their points do not wait for the whole scan
+                while (!chunks.isEmpty() && chunks.peek().isDone()) {
+                    appendChunk(builder, chunks.poll());
+                }
+            }
+        };
+        StudentRepository repository = DatabaseConfig.studentRepository();
+        boolean complete = owned != null
+                ? repository.streamTrainingRows(fetchSize, owned.getShardIndex(), owned.getShardCount(), consumer)
+                : repository.streamTrainingRows(fetchSize, consumer);
+        if (!complete) {
+            for (Future<DataPoint[]> chunk : chunks) {
+                chunk.cancel(false);
+            }
+            throw new IllegalStateException("Training data scan failed; see the log for the database error");
+        }
+
+        if (!pending.isEmpty()) {
+            chunks.add(submitDecrypt(pool, pending, key, inFlight));
+        }
+        while (!chunks.isEmpty()) {
+            appendChunk(builder, chunks.poll());
+        }
+        return new TrainingSet(builder.build(), indexType);
+    }
+
+    // Blocks while the pipeline is full, which pauses reading from the cursor
+    private static Future<DataPoint[]> submitDecrypt(ParallelScanner pool, List<Student> students, SecretKey key,
+                                                     Semaphore inFlight) {
+        inFlight.acquireUninterruptibly();
+        return pool.submit(() -> {
+            try {
+                DataPoint[] points = new DataPoint[students.size()];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = decryptStudentData(students.get(i), key);
+                }
+                return points;
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private static void appendChunk(FeatureStore.Builder builder, Future<DataPoint[]> chunk) {
+        DataPoint[] points;
+        try {
+            points = chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while decrypting training data", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Decryption failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        for (DataPoint point : points) {
+            if (point != null && !builder.add(point.features, point.label, point.studentId)) {
+                System.err.println("Skipping student " + point.studentId + ": expected the same number of features as other rows");
+            }
+        }
+    }
+
+    // Select the k nearest rows, through the index when one was built, otherwise by scan.
+    // The selector is reused per thread, so callers must read its contents before the
+    // next search on the same thread. On a quantized store the search keeps k * factor
+    // candidates and re-ranks them exactly; the full-precision features it fetched are
+    // put into exactRows when that map is non-null.
+    private TopKSelector selectNearest(double[] queryFeatures, TrainingSet trainingSet, QueryOptions options,
+                                       int k, SecretKey key, Map<Integer, double[]> exactRows) {
+        FeatureStore store = trainingSet.getStore();
+        if (!store.isQuantized()) {
+            return searchCandidates(queryFeatures, trainingSet, options, Math.min(k, store.liveSize()));
+        }
+
+        TopKSelector candidates = searchCandidates(queryFeatures, trainingSet, options, candidateCount(store, k));
+        int[] rows = new int[candidates.size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = candidates.indexAt(i);
+        }
+        Map<Integer, double[]> fetched = fetchExactRows(store, rows, key);
+        if (exactRows != null) {
+            exactRows.putAll(fetched);
+        }
+        candidates.reset(Math.min(k, store.liveSize()));
+        rerank(queryFeatures, rows, fetched, options.getMetric(), candidates);
+        return candidates;
+    }
+
+    private int candidateCount(FeatureStore store, int k) {
+        return (int) Math.min((long) k * Math.max(rerankFactor, 1), store.liveSize());
+    }
+
+    // Offer each candidate row into the (reset) selector by its exact distance, then sort
+    private void rerank(double[] query, int[] rows, Map<Integer, double[]> exactRows, DistanceMetric metric,
+                        TopKSelector into) {
+        double queryNorm = metric.prepare(query);
+        for (int row : rows) {
+            into.offer(metric.distance(query, queryNorm, exactRows.get(row)), row);
+        }
+        into.sort();
+    }
+
+    // Full-precision features for the given rows, decrypted from a batched lookup of just
+    // the training columns. Rows that were deleted or changed shape since the store was
+    // cached fall back to their quantized values, so a stale cache degrades precision
+    // rather than failing the query. A failed lookup does fail it: silently ranking by
+    // quantized values would return different neighbours with no sign of why.
+    //
+    // This lookup is why a quantized encoding gives up the cache's usual guarantee that a
+    // repeated query costs only the distance scan: every quantized query makes one read of
+    // the student repository (a database round trip with student-store=mysql).
+    private Map<Integer, double[]> fetchExactRows(FeatureStore store, int[] rows, SecretKey key) {
+        Map<String, Integer> rowsById = new HashMap<>();
+        for (int row : rows) {
+            rowsById.put(store.getStudentId(row), row);
+        }
 
-        // Decrypt all student data
-        for (Student student : allStudents) {
+        List<Student> students = DatabaseConfig.studentRepository()
+                .getTrainingRowsByStudentIds(new ArrayList<>(rowsById.keySet()));
+        if (students == null) {
+            throw new IllegalStateException("Could not read full-precision rows to re-rank quantized candidates");
+        }
+        Map<Integer, double[]> exactRows = new HashMap<>();
+        for (Student student : students) {
             DataPoint point = decryptStudentData(student, key);
-            if (point != null) {
-                trainingData.add(point);
+            if (point != null && point.features.length == store.getDimension()) {
+                exactRows.put(rowsById.get(student.getStudentId()), point.features);
+            }
+        }
+        for (int row : rows) {
+            if (!exactRows.containsKey(row)) {
+                exactRows.put(row, store.getRow(row));
             }
         }
+        return exactRows;
+    }
 
-        if (trainingData.isEmpty()) {
-            return "UNKNOWN";
+    // Select the n nearest rows by the store's own (possibly quantized) values
+    private TopKSelector searchCandidates(double[] queryFeatures, TrainingSet trainingSet, QueryOptions options,
+                                          int n) {
+        FeatureStore store = trainingSet.getStore();
+        if (queryFeatures.length != store.getDimension()) {
+            throw new IllegalArgumentException("Feature vectors must have the same length");
         }
 
-        // Calculate distances and find k nearest neighbors
-        List<DistanceLabel> distances = new ArrayList<>();
-        for (DataPoint point : trainingData) {
-            double distance = calculateDistance(queryFeatures, point.features);
-            distances.add(new DistanceLabel(distance, point.label));
+        DistanceMetric metric = options.getMetric();
+        checkSupported(options);
+
+        TopKSelector selector = SELECTOR.get();
+        selector.reset(n);
+
+        if (options.getMode() == SearchMode.APPROX) {
+            trainingSet.getApproximateIndex(hnswM, hnswEfConstruction)
+                    .search(queryFeatures, options.getEfSearch(), selector);
+            selector.sort();
+            return selector;
+        }
+
+        NeighborIndex index = trainingSet.getIndex();
+        if (index != null && metric.supportsIndexes()) {
+            index.search(queryFeatures, selector);
+            selector.sort();
+            return selector;
         }
 
-        // Sort by distance
-        distances.sort(Comparator.comparingDouble(dl -> dl.distance));
+        // Linear scan; each row may be abandoned once it cannot beat the current k-th best
+        double queryNorm = metric.prepare(queryFeatures);
+        scanner.scan(store.size(), n, (from, to, into) -> {
+            for (int row = from; row < to; row++) {
+                if (!store.isDeleted(row)) {
+                    into.offer(metric.distance(queryFeatures, queryNorm, store, row, into.threshold()), row);
+                }
+            }
+        }, selector);
 
-        // Take k nearest neighbors
-        Map<String, Integer> labelCounts = new HashMap<>();
-        int actualK = Math.min(k, distances.size());
+        selector.sort();
+        return selector;
+    }
 
-        for (int i = 0; i < actualK; i++) {
-            String label = distances.get(i).label;
-            labelCounts.put(label, labelCounts.getOrDefault(label, 0) + 1);
+    private static void checkSupported(QueryOptions options) {
+        if (options.getMode() == SearchMode.APPROX && !options.getMetric().supportsIndexes()) {
+            throw new IllegalArgumentException("Approximate search only supports the euclidean metric");
         }
+    }
 
+    // Classify a new data point using K-NN
+    public String classify(double[] queryFeatures, SecretKey key) {
+        return classify(queryFeatures, key, QueryOptions.exact());
+    }
+
+    public String classify(double[] queryFeatures, SecretKey key, QueryOptions options) {
+        if (resultCache.isEnabled()) {
+            return classifyWithNeighbors(queryFeatures, key, options).predictedLabel;
+        }
+        TrainingSet trainingSet = loadTrainingSet(key);
+        trainingSet.readLock().lock();
+        try {
+            FeatureStore store = trainingSet.getStore();
+
+            if (store.isEmpty()) {
+                return "UNKNOWN";
+            }
+
+            TopKSelector nearest = selectNearest(queryFeatures, trainingSet, options, k, key, null);
+            return vote(store, nearest);
+        } finally {
+            trainingSet.readLock().unlock();
+        }
+    }
+
+    // Majority vote over the selected neighbours using the dictionary-encoded labels
+    private String vote(FeatureStore store, TopKSelector nearest) {
+        return majority(store, countVotes(store, nearest));
+    }
+
+    private int[] countVotes(FeatureStore store, TopKSelector nearest) {
+        int[] labelCounts = new int[store.getLabelCount()];
+        for (int i = 0; i < nearest.size(); i++) {
+            labelCounts[store.getLabelId(nearest.indexAt(i))]++;
+        }
+        return labelCounts;
+    }
+
+    private String majority(FeatureStore store, int[] labelCounts) {
         // Return the most frequent label
-        return labelCounts.entrySet().stream()
-                .max(Map.Entry.comparingByValue())
-                .map(Map.Entry::getKey)
-                .orElse("UNKNOWN");
+        int best = -1;
+        for (int labelId = 0; labelId < labelCounts.length; labelId++) {
+            if (labelCounts[labelId] > 0 && (best < 0 || labelCounts[labelId] > labelCounts[best])) {
+                best = labelId;
+            }
+        }
+        return best < 0 ? "UNKNOWN" : store.getLabelName(best);
     }
 
-    // Get k nearest neighbors with their details
-    public List<NeighborInfo> getKNearestNeighbors(double[] queryFeatures, SecretKey key) {
-        List<Student> allStudents = studentDAO.getAllStudents();
-        List<DataPoint> trainingData = new ArrayList<>();
+    // Classify many query vectors against one decryption of the training set
+    public String[] classifyBatch(double[][] queries, SecretKey key) {
+        return classifyBatch(queries, key, QueryOptions.exact());
+    }
 
-        // Decrypt all student data
-        for (Student student : allStudents) {
-            DataPoint point = decryptStudentData(student, key);
-            if (point != null) {
-                trainingData.add(point);
+    // Exact brute-force batches are tiled: each block of training rows is streamed once per
+    // block of queries while it is hot in cache, instead of once per query. Query blocks run
+    // in parallel. With an index or approximate mode, each query is searched on its own.
+    public String[] classifyBatch(double[][] queries, SecretKey key, QueryOptions options) {
+        String[] labels = new String[queries.length];
+        TrainingSet trainingSet = loadTrainingSet(key);
+        trainingSet.readLock().lock();
+        try {
+            FeatureStore store = trainingSet.getStore();
+
+            if (store.isEmpty()) {
+                Arrays.fill(labels, "UNKNOWN");
+                return labels;
             }
+            for (double[] query : queries) {
+                if (query.length != store.getDimension()) {
+                    throw new IllegalArgumentException("Feature vectors must have the same length");
+                }
+            }
+
+            checkSupported(options);
+            DistanceMetric metric = options.getMetric();
+
+            if (options.getMode() == SearchMode.APPROX || (trainingSet.getIndex() != null && metric.supportsIndexes())) {
+                scanner.forEach(queries.length, BATCH_QUERY_BLOCK, (from, to) -> {
+                    for (int q = from; q < to; q++) {
+                        labels[q] = vote(store, selectNearest(queries[q], trainingSet, options, k, key, null));
+                    }
+                });
+                return labels;
+            }
+
+            int actualK = Math.min(k, store.liveSize());
+            int candidateK = store.isQuantized() ? candidateCount(store, k) : actualK;
+            scanner.forEach(queries.length, BATCH_QUERY_BLOCK, (from, to) -> {
+                TopKSelector[] selectors = new TopKSelector[to - from];
+                double[] queryNorms = new double[to - from];
+                for (int q = 0; q < selectors.length; q++) {
+                    selectors[q] = new TopKSelector(candidateK);
+                    queryNorms[q] = metric.prepare(queries[from + q]);
+                }
+
+                for (int blockStart = 0; blockStart < store.size(); blockStart += BATCH_TRAINING_BLOCK) {
+                    int blockEnd = Math.min(blockStart + BATCH_TRAINING_BLOCK, store.size());
+                    for (int q = from; q < to; q++) {
+                        TopKSelector selector = selectors[q - from];
+                        double queryNorm = queryNorms[q - from];
+                        for (int row = blockStart; row < blockEnd; row++) {
+                            if (!store.isDeleted(row)) {
+                                selector.offer(metric.distance(queries[q], queryNorm, store, row, selector.threshold()), row);
+                            }
+                        }
+                    }
+                }
+
+                for (TopKSelector selector : selectors) {
+                    selector.sort();
+                }
+                if (store.isQuantized()) {
+                    rerankBlock(queries, from, selectors, store, key, metric, actualK);
+                }
+                for (int q = from; q < to; q++) {
+                    labels[q] = vote(store, selectors[q - from]);
+                }
+            });
+            return labels;
+        } finally {
+            trainingSet.readLock().unlock();
         }
+    }
 
-        if (trainingData.isEmpty()) {
-            return new ArrayList<>();
+    // Re-rank a block of quantized candidate lists with one lookup for all their rows,
+    // replacing each selector by one holding the exact top k
+    private void rerankBlock(double[][] queries, int from, TopKSelector[] selectors, FeatureStore store,
+                             SecretKey key, DistanceMetric metric, int actualK) {
+        Set<Integer> union = new LinkedHashSet<>();
+        for (TopKSelector selector : selectors) {
+            for (int i = 0; i < selector.size(); i++) {
+                union.add(selector.indexAt(i));
+            }
+        }
+        int[] allRows = new int[union.size()];
+        int n = 0;
+        for (int row : union) {
+            allRows[n++] = row;
         }
+        Map<Integer, double[]> exactRows = fetchExactRows(store, allRows, key);
 
-        // Calculate distances
-        List<DistanceLabelInfo> distances = new ArrayList<>();
-        for (DataPoint point : trainingData) {
-            double distance = calculateDistance(queryFeatures, point.features);
-            distances.add(new DistanceLabelInfo(distance, point.label, point.studentId, point.features));
+        for (int q = 0; q < selectors.length; q++) {
+            int[] rows = new int[selectors[q].size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = selectors[q].indexAt(i);
+            }
+            selectors[q] = new TopKSelector(actualK);
+            rerank(queries[from + q], rows, exactRows, metric, selectors[q]);
         }
+    }
 
-        // Sort by distance and take k nearest
-        distances.sort(Comparator.comparingDouble(dli -> dli.distance));
-        int actualK = Math.min(k, distances.size());
+    // Get k nearest neighbors with their details
+    public List<NeighborInfo> getKNearestNeighbors(double[] queryFeatures, SecretKey key) {
+        return getKNearestNeighbors(queryFeatures, key, QueryOptions.exact());
+    }
 
-        List<NeighborInfo> neighbors = new ArrayList<>();
-        for (int i = 0; i < actualK; i++) {
-            DistanceLabelInfo dli = distances.get(i);
-            neighbors.add(new NeighborInfo(dli.studentId, dli.label, dli.distance, dli.features));
+    public List<NeighborInfo> getKNearestNeighbors(double[] queryFeatures, SecretKey key, QueryOptions options) {
+        if (resultCache.isEnabled()) {
+            return new ArrayList<>(classifyWithNeighbors(queryFeatures, key, options).neighbors);
         }
+        TrainingSet trainingSet = loadTrainingSet(key);
+        trainingSet.readLock().lock();
+        try {
+            FeatureStore store = trainingSet.getStore();
 
+            if (store.isEmpty()) {
+                return new ArrayList<>();
+            }
+
+            Map<Integer, double[]> exactRows = new HashMap<>();
+            TopKSelector nearest = selectNearest(queryFeatures, trainingSet, options, k, key, exactRows);
+            return toNeighborInfos(store, nearest, exactRows, options.getMetric());
+        } finally {
+            trainingSet.readLock().unlock();
+        }
+    }
+
+    private List<NeighborInfo> toNeighborInfos(FeatureStore store, TopKSelector nearest,
+                                               Map<Integer, double[]> exactRows, DistanceMetric metric) {
+        List<NeighborInfo> neighbors = new ArrayList<>(nearest.size());
+        for (int i = 0; i < nearest.size(); i++) {
+            int row = nearest.indexAt(i);
+            double[] features = exactRows.containsKey(row) ? exactRows.get(row) : store.getRow(row);
+            neighbors.add(new NeighborInfo(store.getStudentId(row), store.getLabel(row),
+                    metric.report(nearest.distanceAt(i)), features));
+        }
         return neighbors;
     }
 
-    // Helper classes
-    private static class DistanceLabel {
-        double distance;
-        String label;
+    // Classify and return the neighbours behind the prediction from a single search
+    public ClassificationResult classifyWithNeighbors(double[] queryFeatures, SecretKey key) {
+        return classifyWithNeighbors(queryFeatures, key, QueryOptions.exact());
+    }
 
-        DistanceLabel(double distance, String label) {
-            this.distance = distance;
-            this.label = label;
+    // Served from the result cache when enabled; the returned result may be shared with
+    // other callers, so it must not be modified
+    public ClassificationResult classifyWithNeighbors(double[] queryFeatures, SecretKey key, QueryOptions options) {
+        return classifyWithNeighbors(queryFeatures, key, options, k);
+    }
+
+    // With an explicit k instead of the configured one, for callers that merge neighbours
+    // from several sources (see ShardCoordinator)
+    public ClassificationResult classifyWithNeighbors(double[] queryFeatures, SecretKey key, QueryOptions options, int k) {
+        if (!resultCache.isEnabled()) {
+            return computeClassification(queryFeatures, key, options, k);
         }
+        // Read the version before searching so a concurrent write makes the entry stale
+        long datasetVersion = StudentDAO.getDatasetVersion();
+        String cacheKey = resultCache.keyFor(key, queryFeatures, k, options);
+        ClassificationResult result = resultCache.get(cacheKey, datasetVersion);
+        if (result == null) {
+            result = computeClassification(queryFeatures, key, options, k);
+            resultCache.put(cacheKey, datasetVersion, result);
+        }
+        return result;
     }
 
-    private static class DistanceLabelInfo {
-        double distance;
-        String label;
-        String studentId;
-        double[] features;
+    private ClassificationResult computeClassification(double[] queryFeatures, SecretKey key, QueryOptions options,
+                                                       int k) {
+        TrainingSet trainingSet = loadTrainingSet(key);
+        trainingSet.readLock().lock();
+        try {
+            FeatureStore store = trainingSet.getStore();
+            ClassificationResult result = new ClassificationResult();
 
-        DistanceLabelInfo(double distance, String label, String studentId, double[] features) {
-            this.distance = distance;
-            this.label = label;
-            this.studentId = studentId;
-            this.features = features;
+            if (store.isEmpty()) {
+                result.predictedLabel = "UNKNOWN";
+                return result;
+            }
+
+            Map<Integer, double[]> exactRows = new HashMap<>();
+            TopKSelector nearest = selectNearest(queryFeatures, trainingSet, options, k, key, exactRows);
+
+            int[] labelCounts = countVotes(store, nearest);
+            result.predictedLabel = majority(store, labelCounts);
+            for (int labelId = 0; labelId < labelCounts.length; labelId++) {
+                if (labelCounts[labelId] > 0) {
+                    result.voteCounts.put(store.getLabelName(labelId), labelCounts[labelId]);
+                }
+            }
+            result.neighbors = toNeighborInfos(store, nearest, exactRows, options.getMetric());
+
+            // Inverse-distance weights, accumulated per label in neighbour order
+            for (NeighborInfo neighbor : result.neighbors) {
+                double weight = 1.0 / (neighbor.distance + WEIGHT_EPSILON);
+                Double score = result.weightedScores.get(neighbor.label);
+                result.weightedScores.put(neighbor.label, score == null ? weight : score + weight);
+            }
+            return result;
+        } finally {
+            trainingSet.readLock().unlock();
+        }
+    }
+
+    // Leave-one-out accuracy and confusion matrices for every k from 1 to kMax, from one
+    // neighbour search per training row
+    public LeaveOneOutEvaluator.Result evaluate(SecretKey key, int kMax, DistanceMetric metric) {
+        TrainingSet trainingSet = loadTrainingSet(key);
+        trainingSet.readLock().lock();
+        try {
+            return new LeaveOneOutEvaluator(scanner).evaluate(trainingSet, kMax, metric);
+        } finally {
+            trainingSet.readLock().unlock();
+        }
+    }
+
+    // Prediction plus what it was based on: votes per label (in label dictionary order),
+    // inverse-distance-weighted scores per label, and the neighbours nearest first
+    public static class ClassificationResult {
+        public String predictedLabel;
+        public Map<String, Integer> voteCounts = new LinkedHashMap<>();
+        public Map<String, Double> weightedScores = new LinkedHashMap<>();
+        public List<NeighborInfo> neighbors = new ArrayList<>();
+
+        @Override
+        public String toString() {
+            return "ClassificationResult{" +
+                    "predictedLabel='" + predictedLabel + '\'' +
+                    ", voteCounts=" + voteCounts +
+                    ", weightedScores=" + weightedScores +
+                    ", neighbors=" + neighbors +
+                    '}';
         }
     }
 
@@ -212,4 +660,109 @@ public class EncryptedKNN {
     public void setK(int k) {
         this.k = k;
     }
+
+    public boolean isSinglePrecision() {
+        return featureEncoding == FeatureEncoding.FLOAT32;
+    }
+
+    public void setSinglePrecision(boolean singlePrecision) {
+        setFeatureEncoding(singlePrecision ? FeatureEncoding.FLOAT32 : FeatureEncoding.FLOAT64);
+    }
+
+    public FeatureEncoding getFeatureEncoding() {
+        return featureEncoding;
+    }
+
+    // Switching encoding drops cached training sets so they are rebuilt in the new layout
+    public void setFeatureEncoding(FeatureEncoding featureEncoding) {
+        if (this.featureEncoding != featureEncoding) {
+            this.featureEncoding = featureEncoding;
+            trainingSetCache.invalidateAll();
+            resultCache.invalidateAll();
+        }
+    }
+
+    public int getRerankFactor() {
+        return rerankFactor;
+    }
+
+    public void setRerankFactor(int rerankFactor) {
+        this.rerankFactor = rerankFactor;
+        resultCache.invalidateAll();
+    }
+
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    // Changing the index type drops cached training sets so the new index is built on refill
+    public void setIndexType(IndexType indexType) {
+        if (this.indexType != indexType) {
+            this.indexType = indexType;
+            trainingSetCache.invalidateAll();
+            resultCache.invalidateAll();
+        }
+    }
+
+    public int getHnswM() {
+        return hnswM;
+    }
+
+    public int getHnswEfConstruction() {
+        return hnswEfConstruction;
+    }
+
+    // Changing graph parameters drops cached training sets so graphs are rebuilt on demand
+    public void setHnswParameters(int m, int efConstruction) {
+        if (this.hnswM != m || this.hnswEfConstruction != efConstruction) {
+            this.hnswM = m;
+            this.hnswEfConstruction = efConstruction;
+            trainingSetCache.invalidateAll();
+            resultCache.invalidateAll();
+        }
+    }
+
+    public ShardSpec getShard() {
+        return shard;
+    }
+
+    // Serve only one partition of the table, as a shard worker does. Cached training sets
+    // are dropped so they reload with the new partition; an instance with a shard should
+    // have a TrainingSetCache of its own, since change notifications are not filtered.
+    public void setShard(ShardSpec shard) {
+        this.shard = shard;
+        trainingSetCache.invalidateAll();
+        resultCache.invalidateAll();
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public ParallelScanner getParallelScanner() {
+        return scanner;
+    }
+
+    // Replace the scanner used for distance scans and decryption, releasing the old pool
+    public void setParallelScanner(ParallelScanner scanner) {
+        ParallelScanner previous = this.scanner;
+        this.scanner = scanner;
+        previous.shutdown();
+    }
+
+    public void shutdown() {
+        scanner.shutdown();
+    }
+
+    public TrainingSetCache getTrainingSetCache() {
+        return trainingSetCache;
+    }
+
+    public QueryResultCache getResultCache() {
+        return resultCache;
+    }
 }
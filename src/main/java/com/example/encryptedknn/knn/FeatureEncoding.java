@@ -0,0 +1,48 @@
+package com.example.encryptedknn.knn;
+
+// In-memory representation of cached feature values. The quantized encodings trade
+// precision for footprint; searches over them score candidates approximately and the
+// final top k is re-ranked against the full-precision stored values.
+public enum FeatureEncoding {
+    FLOAT64(8),
+    FLOAT32(4),
+    // IEEE 754 half precision
+    FLOAT16(2),
+    // Per-dimension scalar quantization to 256 levels between the column min and max
+    INT8(1);
+
+    private final int bytesPerValue;
+
+    FeatureEncoding(int bytesPerValue) {
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    public int getBytesPerValue() {
+        return bytesPerValue;
+    }
+
+    public boolean isQuantized() {
+        return this == FLOAT16 || this == INT8;
+    }
+
+    public static FeatureEncoding fromString(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return FLOAT64;
+        }
+        switch (value.trim().toLowerCase()) {
+            case "float64":
+            case "double":
+                return FLOAT64;
+            case "float32":
+            case "float":
+                return FLOAT32;
+            case "float16":
+            case "half":
+                return FLOAT16;
+            case "int8":
+                return INT8;
+            default:
+                throw new IllegalArgumentException("Unknown feature encoding: " + value);
+        }
+    }
+}
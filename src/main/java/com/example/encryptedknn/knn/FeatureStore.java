@@ -0,0 +1,531 @@
+package com.example.encryptedknn.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Column-oriented store for a decrypted training set. All feature values live in one
+// contiguous row-major array (N x D), labels are dictionary-encoded into an int[] and
+// student ids are kept in a parallel array, so a distance scan walks memory linearly.
+// In single precision mode the values are held as float[] to halve the footprint; the
+// FLOAT16 and INT8 encodings hold quantized codes instead (see QuantizedFeatures).
+//
+// Single-row changes are applied in place: appended rows go to the end (the arrays grow
+// geometrically) and removed rows are tombstoned until compact() copies the live rows
+// into a fresh store. Row numbers never change within one store. Mutation methods are
+// not thread-safe; TrainingSet serialises them against searches with a read/write lock.
+public class FeatureStore {
+    private static final DistanceKernel KERNEL = DistanceKernels.get();
+    // Dimensions between early-abandon checks in the non-kernel metrics
+    private static final int ABANDON_CHECK_INTERVAL = 8;
+
+    private int dimension;
+    // Rows in the store including tombstoned ones; row numbers are 0..size-1
+    private int size;
+    private double[] values;
+    private float[] floatValues;
+    private final QuantizedFeatures quantized;
+    private final FeatureEncoding encoding;
+    private int[] labelIds;
+    private String[] labels;
+    private String[] studentIds;
+    // Estimated bytes of the student ID strings in rows 0..size-1, kept as rows are appended
+    private long studentIdBytes;
+    // Row L2 norms for cosine distance, computed on first use
+    private volatile double[] norms;
+
+    // Tombstones, allocated on the first delete
+    private boolean[] deleted;
+    private int deletedCount;
+    // Incremented by every append and delete
+    private int modCount;
+    // Lookup tables for in-place changes, built on the first one
+    private Map<String, Integer> rowsById;
+    private Map<String, Integer> labelIndex;
+
+    private FeatureStore(int dimension, int size, FeatureEncoding encoding, double[] values, float[] floatValues,
+                         QuantizedFeatures quantized, int[] labelIds, String[] labels, String[] studentIds) {
+        this.dimension = dimension;
+        this.size = size;
+        this.encoding = encoding;
+        this.values = values;
+        this.floatValues = floatValues;
+        this.quantized = quantized;
+        this.labelIds = labelIds;
+        this.labels = labels;
+        this.studentIds = studentIds;
+        for (int row = 0; row < size; row++) {
+            studentIdBytes += studentIdBytes(studentIds[row]);
+        }
+    }
+
+    // Number of row slots, including tombstoned rows; scans iterate 0..size()-1 and skip
+    // rows for which isDeleted() is true
+    public int size() {
+        return size;
+    }
+
+    public int liveSize() {
+        return size - deletedCount;
+    }
+
+    public boolean isEmpty() {
+        return liveSize() == 0;
+    }
+
+    public boolean isDeleted(int row) {
+        return deleted != null && deleted[row];
+    }
+
+    public int getDeletedCount() {
+        return deletedCount;
+    }
+
+    public int getModCount() {
+        return modCount;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public boolean isSinglePrecision() {
+        return floatValues != null;
+    }
+
+    public FeatureEncoding getEncoding() {
+        return encoding;
+    }
+
+    // True when values are quantized approximations, so distances need exact re-ranking
+    public boolean isQuantized() {
+        return quantized != null;
+    }
+
+    // Backing arrays for tight scan loops; row r starts at offset r * dimension.
+    // At most one of the two is non-null depending on the encoding (neither when quantized).
+    public double[] getValues() {
+        return values;
+    }
+
+    public float[] getFloatValues() {
+        return floatValues;
+    }
+
+    public double getValue(int row, int column) {
+        int offset = row * dimension + column;
+        if (values != null) {
+            return values[offset];
+        }
+        return floatValues != null ? floatValues[offset] : quantized.get(offset);
+    }
+
+    // Copy one row out as a double[] (used for results, not during scans)
+    public double[] getRow(int row) {
+        double[] features = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            features[i] = getValue(row, i);
+        }
+        return features;
+    }
+
+    // Squared Euclidean distance between a query vector and one stored row. Rankings
+    // compare squared distances; take the square root only for reported results.
+    public double squaredDistance(double[] query, int row) {
+        return squaredDistance(query, row, Double.POSITIVE_INFINITY);
+    }
+
+    // As above, but may stop early and return any value above bound once the partial sum
+    // exceeds it. Results that do not exceed bound are identical to the unbounded call.
+    public double squaredDistance(double[] query, int row, double bound) {
+        int offset = row * dimension;
+        if (values != null) {
+            return KERNEL.squaredDistance(query, values, offset, dimension, bound);
+        }
+        return floatValues != null
+                ? KERNEL.squaredDistance(query, floatValues, offset, dimension, bound)
+                : quantized.squaredDistance(query, offset, bound);
+    }
+
+    // Squared Euclidean distance between two stored rows
+    public double squaredDistance(int rowA, int rowB) {
+        if (values != null) {
+            return KERNEL.squaredDistance(values, rowA * dimension, rowB * dimension, dimension);
+        }
+        return floatValues != null
+                ? KERNEL.squaredDistance(floatValues, rowA * dimension, rowB * dimension, dimension)
+                : quantized.squaredDistance(rowA * dimension, rowB * dimension);
+    }
+
+    // Manhattan (L1) distance, abandoned once the partial sum exceeds bound
+    public double manhattanDistance(double[] query, int row, double bound) {
+        int offset = row * dimension;
+        double sum = 0.0;
+        for (int start = 0; start < dimension; start += ABANDON_CHECK_INTERVAL) {
+            int end = Math.min(start + ABANDON_CHECK_INTERVAL, dimension);
+            if (values != null) {
+                for (int i = start; i < end; i++) {
+                    sum += Math.abs(query[i] - values[offset + i]);
+                }
+            } else if (floatValues != null) {
+                for (int i = start; i < end; i++) {
+                    sum += Math.abs(query[i] - floatValues[offset + i]);
+                }
+            } else {
+                for (int i = start; i < end; i++) {
+                    sum += Math.abs(query[i] - quantized.get(offset + i));
+                }
+            }
+            if (sum > bound) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    // Chebyshev (L-infinity) distance, abandoned as soon as one coordinate exceeds bound
+    public double chebyshevDistance(double[] query, int row, double bound) {
+        double max = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            double diff = Math.abs(query[i] - getValue(row, i));
+            if (diff > max) {
+                max = diff;
+                if (max > bound) {
+                    return max;
+                }
+            }
+        }
+        return max;
+    }
+
+    // Dot product of a query with one row
+    public double dot(double[] query, int row) {
+        int offset = row * dimension;
+        double sum = 0.0;
+        if (values != null) {
+            for (int i = 0; i < dimension; i++) {
+                sum += query[i] * values[offset + i];
+            }
+        } else if (floatValues != null) {
+            for (int i = 0; i < dimension; i++) {
+                sum += query[i] * floatValues[offset + i];
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                sum += query[i] * quantized.get(offset + i);
+            }
+        }
+        return sum;
+    }
+
+    // L2 norm of a row, from a table computed once per store
+    public double norm(int row) {
+        double[] computed = norms;
+        if (computed == null) {
+            computed = new double[size];
+            for (int r = 0; r < size; r++) {
+                computed[r] = computeNorm(r);
+            }
+            norms = computed;
+        }
+        return computed[row];
+    }
+
+    private double computeNorm(int row) {
+        double sum = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            double v = getValue(row, i);
+            sum += v * v;
+        }
+        return Math.sqrt(sum);
+    }
+
+    // Offer every live row in [from, to) by squared Euclidean distance. Indexes use this
+    // for rows appended after they were built.
+    void scanLiveRows(double[] query, int from, int to, TopKSelector selector) {
+        for (int row = from; row < to; row++) {
+            if (!isDeleted(row)) {
+                selector.offer(squaredDistance(query, row, selector.threshold()), row);
+            }
+        }
+    }
+
+    // Live row holding this student, or -1
+    int findRow(String studentId) {
+        Integer row = rowsById().get(studentId);
+        return row != null ? row : -1;
+    }
+
+    // Append a row and return its number, or -1 if its dimension does not match. An empty
+    // store takes the dimension of its first row unless it is quantized, since quantized
+    // encodings fix their value ranges when the store is built.
+    int append(double[] features, String label, String studentId) {
+        if (size == 0 && dimension == 0 && quantized == null) {
+            dimension = features.length;
+        }
+        if (features.length != dimension || dimension == 0) {
+            return -1;
+        }
+        ensureCapacity(size + 1);
+
+        int row = size;
+        int offset = row * dimension;
+        for (int i = 0; i < dimension; i++) {
+            if (values != null) {
+                values[offset + i] = features[i];
+            } else if (floatValues != null) {
+                floatValues[offset + i] = (float) features[i];
+            } else {
+                quantized.set(offset + i, features[i]);
+            }
+        }
+        labelIds[row] = labelId(label);
+        studentIds[row] = studentId;
+        studentIdBytes += studentIdBytes(studentId);
+        rowsById().put(studentId, row);
+        size++;
+        modCount++;
+
+        double[] currentNorms = norms;
+        if (currentNorms != null) {
+            if (currentNorms.length < size) {
+                currentNorms = Arrays.copyOf(currentNorms, labelIds.length);
+            }
+            currentNorms[row] = computeNorm(row);
+            norms = currentNorms;
+        }
+        return row;
+    }
+
+    // Tombstone a row; returns false if it was already deleted
+    boolean delete(int row) {
+        if (isDeleted(row)) {
+            return false;
+        }
+        if (deleted == null) {
+            deleted = new boolean[labelIds.length];
+        }
+        deleted[row] = true;
+        deletedCount++;
+        modCount++;
+        rowsById().remove(studentIds[row], row);
+        return true;
+    }
+
+    // Copy the live rows, in order, into a new store without tombstones or spare capacity.
+    // Quantized codes are copied as they are, so no further precision is lost.
+    FeatureStore compact() {
+        int[] live = new int[liveSize()];
+        int n = 0;
+        for (int row = 0; row < size; row++) {
+            if (!isDeleted(row)) {
+                live[n++] = row;
+            }
+        }
+
+        double[] newValues = values != null ? new double[live.length * dimension] : null;
+        float[] newFloatValues = floatValues != null ? new float[live.length * dimension] : null;
+        int[] newLabelIds = new int[live.length];
+        String[] newStudentIds = new String[live.length];
+        for (int i = 0; i < live.length; i++) {
+            int row = live[i];
+            if (newValues != null) {
+                System.arraycopy(values, row * dimension, newValues, i * dimension, dimension);
+            } else if (newFloatValues != null) {
+                System.arraycopy(floatValues, row * dimension, newFloatValues, i * dimension, dimension);
+            }
+            newLabelIds[i] = labelIds[row];
+            newStudentIds[i] = studentIds[row];
+        }
+        QuantizedFeatures newQuantized = quantized != null ? quantized.copyRows(live) : null;
+        return new FeatureStore(dimension, live.length, encoding, newValues, newFloatValues, newQuantized,
+                newLabelIds, Arrays.copyOf(labels, labels.length), newStudentIds);
+    }
+
+    private Map<String, Integer> rowsById() {
+        if (rowsById == null) {
+            rowsById = new HashMap<>();
+            for (int row = 0; row < size; row++) {
+                if (!isDeleted(row)) {
+                    rowsById.put(studentIds[row], row);
+                }
+            }
+        }
+        return rowsById;
+    }
+
+    private int labelId(String label) {
+        if (labelIndex == null) {
+            labelIndex = new HashMap<>();
+            for (int id = 0; id < labels.length; id++) {
+                labelIndex.put(labels[id], id);
+            }
+        }
+        Integer id = labelIndex.get(label);
+        if (id == null) {
+            id = labels.length;
+            labels = Arrays.copyOf(labels, id + 1);
+            labels[id] = label;
+            labelIndex.put(label, id);
+        }
+        return id;
+    }
+
+    // Grow every per-row array by half again when full
+    private void ensureCapacity(int rows) {
+        if (rows <= labelIds.length) {
+            return;
+        }
+        int capacity = Math.max(rows, labelIds.length + (labelIds.length >> 1) + 16);
+        labelIds = Arrays.copyOf(labelIds, capacity);
+        studentIds = Arrays.copyOf(studentIds, capacity);
+        if (deleted != null) {
+            deleted = Arrays.copyOf(deleted, capacity);
+        }
+        if (values != null) {
+            values = Arrays.copyOf(values, capacity * dimension);
+        } else if (floatValues != null) {
+            floatValues = Arrays.copyOf(floatValues, capacity * dimension);
+        } else {
+            quantized.ensureCapacity(capacity * dimension);
+        }
+    }
+
+    public int getLabelId(int row) {
+        return labelIds[row];
+    }
+
+    public String getLabel(int row) {
+        return labels[labelIds[row]];
+    }
+
+    public String getStudentId(int row) {
+        return studentIds[row];
+    }
+
+    // Label dictionary: label id -> label
+    public int getLabelCount() {
+        return labels.length;
+    }
+
+    public String getLabelName(int labelId) {
+        return labels[labelId];
+    }
+
+    public long getEstimatedBytes() {
+        long bytes;
+        if (values != null) {
+            bytes = 8L * values.length;
+        } else {
+            bytes = floatValues != null ? 4L * floatValues.length : quantized.getEstimatedBytes();
+        }
+        bytes += 4L * labelIds.length + 8L * size;  // labels and (lazily built) norms
+        if (deleted != null) {
+            bytes += deleted.length;
+        }
+        bytes += studentIdBytes;
+        for (String label : labels) {
+            bytes += 8 + 40 + 2L * label.length();
+        }
+        return bytes;
+    }
+
+    private static long studentIdBytes(String studentId) {
+        // array slot + String header + char data
+        return 8 + 40 + 2L * studentId.length();
+    }
+
+    // Accumulates rows in growable primitive arrays and freezes them into a FeatureStore.
+    // The first row fixes the dimension; rows with a different dimension are rejected.
+    // Quantized encodings need every row to fix their ranges, so rows are collected at
+    // full precision and quantized in build().
+    public static class Builder {
+        private final FeatureEncoding encoding;
+        private final boolean singlePrecision;
+        private int dimension = -1;
+        private int size;
+        private double[] values = new double[0];
+        private float[] floatValues = new float[0];
+        private int[] labelIds = new int[16];
+        private String[] studentIds = new String[16];
+        private final Map<String, Integer> labelIndex = new HashMap<>();
+        private final List<String> labels = new ArrayList<>();
+
+        public Builder(boolean singlePrecision) {
+            this(singlePrecision ? FeatureEncoding.FLOAT32 : FeatureEncoding.FLOAT64);
+        }
+
+        public Builder(FeatureEncoding encoding) {
+            this.encoding = encoding;
+            this.singlePrecision = encoding == FeatureEncoding.FLOAT32;
+        }
+
+        // Append a row; returns false if its dimension does not match earlier rows
+        public boolean add(double[] features, String label, String studentId) {
+            if (dimension < 0) {
+                dimension = features.length;
+            } else if (features.length != dimension) {
+                return false;
+            }
+            ensureCapacity(size + 1);
+
+            int offset = size * dimension;
+            if (singlePrecision) {
+                for (int i = 0; i < dimension; i++) {
+                    floatValues[offset + i] = (float) features[i];
+                }
+            } else {
+                System.arraycopy(features, 0, values, offset, dimension);
+            }
+            labelIds[size] = labelId(label);
+            studentIds[size] = studentId;
+            size++;
+            return true;
+        }
+
+        public FeatureStore build() {
+            int dim = Math.max(dimension, 0);
+            int length = size * dim;
+            double[] storedValues = null;
+            float[] storedFloatValues = null;
+            QuantizedFeatures quantized = null;
+            if (encoding.isQuantized()) {
+                quantized = QuantizedFeatures.encode(encoding, values, size, dim);
+            } else if (singlePrecision) {
+                storedFloatValues = Arrays.copyOf(floatValues, length);
+            } else {
+                storedValues = Arrays.copyOf(values, length);
+            }
+            return new FeatureStore(dim, size, encoding, storedValues, storedFloatValues, quantized,
+                    Arrays.copyOf(labelIds, size),
+                    labels.toArray(new String[0]),
+                    Arrays.copyOf(studentIds, size));
+        }
+
+        private int labelId(String label) {
+            Integer id = labelIndex.get(label);
+            if (id == null) {
+                id = labels.size();
+                labelIndex.put(label, id);
+                labels.add(label);
+            }
+            return id;
+        }
+
+        private void ensureCapacity(int rows) {
+            if (rows > labelIds.length) {
+                int newRows = Math.max(rows, labelIds.length * 2);
+                labelIds = Arrays.copyOf(labelIds, newRows);
+                studentIds = Arrays.copyOf(studentIds, newRows);
+            }
+            int needed = rows * dimension;
+            if (singlePrecision && needed > floatValues.length) {
+                floatValues = Arrays.copyOf(floatValues, Math.max(needed, labelIds.length * dimension));
+            } else if (!singlePrecision && needed > values.length) {
+                values = Arrays.copyOf(values, Math.max(needed, labelIds.length * dimension));
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.example.encryptedknn.knn;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Approximate nearest-neighbour index: a Hierarchical Navigable Small World graph over
+// the rows of a FeatureStore (Malkov & Yashunin). Each row is a graph node assigned a
+// random top layer; searches descend greedily through the sparse upper layers and then
+// run a best-first search of width efSearch on layer 0. Larger m and efConstruction give
+// a better graph at higher build cost; larger efSearch trades latency for recall.
+// Rows appended to the store later are inserted into the graph with add(); tombstoned
+// rows stay in the graph as waypoints but are never returned.
+public class HnswIndex {
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    public static final int DEFAULT_EF_SEARCH = 50;
+
+    private static final long LEVEL_SEED = 42L;
+
+    private final FeatureStore store;
+    private final int m;
+    private final int maxLinks0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+
+    // Per node and layer, the adjacency list; slot 0 holds the neighbour count.
+    // links[node][layer] exists for layers 0..level[node].
+    private int[][][] links;
+    private int[] level;
+    private int nodeCount;
+    // Estimated bytes of every node's adjacency lists, kept as nodes are inserted
+    private long linkBytes;
+    private final Random levelRandom = new Random(LEVEL_SEED);
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // Per-thread scratch state so searches on a built index can run concurrently
+    private final ThreadLocal<SearchScratch> scratch;
+
+    public HnswIndex(FeatureStore store, int m, int efConstruction) {
+        this.store = store;
+        this.m = Math.max(m, 2);
+        this.maxLinks0 = 2 * this.m;
+        this.efConstruction = Math.max(efConstruction, this.m);
+        this.levelMultiplier = 1.0 / Math.log(this.m);
+        this.links = new int[store.size()][][];
+        this.level = new int[store.size()];
+        this.scratch = ThreadLocal.withInitial(() -> new SearchScratch(store.size()));
+
+        for (int node = 0; node < store.size(); node++) {
+            add(node);
+        }
+    }
+
+    // Insert the next store row into the graph. Rows must be added in order, and not
+    // concurrently with searches.
+    public void add(int node) {
+        if (node != nodeCount) {
+            throw new IllegalArgumentException("Expected row " + nodeCount + " but got " + node);
+        }
+        if (node == links.length) {
+            int capacity = Math.max(16, links.length + (links.length >> 1));
+            links = Arrays.copyOf(links, capacity);
+            level = Arrays.copyOf(level, capacity);
+        }
+        nodeCount++;
+        insert(node, randomLevel(levelRandom));
+    }
+
+    public int size() {
+        return nodeCount;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    // Offer the approximate k nearest rows into the (already reset) selector
+    public void search(double[] query, int efSearch, TopKSelector selector) {
+        if (entryPoint < 0) {
+            return;
+        }
+        SearchScratch s = scratch();
+        int ef = Math.max(efSearch, selector.getCapacity());
+
+        int current = entryPoint;
+        double currentDistance = store.squaredDistance(query, current);
+        for (int layer = maxLevel; layer > 0; layer--) {
+            current = greedyClosest(query, current, currentDistance, layer);
+            currentDistance = store.squaredDistance(query, current);
+        }
+
+        TopKSelector found = searchLayer(query, current, currentDistance, ef, 0, s);
+        for (int i = 0; i < found.size(); i++) {
+            if (!store.isDeleted(found.indexAt(i))) {
+                selector.offer(found.distanceAt(i), found.indexAt(i));
+            }
+        }
+    }
+
+    public long getEstimatedBytes() {
+        return 4L * level.length + 8L * links.length + linkBytes;
+    }
+
+    private int randomLevel(Random random) {
+        return (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+    }
+
+    private void insert(int node, int nodeLevel) {
+        level[node] = nodeLevel;
+        links[node] = new int[nodeLevel + 1][];
+        linkBytes += 16 + 8L * (nodeLevel + 1);
+        for (int layer = 0; layer <= nodeLevel; layer++) {
+            links[node][layer] = new int[(layer == 0 ? maxLinks0 : m) + 1];
+            linkBytes += 16 + 4L * links[node][layer].length;
+        }
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = nodeLevel;
+            return;
+        }
+
+        double[] vector = store.getRow(node);
+        SearchScratch s = scratch();
+
+        int current = entryPoint;
+        double currentDistance = store.squaredDistance(vector, current);
+        for (int layer = maxLevel; layer > nodeLevel; layer--) {
+            current = greedyClosest(vector, current, currentDistance, layer);
+            currentDistance = store.squaredDistance(vector, current);
+        }
+
+        for (int layer = Math.min(nodeLevel, maxLevel); layer >= 0; layer--) {
+            TopKSelector candidates = searchLayer(vector, current, currentDistance, efConstruction, layer, s);
+            int maxLinks = layer == 0 ? maxLinks0 : m;
+            int[] selected = selectNeighbors(candidates, m);
+
+            int[] nodeLinks = links[node][layer];
+            for (int neighbour : selected) {
+                nodeLinks[++nodeLinks[0]] = neighbour;
+                connect(neighbour, node, layer, maxLinks);
+            }
+            // Candidates are sorted nearest first: continue the descent from the closest
+            current = candidates.indexAt(0);
+            currentDistance = candidates.distanceAt(0);
+        }
+
+        if (nodeLevel > maxLevel) {
+            maxLevel = nodeLevel;
+            entryPoint = node;
+        }
+    }
+
+    // Add a reverse link, pruning the neighbour's list with the selection heuristic when full
+    private void connect(int from, int to, int layer, int maxLinks) {
+        int[] fromLinks = links[from][layer];
+        if (fromLinks[0] < maxLinks) {
+            fromLinks[++fromLinks[0]] = to;
+            return;
+        }
+        TopKSelector candidates = new TopKSelector(maxLinks + 1);
+        for (int i = 1; i <= fromLinks[0]; i++) {
+            candidates.offer(store.squaredDistance(from, fromLinks[i]), fromLinks[i]);
+        }
+        candidates.offer(store.squaredDistance(from, to), to);
+        candidates.sort();
+
+        int[] kept = selectNeighbors(candidates, maxLinks);
+        fromLinks[0] = kept.length;
+        System.arraycopy(kept, 0, fromLinks, 1, kept.length);
+    }
+
+    // Neighbour selection heuristic: walk candidates nearest first and keep one only if it
+    // is closer to the base node than to every neighbour already kept, which spreads links
+    // across directions. Remaining slots are filled with the nearest skipped candidates.
+    private int[] selectNeighbors(TopKSelector sortedCandidates, int limit) {
+        int[] selected = new int[Math.min(limit, sortedCandidates.size())];
+        boolean[] taken = new boolean[sortedCandidates.size()];
+        int count = 0;
+
+        for (int i = 0; i < sortedCandidates.size() && count < selected.length; i++) {
+            int candidate = sortedCandidates.indexAt(i);
+            double distance = sortedCandidates.distanceAt(i);
+            boolean diverse = true;
+            for (int j = 0; j < count; j++) {
+                if (store.squaredDistance(candidate, selected[j]) < distance) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[count++] = candidate;
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < sortedCandidates.size() && count < selected.length; i++) {
+            if (!taken[i]) {
+                selected[count++] = sortedCandidates.indexAt(i);
+            }
+        }
+        return selected;
+    }
+
+    // Greedy walk on one layer towards the node closest to the query
+    private int greedyClosest(double[] query, int start, double startDistance, int layer) {
+        int current = start;
+        double currentDistance = startDistance;
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] nodeLinks = links[current][layer];
+            for (int i = 1; i <= nodeLinks[0]; i++) {
+                double distance = store.squaredDistance(query, nodeLinks[i]);
+                if (distance < currentDistance) {
+                    currentDistance = distance;
+                    current = nodeLinks[i];
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Best-first search of width ef on one layer; returns the ef closest nodes, sorted
+    private TopKSelector searchLayer(double[] query, int start, double startDistance, int ef, int layer,
+                                     SearchScratch s) {
+        int epoch = s.nextEpoch();
+        s.candidates.clear();
+        TopKSelector results = new TopKSelector(ef);
+
+        s.visited[start] = epoch;
+        s.candidates.push(startDistance, start);
+        results.offer(startDistance, start);
+
+        while (!s.candidates.isEmpty()) {
+            double distance = s.candidates.peekDistance();
+            int node = s.candidates.pop();
+            if (distance > results.threshold()) {
+                break;
+            }
+            int[] nodeLinks = links[node][layer];
+            for (int i = 1; i <= nodeLinks[0]; i++) {
+                int neighbour = nodeLinks[i];
+                if (s.visited[neighbour] == epoch) {
+                    continue;
+                }
+                s.visited[neighbour] = epoch;
+                double neighbourDistance = store.squaredDistance(query, neighbour);
+                if (results.offer(neighbourDistance, neighbour)) {
+                    s.candidates.push(neighbourDistance, neighbour);
+                }
+            }
+        }
+        results.sort();
+        return results;
+    }
+
+    // This thread's scratch state, grown to cover nodes added since it was created
+    private SearchScratch scratch() {
+        SearchScratch s = scratch.get();
+        if (s.visited.length < nodeCount) {
+            s.visited = Arrays.copyOf(s.visited, links.length);
+        }
+        return s;
+    }
+
+    private static class SearchScratch {
+        int[] visited;
+        final MinHeap candidates = new MinHeap();
+        int epoch;
+
+        SearchScratch(int size) {
+            visited = new int[size];
+        }
+
+        int nextEpoch() {
+            if (++epoch == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                epoch = 1;
+            }
+            return epoch;
+        }
+    }
+
+    // Growable binary min-heap of (distance, node) used as the search frontier
+    private static class MinHeap {
+        private double[] distances = new double[64];
+        private int[] nodes = new int[64];
+        private int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double peekDistance() {
+            return distances[0];
+        }
+
+        void push(double distance, int node) {
+            if (size == distances.length) {
+                distances = Arrays.copyOf(distances, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                distances[pos] = distances[parent];
+                nodes[pos] = nodes[parent];
+                pos = parent;
+            }
+            distances[pos] = distance;
+            nodes[pos] = node;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            double distance = distances[size];
+            int node = nodes[size];
+            int pos = 0;
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distances[child] >= distance) {
+                    break;
+                }
+                distances[pos] = distances[child];
+                nodes[pos] = nodes[child];
+                pos = child;
+            }
+            distances[pos] = distance;
+            nodes[pos] = node;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.encryptedknn.knn;
+
+// Search structure built over each cached training set
+public enum IndexType {
+    BRUTE_FORCE,
+    KD_TREE,
+    BALL_TREE;
+
+    // Parse a configuration value such as "kdtree", "ball_tree" or "brute"
+    public static IndexType fromString(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return BRUTE_FORCE;
+        }
+        String normalized = value.trim().toUpperCase().replace("-", "").replace("_", "");
+        switch (normalized) {
+            case "KDTREE":
+                return KD_TREE;
+            case "BALLTREE":
+                return BALL_TREE;
+            case "BRUTE":
+            case "BRUTEFORCE":
+                return BRUTE_FORCE;
+            default:
+                throw new IllegalArgumentException("Unknown index type: " + value);
+        }
+    }
+
+    // Build the index for this type, or null for a plain scan
+    public NeighborIndex build(FeatureStore store) {
+        switch (this) {
+            case KD_TREE:
+                return new KDTreeIndex(store);
+            case BALL_TREE:
+                return new BallTreeIndex(store);
+            default:
+                return null;
+        }
+    }
+}
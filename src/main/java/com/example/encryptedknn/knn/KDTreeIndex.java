@@ -0,0 +1,110 @@
+package com.example.encryptedknn.knn;
+
+import java.util.Arrays;
+
+// Exact k-d tree. Each inner node splits its rows at the median of the dimension with
+// the widest spread; leaves hold up to LEAF_SIZE rows. Nodes are stored in parallel
+// primitive arrays indexed by node id, and leaves reference ranges of one row permutation.
+public class KDTreeIndex implements NeighborIndex {
+    private static final int LEAF_SIZE = 16;
+
+    private final FeatureStore store;
+    private final int[] rows;
+    // Rows appended to the store after the build are scanned linearly
+    private final int indexedRows;
+    // Per node: split dimension (-1 for a leaf), split value, children and row range
+    private int[] splitDimension;
+    private double[] splitValue;
+    private int[] left;
+    private int[] right;
+    private int[] from;
+    private int[] to;
+    private int nodeCount;
+
+    public KDTreeIndex(FeatureStore store) {
+        this.store = store;
+        this.rows = RowPartitioning.identity(store.size());
+        this.indexedRows = store.size();
+        int capacity = Math.max(1, 2 * (store.size() / LEAF_SIZE + 1));
+        splitDimension = new int[capacity];
+        splitValue = new double[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        from = new int[capacity];
+        to = new int[capacity];
+        build(0, store.size());
+    }
+
+    private int build(int start, int end) {
+        int node = newNode(start, end);
+        if (end - start <= LEAF_SIZE) {
+            splitDimension[node] = -1;
+            return node;
+        }
+        int dimension = RowPartitioning.widestDimension(store, rows, start, end);
+        int mid = RowPartitioning.splitAtMedian(store, rows, start, end, dimension);
+        splitDimension[node] = dimension;
+        splitValue[node] = store.getValue(rows[mid], dimension);
+        int leftChild = build(start, mid);
+        int rightChild = build(mid, end);
+        left[node] = leftChild;
+        right[node] = rightChild;
+        return node;
+    }
+
+    private int newNode(int start, int end) {
+        if (nodeCount == splitDimension.length) {
+            int capacity = nodeCount * 2;
+            splitDimension = Arrays.copyOf(splitDimension, capacity);
+            splitValue = Arrays.copyOf(splitValue, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            from = Arrays.copyOf(from, capacity);
+            to = Arrays.copyOf(to, capacity);
+        }
+        from[nodeCount] = start;
+        to[nodeCount] = end;
+        return nodeCount++;
+    }
+
+    @Override
+    public void search(double[] query, TopKSelector selector) {
+        if (indexedRows > 0) {
+            search(0, query, selector);
+        }
+        store.scanLiveRows(query, indexedRows, store.size(), selector);
+    }
+
+    @Override
+    public int getIndexedRows() {
+        return indexedRows;
+    }
+
+    private void search(int node, double[] query, TopKSelector selector) {
+        int dimension = splitDimension[node];
+        if (dimension < 0) {
+            for (int i = from[node]; i < to[node]; i++) {
+                if (!store.isDeleted(rows[i])) {
+                    selector.offer(store.squaredDistance(query, rows[i]), rows[i]);
+                }
+            }
+            return;
+        }
+
+        double diff = query[dimension] - splitValue[node];
+        int near = diff < 0 ? left[node] : right[node];
+        int far = diff < 0 ? right[node] : left[node];
+
+        search(near, query, selector);
+        // Every row on the far side is at least |diff| away along the split dimension;
+        // the selector holds squared distances
+        if (diff * diff * (1 - RowPartitioning.BOUND_SLACK) <= selector.threshold()) {
+            search(far, query, selector);
+        }
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return 4L * rows.length + (4L * 5 + 8) * splitDimension.length;
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.encryptedknn.knn;
+
+import java.util.Random;
+
+// Offline benchmark of the search strategies on synthetic data (no database needed).
+// Reports mean latency per query and, for approximate search, recall@k against brute force.
+//
+// Usage: java -cp target/classes com.example.encryptedknn.knn.KnnBenchmark [rows] [dims] [queries] [k]
+public class KnnBenchmark {
+    private static final int[] EF_SEARCH_VALUES = {10, 25, 50, 100, 200};
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int dimension = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        Random random = new Random(7);
+        FeatureStore store = randomStore(random, rows, dimension);
+        double[][] queryVectors = new double[queries][];
+        for (int i = 0; i < queries; i++) {
+            queryVectors[i] = randomVector(random, dimension);
+        }
+        System.out.printf("rows=%d dims=%d queries=%d k=%d%n", rows, dimension, queries, k);
+
+        // Ground truth from a linear scan
+        int[][] truth = new int[queries][];
+        long start = System.nanoTime();
+        for (int q = 0; q < queries; q++) {
+            TopKSelector selector = new TopKSelector(k);
+            for (int row = 0; row < store.size(); row++) {
+                selector.offer(store.squaredDistance(queryVectors[q], row), row);
+            }
+            selector.sort();
+            truth[q] = indices(selector);
+        }
+        report("brute force", start, queries, 1.0);
+
+        for (IndexType type : new IndexType[]{IndexType.KD_TREE, IndexType.BALL_TREE}) {
+            long buildStart = System.nanoTime();
+            NeighborIndex index = type.build(store);
+            System.out.printf("%-24s build %.1f ms%n", type, (System.nanoTime() - buildStart) / 1e6);
+            start = System.nanoTime();
+            int hits = 0;
+            for (int q = 0; q < queries; q++) {
+                TopKSelector selector = new TopKSelector(k);
+                index.search(queryVectors[q], selector);
+                selector.sort();
+                hits += overlap(truth[q], indices(selector));
+            }
+            report(type.toString(), start, queries, hits / (double) (queries * k));
+        }
+
+        long buildStart = System.nanoTime();
+        HnswIndex hnsw = new HnswIndex(store, HnswIndex.DEFAULT_M, HnswIndex.DEFAULT_EF_CONSTRUCTION);
+        System.out.printf("%-24s build %.1f ms%n", "HNSW", (System.nanoTime() - buildStart) / 1e6);
+        for (int efSearch : EF_SEARCH_VALUES) {
+            start = System.nanoTime();
+            int hits = 0;
+            for (int q = 0; q < queries; q++) {
+                TopKSelector selector = new TopKSelector(k);
+                hnsw.search(queryVectors[q], efSearch, selector);
+                selector.sort();
+                hits += overlap(truth[q], indices(selector));
+            }
+            report("HNSW efSearch=" + efSearch, start, queries, hits / (double) (queries * k));
+        }
+    }
+
+    private static FeatureStore randomStore(Random random, int rows, int dimension) {
+        FeatureStore.Builder builder = new FeatureStore.Builder(false);
+        for (int row = 0; row < rows; row++) {
+            builder.add(randomVector(random, dimension), "LABEL_" + random.nextInt(5), "STU" + row);
+        }
+        return builder.build();
+    }
+
+    private static double[] randomVector(Random random, int dimension) {
+        double[] vector = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = random.nextGaussian() * 10 + 50;
+        }
+        return vector;
+    }
+
+    private static int[] indices(TopKSelector selector) {
+        int[] result = new int[selector.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = selector.indexAt(i);
+        }
+        return result;
+    }
+
+    private static int overlap(int[] expected, int[] actual) {
+        int count = 0;
+        for (int e : expected) {
+            for (int a : actual) {
+                if (e == a) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void report(String name, long startNanos, int queries, double recall) {
+        double micros = (System.nanoTime() - startNanos) / 1e3 / queries;
+        System.out.printf("%-24s %10.1f us/query  recall@k=%.4f%n", name, micros, recall);
+    }
+}
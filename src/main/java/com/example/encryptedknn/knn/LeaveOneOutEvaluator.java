@@ -0,0 +1,165 @@
+package com.example.encryptedknn.knn;
+
+import java.util.Arrays;
+
+// Leave-one-out evaluation of every k from 1 to kMax in one pass. Each live row is
+// searched once for its kMax nearest other rows; growing k then only adds one neighbour
+// to the running vote, so all k values are scored from the same neighbour list. Rows
+// are processed in parallel chunks with per-chunk tallies merged at the end.
+//
+// Searches use the store's own values (for quantized encodings, the quantized ones) and
+// the exact index when the metric allows it. Votes use the same rule as classification:
+// most frequent label, ties going to the label seen first in the training set.
+public class LeaveOneOutEvaluator {
+    // Rows per parallel task; each row is a full search, so chunks can be small
+    private static final int ROWS_PER_TASK = 64;
+
+    private final ParallelScanner scanner;
+
+    public LeaveOneOutEvaluator(ParallelScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    // Accuracy and confusion matrix for every k; the caller holds the set's read lock
+    public Result evaluate(TrainingSet trainingSet, int kMax, DistanceMetric metric) {
+        FeatureStore store = trainingSet.getStore();
+        int labelCount = store.getLabelCount();
+        int effectiveKMax = Math.max(0, Math.min(kMax, store.liveSize() - 1));
+        Result result = new Result(store, effectiveKMax);
+        if (effectiveKMax == 0) {
+            return result;
+        }
+
+        NeighborIndex index = metric.supportsIndexes() ? trainingSet.getIndex() : null;
+        scanner.forEach(store.size(), ROWS_PER_TASK, (from, to) -> {
+            Tally tally = new Tally(effectiveKMax, labelCount);
+            TopKSelector selector = new TopKSelector(effectiveKMax + 1);
+            int[] counts = new int[labelCount];
+
+            for (int row = from; row < to; row++) {
+                if (store.isDeleted(row)) {
+                    continue;
+                }
+                double[] query = store.getRow(row);
+                selector.reset(effectiveKMax + 1);
+                if (index != null) {
+                    index.search(query, selector);
+                } else {
+                    double queryNorm = metric.prepare(query);
+                    for (int other = 0; other < store.size(); other++) {
+                        if (!store.isDeleted(other)) {
+                            selector.offer(metric.distance(query, queryNorm, store, other, selector.threshold()), other);
+                        }
+                    }
+                }
+                selector.sort();
+                tally.add(store, row, selector, counts);
+            }
+            result.merge(tally);
+        });
+        return result;
+    }
+
+    // Per-chunk counters
+    private static class Tally {
+        final int rows;
+        final int[] correct;
+        final int[][][] confusion;
+        int evaluated;
+
+        Tally(int kMax, int labelCount) {
+            this.rows = kMax;
+            this.correct = new int[kMax];
+            this.confusion = new int[kMax][labelCount][labelCount];
+        }
+
+        // Score one row for every k, skipping the row itself among its neighbours
+        void add(FeatureStore store, int row, TopKSelector neighbours, int[] counts) {
+            Arrays.fill(counts, 0);
+            int actual = store.getLabelId(row);
+            int best = -1;
+            int k = 0;
+            for (int i = 0; i < neighbours.size() && k < rows; i++) {
+                int neighbour = neighbours.indexAt(i);
+                if (neighbour == row) {
+                    continue;
+                }
+                int label = store.getLabelId(neighbour);
+                counts[label]++;
+                if (best < 0 || counts[label] > counts[best] || (counts[label] == counts[best] && label < best)) {
+                    best = label;
+                }
+                if (best == actual) {
+                    correct[k]++;
+                }
+                confusion[k][actual][best]++;
+                k++;
+            }
+            evaluated++;
+        }
+    }
+
+    // Outcome for k = 1..getKMax(); confusion matrices are indexed [actual][predicted]
+    // by label id (see getLabels())
+    public static class Result {
+        private final String[] labels;
+        private final int kMax;
+        private final int[] correct;
+        private final int[][][] confusion;
+        private int rows;
+
+        Result(FeatureStore store, int kMax) {
+            this.labels = new String[store.getLabelCount()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = store.getLabelName(i);
+            }
+            this.kMax = kMax;
+            this.correct = new int[kMax];
+            this.confusion = new int[kMax][labels.length][labels.length];
+        }
+
+        synchronized void merge(Tally tally) {
+            rows += tally.evaluated;
+            for (int k = 0; k < kMax; k++) {
+                correct[k] += tally.correct[k];
+                for (int a = 0; a < labels.length; a++) {
+                    for (int p = 0; p < labels.length; p++) {
+                        confusion[k][a][p] += tally.confusion[k][a][p];
+                    }
+                }
+            }
+        }
+
+        public String[] getLabels() {
+            return labels;
+        }
+
+        // Largest k evaluated: the requested kMax, capped at one less than the row count
+        public int getKMax() {
+            return kMax;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public double getAccuracy(int k) {
+            return rows == 0 ? 0.0 : correct[k - 1] / (double) rows;
+        }
+
+        public int[][] getConfusionMatrix(int k) {
+            return confusion[k - 1];
+        }
+
+        // Most accurate k, preferring the smallest on ties; 0 if nothing was evaluated
+        public int getBestK() {
+            int best = 0;
+            for (int k = 1; k <= kMax; k++) {
+                if (best == 0 || correct[k - 1] > correct[best - 1]) {
+                    best = k;
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.encryptedknn.knn;
+
+// Exact nearest-neighbour index over a FeatureStore, built once per cache fill.
+// search() must offer every row that can be among the k nearest, using the same
+// distances as a brute-force scan, so results are identical to one. Tombstoned rows are
+// never offered, and rows appended to the store after the build are scanned linearly.
+public interface NeighborIndex {
+    // Fill the (already reset) selector with the nearest rows to the query
+    void search(double[] query, TopKSelector selector);
+
+    // Rows covered by the index structure; later rows are searched linearly
+    int getIndexedRows();
+
+    long getEstimatedBytes();
+}
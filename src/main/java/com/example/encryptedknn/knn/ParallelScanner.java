@@ -0,0 +1,160 @@
+package com.example.encryptedknn.knn;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// Splits row ranges across a ForkJoinPool. Distance scans compute a local top-k per
+// chunk and merge the partial heaps on the way back up; other row work (decryption)
+// is simply partitioned. Inputs smaller than two chunks run on the calling thread.
+public class ParallelScanner {
+    public static final int DEFAULT_MIN_CHUNK_ROWS = 16384;
+
+    // Scan rows [from, to) into the given selector
+    public interface RangeScan {
+        void scan(int from, int to, TopKSelector selector);
+    }
+
+    // Process rows [from, to)
+    public interface RangeAction {
+        void run(int from, int to);
+    }
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final int minChunkRows;
+
+    // parallelism <= 1 disables the pool entirely
+    public ParallelScanner(int parallelism, int minChunkRows) {
+        this.parallelism = Math.max(parallelism, 1);
+        this.minChunkRows = Math.max(minChunkRows, 1);
+        this.pool = this.parallelism > 1 ? new ForkJoinPool(this.parallelism) : null;
+    }
+
+    // Single-threaded scanner
+    public static ParallelScanner sequential() {
+        return new ParallelScanner(1, DEFAULT_MIN_CHUNK_ROWS);
+    }
+
+    public boolean isParallel(int rows, int grain) {
+        return pool != null && rows >= 2 * grain;
+    }
+
+    // Find the k nearest of rows [0, rows) into the caller's (already reset) selector
+    public void scan(int rows, int k, RangeScan rangeScan, TopKSelector into) {
+        if (!isParallel(rows, minChunkRows)) {
+            rangeScan.scan(0, rows, into);
+            return;
+        }
+        TopKSelector merged = pool.invoke(new ScanTask(rangeScan, 0, rows, k, chunkRows(rows, minChunkRows)));
+        mergeInto(merged, into);
+    }
+
+    // Run an action over rows [0, rows) in chunks of at least grain rows
+    public void forEach(int rows, int grain, RangeAction action) {
+        if (!isParallel(rows, grain)) {
+            action.run(0, rows);
+            return;
+        }
+        pool.invoke(new ForEachTask(action, 0, rows, chunkRows(rows, grain)));
+    }
+
+    // Run a task on the pool, or on the caller's thread when the pool is disabled
+    public <T> Future<T> submit(Callable<T> task) {
+        if (pool == null) {
+            FutureTask<T> inline = new FutureTask<>(task);
+            inline.run();
+            return inline;
+        }
+        return pool.submit(task);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getMinChunkRows() {
+        return minChunkRows;
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    // A few chunks per worker so uneven chunks still balance, but never below the grain
+    private int chunkRows(int rows, int grain) {
+        return Math.max(grain, rows / (parallelism * 4));
+    }
+
+    private static void mergeInto(TopKSelector from, TopKSelector into) {
+        for (int i = 0; i < from.size(); i++) {
+            into.offer(from.distanceAt(i), from.indexAt(i));
+        }
+    }
+
+    private static class ScanTask extends RecursiveTask<TopKSelector> {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeScan rangeScan;
+        private final int from;
+        private final int to;
+        private final int k;
+        private final int chunkRows;
+
+        ScanTask(RangeScan rangeScan, int from, int to, int k, int chunkRows) {
+            this.rangeScan = rangeScan;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+            this.chunkRows = chunkRows;
+        }
+
+        @Override
+        protected TopKSelector compute() {
+            if (to - from <= chunkRows) {
+                TopKSelector local = new TopKSelector(k);
+                rangeScan.scan(from, to, local);
+                return local;
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(rangeScan, from, mid, k, chunkRows);
+            left.fork();
+            TopKSelector right = new ScanTask(rangeScan, mid, to, k, chunkRows).compute();
+            TopKSelector result = left.join();
+            mergeInto(right, result);
+            return result;
+        }
+    }
+
+    private static class ForEachTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeAction action;
+        private final int from;
+        private final int to;
+        private final int chunkRows;
+
+        ForEachTask(RangeAction action, int from, int to, int chunkRows) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.chunkRows = chunkRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkRows) {
+                action.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ForEachTask(action, from, mid, chunkRows),
+                      new ForEachTask(action, mid, to, chunkRows));
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.encryptedknn.knn;
+
+import java.util.Arrays;
+
+// Compact row-major (N x D) feature values for the FLOAT16 and INT8 encodings. Values
+// are decoded on the fly inside the distance loops, so a scan reads 2 or 1 bytes per
+// value instead of 8. Decoded values are approximations of the originals; callers that
+// need exact distances re-rank against full-precision data.
+abstract class QuantizedFeatures {
+    // Dimensions between early-abandon checks
+    private static final int CHECK_INTERVAL = 16;
+
+    protected final int dimension;
+
+    QuantizedFeatures(int dimension) {
+        this.dimension = dimension;
+    }
+
+    // Quantize size rows of full-precision values laid out row-major
+    static QuantizedFeatures encode(FeatureEncoding encoding, double[] values, int size, int dimension) {
+        switch (encoding) {
+            case FLOAT16:
+                return new Float16(values, size, dimension);
+            case INT8:
+                return new Int8(values, size, dimension);
+            default:
+                throw new IllegalArgumentException(encoding + " is not a quantized encoding");
+        }
+    }
+
+    // Decoded value at a flat offset (row * dimension + column)
+    abstract double get(int offset);
+
+    abstract long getEstimatedBytes();
+
+    // Encode one value in place; the offset must be below the current capacity
+    abstract void set(int offset, double value);
+
+    // Grow the code array to hold at least this many values
+    abstract void ensureCapacity(int values);
+
+    // Codes of the given rows, in order, with the same encoding parameters
+    abstract QuantizedFeatures copyRows(int[] rows);
+
+    // Squared Euclidean distance between a query and the row at offset; as with the
+    // distance kernels, may return any value above bound once the partial sum exceeds it
+    double squaredDistance(double[] query, int offset, double bound) {
+        double sum = 0.0;
+        for (int start = 0; start < dimension; start += CHECK_INTERVAL) {
+            int end = Math.min(start + CHECK_INTERVAL, dimension);
+            for (int i = start; i < end; i++) {
+                double diff = query[i] - get(offset + i);
+                sum += diff * diff;
+            }
+            if (sum > bound) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    double squaredDistance(int offsetA, int offsetB) {
+        double sum = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            double diff = get(offsetA + i) - get(offsetB + i);
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    // IEEE 754 binary16 codes, decoded through a 65536-entry table
+    static class Float16 extends QuantizedFeatures {
+        private static final float[] DECODE = new float[1 << 16];
+
+        static {
+            for (int h = 0; h < DECODE.length; h++) {
+                DECODE[h] = toFloat(h);
+            }
+        }
+
+        private short[] codes;
+
+        Float16(double[] values, int size, int dimension) {
+            super(dimension);
+            codes = new short[size * dimension];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = toHalf((float) values[i]);
+            }
+        }
+
+        private Float16(short[] codes, int dimension) {
+            super(dimension);
+            this.codes = codes;
+        }
+
+        @Override
+        void set(int offset, double value) {
+            codes[offset] = toHalf((float) value);
+        }
+
+        @Override
+        void ensureCapacity(int values) {
+            if (values > codes.length) {
+                codes = Arrays.copyOf(codes, values);
+            }
+        }
+
+        @Override
+        QuantizedFeatures copyRows(int[] rows) {
+            short[] copy = new short[rows.length * dimension];
+            for (int i = 0; i < rows.length; i++) {
+                System.arraycopy(codes, rows[i] * dimension, copy, i * dimension, dimension);
+            }
+            return new Float16(copy, dimension);
+        }
+
+        @Override
+        double get(int offset) {
+            return DECODE[codes[offset] & 0xFFFF];
+        }
+
+        @Override
+        double squaredDistance(double[] query, int offset, double bound) {
+            double sum = 0.0;
+            for (int start = 0; start < dimension; start += CHECK_INTERVAL) {
+                int end = Math.min(start + CHECK_INTERVAL, dimension);
+                for (int i = start; i < end; i++) {
+                    double diff = query[i] - DECODE[codes[offset + i] & 0xFFFF];
+                    sum += diff * diff;
+                }
+                if (sum > bound) {
+                    return sum;
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        long getEstimatedBytes() {
+            return 2L * codes.length;
+        }
+
+        // Round-to-nearest-even conversion; values beyond the half range become infinity
+        static short toHalf(float value) {
+            int bits = Float.floatToIntBits(value);
+            int sign = (bits >>> 16) & 0x8000;
+            int magnitude = bits & 0x7FFFFFFF;
+
+            if (magnitude >= 0x7F800000) {
+                // Infinity stays infinity, NaN stays NaN
+                return (short) (sign | 0x7C00 | (magnitude > 0x7F800000 ? 0x200 : 0));
+            }
+            if (magnitude >= 0x477FF000) {
+                // 65520 and above round up past the largest half value
+                return (short) (sign | 0x7C00);
+            }
+            if (magnitude < 0x38800000) {
+                // Below the smallest normal half: encode as a subnormal or zero
+                if (magnitude < 0x33000000) {
+                    return (short) sign;
+                }
+                int exponent = magnitude >>> 23;
+                int mantissa = (magnitude & 0x7FFFFF) | 0x800000;
+                int shift = 126 - exponent;
+                return (short) (sign | roundShift(mantissa, shift));
+            }
+            int half = ((magnitude >>> 23) - 112) << 10 | ((magnitude & 0x7FFFFF) >>> 13);
+            int remainder = magnitude & 0x1FFF;
+            if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+
+        private static int roundShift(int value, int shift) {
+            int result = value >>> shift;
+            int remainder = value & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (result & 1) != 0)) {
+                result++;
+            }
+            return result;
+        }
+
+        static float toFloat(int half) {
+            int sign = (half & 0x8000) != 0 ? -1 : 1;
+            int exponent = (half >>> 10) & 0x1F;
+            int mantissa = half & 0x3FF;
+            if (exponent == 0) {
+                return sign * Math.scalb((float) mantissa, -24);
+            }
+            if (exponent == 0x1F) {
+                return mantissa == 0 ? sign * Float.POSITIVE_INFINITY : Float.NaN;
+            }
+            return sign * Math.scalb((float) (mantissa | 0x400), exponent - 25);
+        }
+    }
+
+    // One unsigned byte per value: code c in column d decodes to min[d] + c * scale[d].
+    // The ranges are fixed when the store is built, so values set later that fall outside
+    // them are clamped to the nearest end until the store is rebuilt.
+    static class Int8 extends QuantizedFeatures {
+        private static final int LEVELS = 255;
+
+        private byte[] codes;
+        private final double[] min;
+        private final double[] scale;
+
+        Int8(double[] values, int size, int dimension) {
+            super(dimension);
+            codes = new byte[size * dimension];
+            min = new double[dimension];
+            scale = new double[dimension];
+
+            double[] max = new double[dimension];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            for (int row = 0; row < size; row++) {
+                for (int d = 0; d < dimension; d++) {
+                    double v = values[row * dimension + d];
+                    min[d] = Math.min(min[d], v);
+                    max[d] = Math.max(max[d], v);
+                }
+            }
+            for (int d = 0; d < dimension; d++) {
+                if (size == 0) {
+                    min[d] = 0.0;
+                }
+                scale[d] = size == 0 ? 0.0 : (max[d] - min[d]) / LEVELS;
+            }
+
+            for (int offset = 0; offset < codes.length; offset++) {
+                set(offset, values[offset]);
+            }
+        }
+
+        private Int8(byte[] codes, double[] min, double[] scale, int dimension) {
+            super(dimension);
+            this.codes = codes;
+            this.min = min;
+            this.scale = scale;
+        }
+
+        @Override
+        void set(int offset, double value) {
+            int d = offset % dimension;
+            int code = scale[d] == 0 ? 0 : (int) Math.round((value - min[d]) / scale[d]);
+            codes[offset] = (byte) Math.max(0, Math.min(LEVELS, code));
+        }
+
+        @Override
+        void ensureCapacity(int values) {
+            if (values > codes.length) {
+                codes = Arrays.copyOf(codes, values);
+            }
+        }
+
+        @Override
+        QuantizedFeatures copyRows(int[] rows) {
+            byte[] copy = new byte[rows.length * dimension];
+            for (int i = 0; i < rows.length; i++) {
+                System.arraycopy(codes, rows[i] * dimension, copy, i * dimension, dimension);
+            }
+            return new Int8(copy, min, scale, dimension);
+        }
+
+        @Override
+        double get(int offset) {
+            int d = offset % dimension;
+            return min[d] + (codes[offset] & 0xFF) * scale[d];
+        }
+
+        @Override
+        double squaredDistance(double[] query, int offset, double bound) {
+            double sum = 0.0;
+            for (int start = 0; start < dimension; start += CHECK_INTERVAL) {
+                int end = Math.min(start + CHECK_INTERVAL, dimension);
+                for (int i = start; i < end; i++) {
+                    double diff = query[i] - (min[i] + (codes[offset + i] & 0xFF) * scale[i]);
+                    sum += diff * diff;
+                }
+                if (sum > bound) {
+                    return sum;
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        long getEstimatedBytes() {
+            return codes.length + 16L * dimension;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.encryptedknn.knn;
+
+// Per-request search settings for EncryptedKNN
+public class QueryOptions {
+    private SearchMode mode = SearchMode.EXACT;
+    private int efSearch = HnswIndex.DEFAULT_EF_SEARCH;
+    private DistanceMetric metric = DistanceMetric.EUCLIDEAN;
+
+    public static QueryOptions exact() {
+        return new QueryOptions();
+    }
+
+    public static QueryOptions approximate(int efSearch) {
+        return new QueryOptions().setMode(SearchMode.APPROX).setEfSearch(efSearch);
+    }
+
+    public SearchMode getMode() {
+        return mode;
+    }
+
+    public QueryOptions setMode(SearchMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    // HNSW search width; only used in APPROX mode
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public QueryOptions setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+        return this;
+    }
+
+    // Indexes and approximate search require EUCLIDEAN; other metrics use the linear scan
+    public DistanceMetric getMetric() {
+        return metric;
+    }
+
+    public QueryOptions setMetric(DistanceMetric metric) {
+        this.metric = metric;
+        return this;
+    }
+}
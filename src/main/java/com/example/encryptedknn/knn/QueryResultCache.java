@@ -0,0 +1,121 @@
+package com.example.encryptedknn.knn;
+
+import javax.crypto.SecretKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded LRU cache of classification results, keyed by the key fingerprint, the query
+// vector rounded to a fixed number of decimal places, k and the search options. Each
+// entry records the dataset version it was computed against (see
+// StudentDAO.getDatasetVersion()) and is only served while that version is current, so
+// no result outlives a write to the students table.
+public class QueryResultCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final int DEFAULT_PRECISION = 6;
+
+    private static class CachedResult {
+        final EncryptedKNN.ClassificationResult result;
+        final long version;
+
+        CachedResult(EncryptedKNN.ClassificationResult result, long version) {
+            this.result = result;
+            this.version = version;
+        }
+    }
+
+    // Access-ordered so the eldest entry is the least recently used
+    private final LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private int maxEntries;
+    private double scale;
+
+    private long hits;
+    private long misses;
+
+    public QueryResultCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_PRECISION);
+    }
+
+    public QueryResultCache(int maxEntries, int precision) {
+        configure(maxEntries, precision);
+    }
+
+    // maxEntries=0 disables the cache; precision is the number of decimal places kept
+    // from each feature when building keys
+    public synchronized void configure(int maxEntries, int precision) {
+        this.maxEntries = Math.max(maxEntries, 0);
+        this.scale = Math.pow(10, Math.max(precision, 0));
+        entries.clear();
+    }
+
+    public synchronized boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    public String keyFor(SecretKey key, double[] query, int k, QueryOptions options) {
+        double currentScale;
+        synchronized (this) {
+            currentScale = scale;
+        }
+        StringBuilder sb = new StringBuilder(TrainingSetCache.fingerprint(key))
+                .append('|').append(k)
+                .append('|').append(options.getMode())
+                .append('|').append(options.getMetric());
+        if (options.getMode() == SearchMode.APPROX) {
+            sb.append('|').append(options.getEfSearch());
+        }
+        for (double value : query) {
+            // Rounded so that textual variants of the same vector share an entry; values
+            // too large to round into a long (and NaN) are keyed exactly
+            double scaled = value * currentScale;
+            sb.append('|').append(Math.abs(scaled) < 1e15 ? Long.toString(Math.round(scaled)) : Double.toString(value));
+        }
+        return sb.toString();
+    }
+
+    // Cached result for this key if it was computed at the current dataset version.
+    // Results are shared between callers and must not be modified.
+    public synchronized EncryptedKNN.ClassificationResult get(String cacheKey, long datasetVersion) {
+        CachedResult entry = entries.get(cacheKey);
+        if (entry != null && entry.version == datasetVersion) {
+            hits++;
+            return entry.result;
+        }
+        if (entry != null) {
+            entries.remove(cacheKey);
+        }
+        misses++;
+        return null;
+    }
+
+    // Store a result computed from data read at datasetVersion, which the caller must
+    // have read before starting the search
+    public synchronized void put(String cacheKey, long datasetVersion, EncryptedKNN.ClassificationResult result) {
+        if (maxEntries > 0) {
+            entries.put(cacheKey, new CachedResult(result, datasetVersion));
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    // Statistics
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
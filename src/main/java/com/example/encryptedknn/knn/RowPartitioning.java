@@ -0,0 +1,71 @@
+package com.example.encryptedknn.knn;
+
+// Shared helpers for building space-partitioning trees over a row permutation
+final class RowPartitioning {
+    // Relative slack applied to pruning bounds so floating point rounding in the bound
+    // can never discard a row whose computed distance ties the current k-th best
+    static final double BOUND_SLACK = 1e-9;
+
+    private RowPartitioning() {
+    }
+
+    static int[] identity(int size) {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    // Dimension along which rows[from, to) have the largest value range
+    static int widestDimension(FeatureStore store, int[] rows, int from, int to) {
+        int bestDimension = 0;
+        double bestSpread = -1;
+        for (int d = 0; d < store.getDimension(); d++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                double v = store.getValue(rows[i], d);
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            if (max - min > bestSpread) {
+                bestSpread = max - min;
+                bestDimension = d;
+            }
+        }
+        return bestDimension;
+    }
+
+    // Quickselect rows[from, to) on one dimension so that every row before the returned
+    // midpoint has a value <= rows[mid] and every row from mid on has a value >= it
+    static int splitAtMedian(FeatureStore store, int[] rows, int from, int to, int dimension) {
+        int mid = (from + to) >>> 1;
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            double pivot = store.getValue(rows[(lo + hi) >>> 1], dimension);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (store.getValue(rows[i], dimension) < pivot) i++;
+                while (store.getValue(rows[j], dimension) > pivot) j--;
+                if (i <= j) {
+                    int tmp = rows[i];
+                    rows[i] = rows[j];
+                    rows[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (mid <= j) {
+                hi = j;
+            } else if (mid >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return mid;
+    }
+}
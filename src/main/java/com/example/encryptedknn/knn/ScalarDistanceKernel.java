@@ -0,0 +1,88 @@
+package com.example.encryptedknn.knn;
+
+// Portable kernel. Four independent accumulators break the floating point dependency
+// chain so the JIT can keep several multiply-adds in flight per cycle; the partial sum is
+// compared with the bound every CHECK_INTERVAL dimensions.
+public class ScalarDistanceKernel implements DistanceKernel {
+    // Dimensions between early-abandon checks (a power of two, multiple of 4)
+    private static final int CHECK_INTERVAL = 16;
+
+    @Override
+    public double squaredDistance(double[] query, double[] values, int offset, int dimension, double bound) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimension; i += 4) {
+            if ((i & (CHECK_INTERVAL - 1)) == 0 && i > 0) {
+                double partial = (s0 + s1) + (s2 + s3);
+                if (partial > bound) {
+                    return partial;
+                }
+            }
+            double d0 = query[i] - values[offset + i];
+            double d1 = query[i + 1] - values[offset + i + 1];
+            double d2 = query[i + 2] - values[offset + i + 2];
+            double d3 = query[i + 3] - values[offset + i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < dimension; i++) {
+            double d = query[i] - values[offset + i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public double squaredDistance(double[] query, float[] values, int offset, int dimension, double bound) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimension; i += 4) {
+            if ((i & (CHECK_INTERVAL - 1)) == 0 && i > 0) {
+                double partial = (s0 + s1) + (s2 + s3);
+                if (partial > bound) {
+                    return partial;
+                }
+            }
+            double d0 = query[i] - values[offset + i];
+            double d1 = query[i + 1] - values[offset + i + 1];
+            double d2 = query[i + 2] - values[offset + i + 2];
+            double d3 = query[i + 3] - values[offset + i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < dimension; i++) {
+            double d = query[i] - values[offset + i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public double squaredDistance(double[] values, int offsetA, int offsetB, int dimension) {
+        double sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            double d = values[offsetA + i] - values[offsetB + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Override
+    public double squaredDistance(float[] values, int offsetA, int offsetB, int dimension) {
+        double sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            double d = (double) values[offsetA + i] - values[offsetB + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.encryptedknn.knn;
+
+// How a query finds its neighbours
+public enum SearchMode {
+    // Linear scan or exact index: identical results to brute force
+    EXACT,
+    // HNSW graph search: much faster on large tables, may miss some true neighbours
+    APPROX;
+
+    public static SearchMode fromString(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return EXACT;
+        }
+        switch (value.trim().toLowerCase()) {
+            case "exact":
+                return EXACT;
+            case "approx":
+            case "approximate":
+                return APPROX;
+            default:
+                throw new IllegalArgumentException("Unknown search mode: " + value);
+        }
+    }
+}
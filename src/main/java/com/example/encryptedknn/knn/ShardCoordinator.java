@@ -0,0 +1,228 @@
+package com.example.encryptedknn.knn;
+
+import com.example.encryptedknn.util.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Scatter-gather search over ShardWorker processes. Worker i of n must serve shard i of n;
+// each query goes to every worker in parallel, each returns its local top k, and the
+// merged list is cut to the global top k. Workers that fail, time out or report another
+// shard are left out and the result is marked partial; a query fails only if no shard
+// answers. Each request carries the workers' shared secret in the X-Shard-Secret header.
+// The encryption key travels in the request body, so workers on other hosts must be
+// reached through https:// URLs.
+public class ShardCoordinator {
+    public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    // Nearest first; equal distances ordered by student ID so merges are deterministic
+    private static final Comparator<EncryptedKNN.NeighborInfo> NEAREST_FIRST =
+            Comparator.<EncryptedKNN.NeighborInfo>comparingDouble(n -> n.distance).thenComparing(n -> n.studentId);
+
+    private final List<String> workerUrls;
+    private final int timeoutMillis;
+    private final String secret;
+    private final ExecutorService executor;
+
+    public ShardCoordinator(List<String> workerUrls, int timeoutMillis, String secret) {
+        if (workerUrls.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard worker is required");
+        }
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The shard workers' shared secret is required");
+        }
+        this.workerUrls = new ArrayList<>(workerUrls);
+        this.timeoutMillis = timeoutMillis;
+        this.secret = secret;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "knn-shard-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Merged classification from whichever shards answered within the timeout
+    public static class Result {
+        public EncryptedKNN.ClassificationResult classification;
+        public int shardCount;
+        public List<Integer> failedShards = new ArrayList<>();
+
+        public boolean isPartial() {
+            return !failedShards.isEmpty();
+        }
+    }
+
+    public Result classifyWithNeighbors(double[] features, String encryptionKey, int k, DistanceMetric metric) {
+        String body = formBody(features, encryptionKey, k, metric);
+        List<Future<List<EncryptedKNN.NeighborInfo>>> futures = new ArrayList<>(workerUrls.size());
+        for (int shard = 0; shard < workerUrls.size(); shard++) {
+            int shardIndex = shard;
+            futures.add(executor.submit(() -> queryShard(shardIndex, body)));
+        }
+
+        // One deadline for the whole query, not per shard
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Result result = new Result();
+        result.shardCount = workerUrls.size();
+        List<EncryptedKNN.NeighborInfo> merged = new ArrayList<>();
+        IllegalArgumentException rejected = null;
+        for (int shard = 0; shard < futures.size(); shard++) {
+            Future<List<EncryptedKNN.NeighborInfo>> future = futures.get(shard);
+            try {
+                merged.addAll(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IllegalArgumentException) {
+                    rejected = (IllegalArgumentException) e.getCause();
+                }
+                System.err.println("Shard " + shard + " failed: " + e.getCause().getMessage());
+                result.failedShards.add(shard);
+            } catch (TimeoutException | CancellationException e) {
+                System.err.println("Shard " + shard + " timed out after " + timeoutMillis + " ms");
+                future.cancel(true);
+                result.failedShards.add(shard);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for shards", e);
+            }
+        }
+        if (result.failedShards.size() == workerUrls.size()) {
+            // Every worker rejecting the request means the request itself is bad
+            if (rejected != null) {
+                throw rejected;
+            }
+            throw new IllegalStateException("No shard responded");
+        }
+
+        Collections.sort(merged, NEAREST_FIRST);
+        result.classification = vote(merged.subList(0, Math.min(k, merged.size())));
+        return result;
+    }
+
+    // Majority vote as in EncryptedKNN, except that ties go to the label with the nearest
+    // neighbour: label dictionary order is local to each shard
+    private static EncryptedKNN.ClassificationResult vote(List<EncryptedKNN.NeighborInfo> nearest) {
+        EncryptedKNN.ClassificationResult result = new EncryptedKNN.ClassificationResult();
+        result.neighbors = new ArrayList<>(nearest);
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (EncryptedKNN.NeighborInfo neighbor : nearest) {
+            Integer count = counts.get(neighbor.label);
+            counts.put(neighbor.label, count == null ? 1 : count + 1);
+            double weight = 1.0 / (neighbor.distance + EncryptedKNN.WEIGHT_EPSILON);
+            Double score = result.weightedScores.get(neighbor.label);
+            result.weightedScores.put(neighbor.label, score == null ? weight : score + weight);
+        }
+        result.voteCounts = counts;
+
+        result.predictedLabel = "UNKNOWN";
+        int best = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > best) {
+                best = entry.getValue();
+                result.predictedLabel = entry.getKey();
+            }
+        }
+        return result;
+    }
+
+    private List<EncryptedKNN.NeighborInfo> queryShard(int shard, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(workerUrls.get(shard) + "/neighbors").openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            connection.setRequestProperty(ShardWorker.SECRET_HEADER, secret);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            Map<String, Object> json = JsonParser.parseObject(in == null ? "{}" : readBody(in));
+            if (status == 400) {
+                throw new IllegalArgumentException(String.valueOf(json.get("error")));
+            }
+            if (status != 200) {
+                throw new IOException("HTTP " + status + ": " + json.get("error"));
+            }
+
+            // A worker started with another index or count would silently return wrong rows
+            int reportedShard = json.get("shard") instanceof Double ? ((Double) json.get("shard")).intValue() : -1;
+            int reportedCount = json.get("shardCount") instanceof Double ? ((Double) json.get("shardCount")).intValue() : -1;
+            if (reportedShard != shard || reportedCount != workerUrls.size()) {
+                throw new IOException("Worker reports shard " + reportedShard + "/" + reportedCount
+                        + ", expected " + shard + "/" + workerUrls.size());
+            }
+
+            List<EncryptedKNN.NeighborInfo> neighbors = new ArrayList<>();
+            for (Object item : (List<?>) json.get("neighbors")) {
+                Map<?, ?> neighbor = (Map<?, ?>) item;
+                neighbors.add(new EncryptedKNN.NeighborInfo(
+                        (String) neighbor.get("studentId"),
+                        (String) neighbor.get("label"),
+                        (Double) neighbor.get("distance"),
+                        JsonParser.toVector(neighbor.get("features"))));
+            }
+            return neighbors;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String formBody(double[] features, String encryptionKey, int k, DistanceMetric metric) {
+        StringBuilder featureList = new StringBuilder();
+        for (int i = 0; i < features.length; i++) {
+            if (i > 0) featureList.append(',');
+            featureList.append(features[i]);
+        }
+        try {
+            return "features=" + URLEncoder.encode(featureList.toString(), "UTF-8")
+                    + "&encryptionKey=" + URLEncoder.encode(encryptionKey, "UTF-8")
+                    + "&k=" + k
+                    + "&metric=" + metric.name().toLowerCase();
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public int getShardCount() {
+        return workerUrls.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.encryptedknn.knn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+// One partition of the students table for sharded search: the rows whose student_id
+// hashes to shardIndex out of shardCount. The assignment depends only on the ID and the
+// shard count, so a restarted worker given the same index owns exactly the same rows.
+public final class ShardSpec {
+    private final int shardIndex;
+    private final int shardCount;
+
+    public ShardSpec(int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("Shard index must be in [0, " + shardCount + ")");
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    // CRC32 of the UTF-8 bytes rather than String.hashCode(), so the mapping is fixed by
+    // the algorithm and not by the JVM
+    public static int shardOf(String studentId, int shardCount) {
+        CRC32 crc = new CRC32();
+        crc.update(studentId.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % shardCount);
+    }
+
+    public boolean owns(String studentId) {
+        return shardOf(studentId, shardCount) == shardIndex;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    @Override
+    public String toString() {
+        return shardIndex + "/" + shardCount;
+    }
+}
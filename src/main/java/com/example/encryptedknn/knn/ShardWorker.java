@@ -0,0 +1,276 @@
+package com.example.encryptedknn.knn;
+
+import com.example.encryptedknn.dao.ChangeFeedPoller;
+import com.example.encryptedknn.dao.DatabaseConfig;
+import com.example.encryptedknn.dao.StudentChangeListener;
+import com.example.encryptedknn.dao.StudentDAO;
+import com.example.encryptedknn.dao.StudentRepository;
+import com.example.encryptedknn.model.Student;
+import com.example.encryptedknn.util.AESUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+// Standalone process serving one shard of the students table for sharded search (see
+// ShardCoordinator). It loads only the rows ShardSpec assigns to its index and answers
+// local top-k queries over HTTP:
+//
+//   POST /neighbors  form parameters encryptionKey, features, k and optional metric;
+//                    the X-Shard-Secret header must carry the shared secret
+//   GET  /health
+//
+// Queries carry the raw AES key, so the worker listens on loopback unless the
+// knn-shard-host system property names another address, and rejects /neighbors calls
+// without the secret from the knn-shard-secret system property (or the KNN_SHARD_SECRET
+// environment variable). The server speaks plain HTTP: across hosts, put a TLS-terminating
+// proxy in front of it and give the coordinator https:// URLs.
+//
+// Like the web application, the worker follows the students change feed (ChangeFeedPoller,
+// tuned by the knn-change-poll-ms, knn-change-batch-size and knn-change-retention-seconds
+// system properties) and applies the changes to rows of its own shard to its cached
+// training sets in place. The cache TTL remains as a backstop, for example while the
+// database cannot be polled.
+//
+// Usage: java -Dknn-shard-secret=... -cp <classpath> com.example.encryptedknn.knn.ShardWorker <port> <shardIndex> <shardCount> [cacheTtlSeconds]
+public class ShardWorker {
+    public static final long DEFAULT_CACHE_TTL_SECONDS = TrainingSetCache.DEFAULT_TTL_MILLIS / 1000;
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final String SECRET_HEADER = "X-Shard-Secret";
+
+    private final ShardSpec shard;
+    private final EncryptedKNN knn;
+    private final TrainingSetCache cache;
+    private final byte[] secret;
+    private ChangeFeedPoller changeFeedPoller;
+
+    public ShardWorker(ShardSpec shard, long cacheTtlMillis, String secret) {
+        this.shard = shard;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        // A cache of its own, fed only this shard's changes by startChangeFeed()
+        this.cache = new TrainingSetCache(
+                TrainingSetCache.DEFAULT_MAX_ENTRIES, TrainingSetCache.DEFAULT_MAX_BYTES, cacheTtlMillis);
+        this.knn = new EncryptedKNN(1, cache);
+        // The dataset version only moves when the change feed is followed; until then
+        // cached results would outlive the training set they came from
+        knn.getResultCache().configure(0, QueryResultCache.DEFAULT_PRECISION);
+        knn.setParallelScanner(new ParallelScanner(
+                Runtime.getRuntime().availableProcessors(), ParallelScanner.DEFAULT_MIN_CHUNK_ROWS));
+        knn.setShard(shard);
+    }
+
+    // Apply writes made anywhere to this worker's cache within one poll interval. Returns
+    // false (and leaves the TTL as the only refresh) if polling is disabled or the
+    // students are not in MySQL.
+    public synchronized boolean startChangeFeed(long intervalMillis, int batchSize, long deletionRetentionMillis) {
+        StudentRepository repository = DatabaseConfig.studentRepository();
+        if (changeFeedPoller != null || intervalMillis <= 0 || !(repository instanceof StudentDAO)) {
+            return false;
+        }
+        StudentDAO.addChangeListener(new ShardChangeListener(shard, cache));
+        changeFeedPoller = new ChangeFeedPoller(repository, intervalMillis, batchSize, deletionRetentionMillis,
+                cache::invalidateAll);
+        changeFeedPoller.start();
+        knn.getResultCache().configure(QueryResultCache.DEFAULT_MAX_ENTRIES, QueryResultCache.DEFAULT_PRECISION);
+        return true;
+    }
+
+    // Passes on only the changes to rows this shard owns; the rest would only cost a
+    // failed decryption per cached key
+    private static class ShardChangeListener implements StudentChangeListener {
+        private final ShardSpec shard;
+        private final StudentChangeListener target;
+
+        ShardChangeListener(ShardSpec shard, StudentChangeListener target) {
+            this.shard = shard;
+            this.target = target;
+        }
+
+        @Override
+        public void studentInserted(Student student) {
+            if (shard.owns(student.getStudentId())) {
+                target.studentInserted(student);
+            }
+        }
+
+        @Override
+        public void studentUpdated(Student student) {
+            if (shard.owns(student.getStudentId())) {
+                target.studentUpdated(student);
+            }
+        }
+
+        @Override
+        public void studentDeleted(String studentId) {
+            if (shard.owns(studentId)) {
+                target.studentDeleted(studentId);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: ShardWorker <port> <shardIndex> <shardCount> [cacheTtlSeconds]");
+            System.exit(2);
+        }
+        int port = Integer.parseInt(args[0]);
+        ShardSpec shard = new ShardSpec(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        long ttlSeconds = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_CACHE_TTL_SECONDS;
+        String host = System.getProperty("knn-shard-host", DEFAULT_HOST);
+        String secret = System.getProperty("knn-shard-secret", System.getenv("KNN_SHARD_SECRET"));
+        if (secret == null || secret.isEmpty()) {
+            System.err.println("Set the shared secret with -Dknn-shard-secret=... or KNN_SHARD_SECRET");
+            System.exit(2);
+        }
+
+        ShardWorker worker = new ShardWorker(shard, ttlSeconds * 1000, secret);
+        if (!worker.startChangeFeed(
+                Long.getLong("knn-change-poll-ms", ChangeFeedPoller.DEFAULT_INTERVAL_MILLIS),
+                Integer.getInteger("knn-change-batch-size", ChangeFeedPoller.DEFAULT_BATCH_SIZE),
+                Long.getLong("knn-change-retention-seconds",
+                        ChangeFeedPoller.DEFAULT_DELETION_RETENTION_MILLIS / 1000) * 1000)) {
+            System.err.println("Not following the change feed; writes reach this worker after at most "
+                    + ttlSeconds + " s");
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/neighbors", worker::handleNeighbors);
+        server.createContext("/health", worker::handleHealth);
+        server.setExecutor(Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors())));
+        server.start();
+        System.out.println("Shard worker " + shard + " listening on " + host + ":" + port);
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        ChangeFeedPoller poller;
+        synchronized (this) {
+            poller = changeFeedPoller;
+        }
+        respond(exchange, 200, "{\"success\": true, " + shardFields()
+                + ", \"changeFeedRevision\": " + (poller != null ? poller.getRevision() : -1) + "}");
+    }
+
+    private void handleNeighbors(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "{\"error\": \"POST required\"}");
+            return;
+        }
+        if (!authorized(exchange)) {
+            respond(exchange, 401, "{\"error\": \"Missing or wrong " + SECRET_HEADER + "\"}");
+            return;
+        }
+
+        List<EncryptedKNN.NeighborInfo> neighbors;
+        try {
+            Map<String, String> params = parseForm(readBody(exchange.getRequestBody()));
+            String featuresParam = params.get("features");
+            String encryptionKey = params.get("encryptionKey");
+            String kParam = params.get("k");
+            if (featuresParam == null || encryptionKey == null || kParam == null) {
+                respond(exchange, 400, "{\"error\": \"features, k and encryptionKey are required\"}");
+                return;
+            }
+
+            String[] featureStrings = featuresParam.split(",");
+            double[] features = new double[featureStrings.length];
+            for (int i = 0; i < featureStrings.length; i++) {
+                features[i] = Double.parseDouble(featureStrings[i].trim());
+            }
+            int k = Integer.parseInt(kParam.trim());
+            if (k < 1) {
+                throw new IllegalArgumentException("k must be a positive integer");
+            }
+            QueryOptions options = new QueryOptions().setMetric(DistanceMetric.fromString(params.get("metric")));
+            SecretKey key = AESUtil.keyFromString(encryptionKey);
+
+            neighbors = knn.classifyWithNeighbors(features, key, options, k).neighbors;
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            respond(exchange, 400, "{\"error\": \"" + escape(String.valueOf(e.getMessage())) + "\"}");
+            return;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            respond(exchange, 500, "{\"error\": \"" + escape(String.valueOf(e.getMessage())) + "\"}");
+            return;
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"success\": true, ").append(shardFields()).append(", \"neighbors\": [");
+        for (int i = 0; i < neighbors.size(); i++) {
+            if (i > 0) json.append(", ");
+            EncryptedKNN.NeighborInfo neighbor = neighbors.get(i);
+            json.append("{")
+                .append("\"studentId\": \"").append(escape(neighbor.studentId)).append("\", ")
+                .append("\"label\": \"").append(escape(neighbor.label)).append("\", ")
+                .append("\"distance\": ").append(neighbor.distance).append(", ")
+                .append("\"features\": [");
+            for (int j = 0; j < neighbor.features.length; j++) {
+                if (j > 0) json.append(", ");
+                json.append(neighbor.features[j]);
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+        respond(exchange, 200, json.toString());
+    }
+
+    // Constant-time comparison, so the secret cannot be guessed byte by byte from timings
+    private boolean authorized(HttpExchange exchange) {
+        String presented = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+        return presented != null && MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Reported on every response so the coordinator can check it reached the shard it expects
+    private String shardFields() {
+        return "\"shard\": " + shard.getShardIndex() + ", \"shardCount\": " + shard.getShardCount();
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseForm(String body) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : body.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    // Labels and IDs come from decrypted user data, so quote them for the coordinator's parser
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.encryptedknn.knn;
+
+// Keeps the k smallest (distance, rowIndex) pairs seen during a scan.
+// Backed by a fixed-capacity binary max-heap over two primitive arrays, so offering a
+// candidate never allocates and costs O(log k). Ties on distance are broken by row index,
+// which gives the same order as a stable sort of the full distance list.
+public class TopKSelector {
+    private double[] distances;
+    private int[] indices;
+    private int k;
+    private int size;
+
+    public TopKSelector(int k) {
+        this.distances = new double[Math.max(k, 1)];
+        this.indices = new int[Math.max(k, 1)];
+        this.k = k;
+    }
+
+    // Clear the selector for a new scan, growing the backing arrays if needed
+    public void reset(int k) {
+        if (k > distances.length) {
+            distances = new double[k];
+            indices = new int[k];
+        }
+        this.k = k;
+        this.size = 0;
+    }
+
+    // Offer a candidate; returns true if it is currently among the k nearest
+    public boolean offer(double distance, int index) {
+        if (size < k) {
+            distances[size] = distance;
+            indices[size] = index;
+            siftUp(size++);
+            return true;
+        }
+        if (k == 0 || !isCloser(distance, index, distances[0], indices[0])) {
+            return false;
+        }
+        distances[0] = distance;
+        indices[0] = index;
+        siftDown(0, size);
+        return true;
+    }
+
+    // Distance a candidate must beat to enter the selection
+    public double threshold() {
+        return size < k ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    // Number of entries this selector keeps (the k of the current scan)
+    public int getCapacity() {
+        return k;
+    }
+
+    public boolean isFull() {
+        return size >= k;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Order the selected entries nearest first. After this call the heap property no
+    // longer holds, so offer() must not be used until the next reset().
+    public void sort() {
+        // In-place heapsort: repeatedly move the current maximum to the end
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    // Accessors for the i-th entry (nearest first once sort() has been called)
+    public double distanceAt(int i) {
+        return distances[i];
+    }
+
+    public int indexAt(int i) {
+        return indices[i];
+    }
+
+    private static boolean isCloser(double d1, int i1, double d2, int i2) {
+        return d1 < d2 || (d1 == d2 && i1 < i2);
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!isCloser(distances[parent], indices[parent], distances[pos], indices[pos])) {
+                return;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos, int limit) {
+        while (true) {
+            int left = 2 * pos + 1;
+            if (left >= limit) {
+                return;
+            }
+            int largest = left;
+            int right = left + 1;
+            if (right < limit && isCloser(distances[left], indices[left], distances[right], indices[right])) {
+                largest = right;
+            }
+            if (!isCloser(distances[pos], indices[pos], distances[largest], indices[largest])) {
+                return;
+            }
+            swap(pos, largest);
+            pos = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        double d = distances[a];
+        distances[a] = distances[b];
+        distances[b] = d;
+        int i = indices[a];
+        indices[a] = indices[b];
+        indices[b] = i;
+    }
+}
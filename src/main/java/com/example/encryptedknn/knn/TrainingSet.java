@@ -0,0 +1,226 @@
+package com.example.encryptedknn.knn;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Decrypted training data for one encryption key, as held by TrainingSetCache.
+// Single-row inserts, updates and deletes are applied in place to the store and its
+// indexes under the write lock; searches hold the read lock (see readLock()). Deletes
+// leave tombstones, and rows appended after an exact index was built are scanned
+// linearly, so compact() rebuilds both once enough changes have accumulated.
+public class TrainingSet {
+    // Compact once tombstones or unindexed rows reach this share of the store...
+    private static final double COMPACTION_RATIO = 0.2;
+    // ...and at least this many rows, so small sets are not rebuilt on every change
+    private static final int COMPACTION_MIN_ROWS = 1024;
+    // Optimistic rebuilds discarded because of concurrent changes before the last attempt
+    // rebuilds under the write lock
+    private static final int COMPACTION_ATTEMPTS = 3;
+
+    private final IndexType indexType;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    // Replaced together by compact(); read under the read lock
+    private volatile FeatureStore store;
+    private volatile NeighborIndex index;
+    // Built lazily on the first approximate query, then reused until the entry is evicted
+    private volatile HnswIndex approximateIndex;
+    // Told when the set grows or shrinks other than through insert, update and delete
+    private volatile Runnable resizeListener;
+
+    public TrainingSet(FeatureStore store) {
+        this(store, IndexType.BRUTE_FORCE);
+    }
+
+    // Builds the requested index up front so it is paid once per cache fill
+    public TrainingSet(FeatureStore store, IndexType indexType) {
+        this.indexType = indexType;
+        this.store = store;
+        this.index = indexType.build(store);
+    }
+
+    // Held by callers for the whole of a search, including reading results from the store
+    public Lock readLock() {
+        return lock.readLock();
+    }
+
+    public FeatureStore getStore() {
+        return store;
+    }
+
+    // Spatial index over the store, or null when queries use a linear scan
+    public NeighborIndex getIndex() {
+        return index;
+    }
+
+    // Approximate HNSW index, built on first use with the given graph parameters
+    public HnswIndex getApproximateIndex(int m, int efConstruction) {
+        HnswIndex built = approximateIndex;
+        if (built == null) {
+            synchronized (this) {
+                built = approximateIndex;
+                if (built == null) {
+                    built = new HnswIndex(store, m, efConstruction);
+                    approximateIndex = built;
+                }
+            }
+            resized();
+        }
+        return built;
+    }
+
+    public void setResizeListener(Runnable resizeListener) {
+        this.resizeListener = resizeListener;
+    }
+
+    private void resized() {
+        Runnable listener = resizeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    // Add a row; returns false if its dimension does not fit the store
+    public boolean insert(double[] features, String label, String studentId) {
+        lock.writeLock().lock();
+        try {
+            return append(features, label, studentId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Replace the row for this student. A null features array removes it, for rows that
+    // no longer decrypt under this set's key.
+    public boolean update(double[] features, String label, String studentId) {
+        lock.writeLock().lock();
+        try {
+            int row = store.findRow(studentId);
+            if (row >= 0) {
+                store.delete(row);
+            }
+            return features == null || append(features, label, studentId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Tombstone the row for this student; returns false if it is not in the set
+    public boolean delete(String studentId) {
+        lock.writeLock().lock();
+        try {
+            int row = store.findRow(studentId);
+            return row >= 0 && store.delete(row);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean append(double[] features, String label, String studentId) {
+        int row = store.append(features, label, studentId);
+        if (row < 0) {
+            return false;
+        }
+        HnswIndex graph = approximateIndex;
+        if (graph != null) {
+            graph.add(row);
+        }
+        return true;
+    }
+
+    // True once tombstones or unindexed rows make a rebuild worthwhile
+    public boolean needsCompaction() {
+        FeatureStore current = store;
+        NeighborIndex currentIndex = index;
+        int unindexed = currentIndex != null ? current.size() - currentIndex.getIndexedRows() : 0;
+        int threshold = Math.max(COMPACTION_MIN_ROWS, (int) (current.size() * COMPACTION_RATIO));
+        return current.getDeletedCount() >= threshold || unindexed >= threshold;
+    }
+
+    // Claim the right to run compact(); false if a compaction is already pending
+    public boolean tryScheduleCompaction() {
+        return compactionScheduled.compareAndSet(false, true);
+    }
+
+    // Rebuild the store without tombstones, and its indexes, while searches continue on
+    // the old ones. A rebuild is discarded if a change lands in the meantime; after
+    // repeated collisions the final attempt holds the write lock, leaving the HNSW graph
+    // to be rebuilt on the next approximate query.
+    public void compact() {
+        try {
+            if (!compactOptimistically()) {
+                lock.writeLock().lock();
+                try {
+                    FeatureStore compacted = store.compact();
+                    index = indexType.build(compacted);
+                    store = compacted;
+                    approximateIndex = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            compactionScheduled.set(false);
+        }
+        resized();
+    }
+
+    private boolean compactOptimistically() {
+        for (int attempt = 1; attempt < COMPACTION_ATTEMPTS; attempt++) {
+            if (tryCompact()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean tryCompact() {
+        FeatureStore compacted;
+        int modCount;
+        HnswIndex graph;
+        lock.readLock().lock();
+        try {
+            modCount = store.getModCount();
+            compacted = store.compact();
+            graph = approximateIndex;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        NeighborIndex compactedIndex = indexType.build(compacted);
+        HnswIndex compactedGraph = graph != null
+                ? new HnswIndex(compacted, graph.getM(), graph.getEfConstruction()) : null;
+
+        lock.writeLock().lock();
+        try {
+            if (store.getModCount() != modCount) {
+                return false;
+            }
+            store = compacted;
+            index = compactedIndex;
+            approximateIndex = compactedGraph;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return store.liveSize();
+    }
+
+    public boolean isEmpty() {
+        return store.isEmpty();
+    }
+
+    public long getEstimatedBytes() {
+        FeatureStore current = store;
+        NeighborIndex currentIndex = index;
+        HnswIndex graph = approximateIndex;
+        return current.getEstimatedBytes() + (currentIndex != null ? currentIndex.getEstimatedBytes() : 0)
+                + (graph != null ? graph.getEstimatedBytes() : 0);
+    }
+}
@@ -0,0 +1,410 @@
+package com.example.encryptedknn.knn;
+
+import com.example.encryptedknn.dao.StudentChangeListener;
+import com.example.encryptedknn.dao.StudentDAO;
+import com.example.encryptedknn.model.Student;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// In-memory cache of decrypted training sets, keyed by a fingerprint of the AES key.
+// Entries are evicted least-recently-used first once the entry count or the estimated
+// byte budget is exceeded, and expire after a fixed time-to-live. Only one load runs per
+// key at a time; concurrent misses for the same key wait for it rather than decrypting
+// the table again.
+//
+// As a StudentChangeListener the cache keeps its entries current: each written row is
+// decrypted with every cached key and applied to that training set in place, and sets
+// that accumulate too many changes are compacted on a background thread. A load may have
+// read the table before a change committed, so changes announced while it runs are
+// queued and applied to the loaded set before it is stored. Entries are re-measured
+// after every change, compaction and HNSW build, so growth counts against the budget.
+public class TrainingSetCache implements StudentChangeListener {
+    public static final int DEFAULT_MAX_ENTRIES = 8;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = 10L * 60 * 1000;
+
+    private static final TrainingSetCache SHARED =
+            new TrainingSetCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS);
+
+    static {
+        StudentDAO.addChangeListener(SHARED);
+    }
+
+    // Loads the decrypted training set on a cache miss
+    public interface Loader {
+        TrainingSet load();
+    }
+
+    // The key is kept so changed rows can be decrypted for this entry
+    private static class Entry {
+        final SecretKey key;
+        final TrainingSet trainingSet;
+        long bytes;
+        final long loadedAt;
+
+        Entry(SecretKey key, TrainingSet trainingSet, long loadedAt) {
+            this.key = key;
+            this.trainingSet = trainingSet;
+            this.bytes = trainingSet.getEstimatedBytes();
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    // A row write or deletion (student null) announced to the cache
+    private static class Change {
+        final Student student;
+        final String studentId;
+        final boolean insert;
+
+        Change(Student student, String studentId, boolean insert) {
+            this.student = student;
+            this.studentId = studentId;
+            this.insert = insert;
+        }
+    }
+
+    // A load in progress. Changes announced while it runs wait in pending; a stale load
+    // (invalidated, or sent more changes than are worth replaying) is not stored.
+    private static class Load {
+        final CompletableFuture<TrainingSet> result = new CompletableFuture<>();
+        final List<Change> pending = new ArrayList<>();
+        boolean stale;
+    }
+
+    // Past this many queued changes a load is abandoned rather than replayed
+    private static final int MAX_PENDING_CHANGES = 10000;
+
+    // Access-ordered so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Loads in progress, by fingerprint
+    private final Map<String, Load> loads = new HashMap<>();
+    private int maxEntries;
+    private long maxBytes;
+    private long ttlMillis;
+    private long currentBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // Single background thread for compactions, started on first use
+    private ExecutorService compactor;
+
+    public TrainingSetCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // Cache shared by all servlets so uploads can invalidate what classification reads
+    public static TrainingSetCache shared() {
+        return SHARED;
+    }
+
+    // Hex SHA-256 of the raw key bytes; the key itself is never used as a map key
+    public static String fingerprint(SecretKey key) {
+        return DigestUtils.sha256Hex(key.getEncoded());
+    }
+
+    // Return the cached training set for this key, loading it on a miss
+    public TrainingSet get(SecretKey key, Loader loader) {
+        String fingerprint = fingerprint(key);
+        Load load;
+        boolean loading = false;
+
+        synchronized (this) {
+            Entry entry = entries.get(fingerprint);
+            if (entry != null) {
+                if (!isExpired(entry, System.currentTimeMillis())) {
+                    hits++;
+                    return entry.trainingSet;
+                }
+                remove(fingerprint);
+            }
+            misses++;
+            load = loads.get(fingerprint);
+            if (load == null) {
+                load = new Load();
+                loads.put(fingerprint, load);
+                loading = true;
+            }
+        }
+        if (!loading) {
+            // Another caller is already loading this key
+            return await(load.result);
+        }
+
+        // Decrypt outside the lock so other keys are not blocked while this one loads
+        TrainingSet loaded;
+        try {
+            loaded = loader.load();
+            finishLoad(fingerprint, key, load, loaded);
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                loads.remove(fingerprint, load);
+            }
+            load.result.completeExceptionally(e);
+            throw e;
+        }
+        load.result.complete(loaded);
+        return loaded;
+    }
+
+    // Replay the changes queued during a load, outside the lock, until none are left,
+    // then store the set. Inserts are replayed as upserts since the load may already
+    // have read the row.
+    private void finishLoad(String fingerprint, SecretKey key, Load load, TrainingSet loaded) {
+        while (true) {
+            List<Change> changes;
+            synchronized (this) {
+                if (load.stale || loaded == null) {
+                    loads.remove(fingerprint, load);
+                    return;
+                }
+                if (load.pending.isEmpty()) {
+                    loads.remove(fingerprint, load);
+                    put(fingerprint, key, loaded);
+                    return;
+                }
+                changes = new ArrayList<>(load.pending);
+                load.pending.clear();
+            }
+            for (Change change : changes) {
+                Change upsert = change.insert ? new Change(change.student, change.studentId, false) : change;
+                if (!applyChange(key, loaded, upsert)) {
+                    synchronized (this) {
+                        load.stale = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // Result of another caller's load, rethrowing what it threw
+    private static TrainingSet await(CompletableFuture<TrainingSet> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    // Drop every cached training set
+    public synchronized void invalidateAll() {
+        entries.clear();
+        currentBytes = 0;
+        for (Load load : loads.values()) {
+            load.stale = true;
+        }
+        // Later misses start fresh loads instead of waiting on these
+        loads.clear();
+    }
+
+    public synchronized void invalidate(SecretKey key) {
+        String fingerprint = fingerprint(key);
+        remove(fingerprint);
+        Load load = loads.remove(fingerprint);
+        if (load != null) {
+            load.stale = true;
+        }
+    }
+
+    public synchronized void configure(int maxEntries, long maxBytes, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        evictIfNeeded(System.currentTimeMillis());
+    }
+
+    @Override
+    public void studentInserted(Student student) {
+        applyToAll(new Change(student, student.getStudentId(), true));
+    }
+
+    @Override
+    public void studentUpdated(Student student) {
+        applyToAll(new Change(student, student.getStudentId(), false));
+    }
+
+    @Override
+    public void studentDeleted(String studentId) {
+        applyToAll(new Change(null, studentId, false));
+    }
+
+    private void applyToAll(Change change) {
+        for (Entry entry : changedEntries(change)) {
+            if (applyChange(entry.key, entry.trainingSet, change)) {
+                recount(entry.trainingSet);
+            } else {
+                invalidate(entry.key);
+            }
+        }
+    }
+
+    // Entries to apply a change to; the change is also queued for every load in flight
+    private synchronized List<Entry> changedEntries(Change change) {
+        Iterator<Load> it = loads.values().iterator();
+        while (it.hasNext()) {
+            Load load = it.next();
+            if (load.pending.size() >= MAX_PENDING_CHANGES) {
+                load.stale = true;
+                it.remove();
+            } else {
+                load.pending.add(change);
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    // Apply one change to a training set; false if the set cannot take it and has to be
+    // reloaded. An update may re-encrypt a row under a different key, so a row that no
+    // longer decrypts with the set's key is removed from it.
+    private boolean applyChange(SecretKey key, TrainingSet trainingSet, Change change) {
+        if (change.student == null) {
+            trainingSet.delete(change.studentId);
+        } else {
+            EncryptedKNN.DataPoint point = EncryptedKNN.decryptStudentData(change.student, key, false);
+            boolean applied;
+            if (change.insert) {
+                applied = point == null || trainingSet.insert(point.features, point.label, point.studentId);
+            } else {
+                applied = point != null
+                        ? trainingSet.update(point.features, point.label, point.studentId)
+                        : trainingSet.update(null, null, change.studentId);
+            }
+            if (!applied) {
+                if (trainingSet.isEmpty()) {
+                    // An empty set built before any row existed cannot take a first quantized row
+                    return false;
+                }
+                System.err.println("Skipping student " + change.studentId + ": expected the same number of features as other rows");
+            }
+        }
+        scheduleCompactionIfNeeded(trainingSet);
+        return true;
+    }
+
+    private void scheduleCompactionIfNeeded(TrainingSet trainingSet) {
+        if (!trainingSet.needsCompaction() || !trainingSet.tryScheduleCompaction()) {
+            return;
+        }
+        try {
+            compactor().execute(trainingSet::compact);
+        } catch (RejectedExecutionException e) {
+            // Raced with shutdown(): compact on this thread instead
+            trainingSet.compact();
+        }
+    }
+
+    private synchronized ExecutorService compactor() {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "knn-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compactor;
+    }
+
+    // Stop the compaction thread; a later change starts a new one
+    public synchronized void shutdown() {
+        if (compactor != null) {
+            compactor.shutdown();
+            compactor = null;
+        }
+    }
+
+    private void put(String fingerprint, SecretKey key, TrainingSet trainingSet) {
+        remove(fingerprint);
+        if (trainingSet.getEstimatedBytes() > maxBytes || maxEntries < 1) {
+            // Larger than the whole budget: serve it uncached rather than flush everything
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(key, trainingSet, now);
+        entries.put(fingerprint, entry);
+        currentBytes += entry.bytes;
+        trainingSet.setResizeListener(() -> recount(trainingSet));
+        evictIfNeeded(now);
+    }
+
+    // Re-measure the entry holding this set after it changed size in place, evicting if
+    // it pushed the cache over budget. Does not count as an access.
+    private synchronized void recount(TrainingSet trainingSet) {
+        for (Entry entry : entries.values()) {
+            if (entry.trainingSet == trainingSet) {
+                long bytes = trainingSet.getEstimatedBytes();
+                currentBytes += bytes - entry.bytes;
+                entry.bytes = bytes;
+                evictIfNeeded(System.currentTimeMillis());
+                return;
+            }
+        }
+    }
+
+    private void remove(String fingerprint) {
+        Entry removed = entries.remove(fingerprint);
+        if (removed != null) {
+            currentBytes -= removed.bytes;
+        }
+    }
+
+    private void evictIfNeeded(long now) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            boolean overBudget = entries.size() > maxEntries || currentBytes > maxBytes;
+            if (!overBudget && !isExpired(entry, now)) {
+                continue;
+            }
+            it.remove();
+            currentBytes -= entry.bytes;
+            evictions++;
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return ttlMillis > 0 && now - entry.loadedAt > ttlMillis;
+    }
+
+    // Statistics
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.encryptedknn.model;
+
+import java.sql.Timestamp;
+
+// Progress of one key-rotation job: rows with id <= lastId have been handled
+public class RotationCheckpoint {
+    private String jobId;
+    private int lastId;
+    private int rowsRotated;
+    private int rowsSkipped;
+    private int rowsFailed;
+    // SHA-256 of the new key, so a resumed job cannot switch keys half way
+    private String newKeyHash;
+    private boolean completed;
+    private Timestamp updatedAt;
+
+    // Default constructor
+    public RotationCheckpoint() {}
+
+    // A job that has not handled any rows yet
+    public RotationCheckpoint(String jobId, String newKeyHash) {
+        this.jobId = jobId;
+        this.newKeyHash = newKeyHash;
+    }
+
+    // Copy, for building the next checkpoint before the current one is committed
+    public RotationCheckpoint(RotationCheckpoint other) {
+        this.jobId = other.jobId;
+        this.lastId = other.lastId;
+        this.rowsRotated = other.rowsRotated;
+        this.rowsSkipped = other.rowsSkipped;
+        this.rowsFailed = other.rowsFailed;
+        this.newKeyHash = other.newKeyHash;
+        this.completed = other.completed;
+        this.updatedAt = other.updatedAt;
+    }
+
+    // Getters and Setters
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public int getLastId() {
+        return lastId;
+    }
+
+    public void setLastId(int lastId) {
+        this.lastId = lastId;
+    }
+
+    public int getRowsRotated() {
+        return rowsRotated;
+    }
+
+    public void setRowsRotated(int rowsRotated) {
+        this.rowsRotated = rowsRotated;
+    }
+
+    public int getRowsSkipped() {
+        return rowsSkipped;
+    }
+
+    public void setRowsSkipped(int rowsSkipped) {
+        this.rowsSkipped = rowsSkipped;
+    }
+
+    public int getRowsFailed() {
+        return rowsFailed;
+    }
+
+    public void setRowsFailed(int rowsFailed) {
+        this.rowsFailed = rowsFailed;
+    }
+
+    public String getNewKeyHash() {
+        return newKeyHash;
+    }
+
+    public void setNewKeyHash(String newKeyHash) {
+        this.newKeyHash = newKeyHash;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(boolean completed) {
+        this.completed = completed;
+    }
+
+    public Timestamp getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Timestamp updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -10,6 +10,10 @@ public class Student {
     private byte[] iv;
     private String meta;
     private Timestamp createdAt;
+    // Record layout of the encrypted columns, see RecordCodec; rows written before v2 are 1
+    private int formatVersion = 1;
+    // Position of the row's latest write in the change feed, see StudentDAO.changesSince
+    private long revision;
 
     // Default constructor
     public Student() {}
@@ -26,6 +30,22 @@ public class Student {
         this.createdAt = createdAt;
     }
 
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
     // Constructor without id and timestamp (for insertion)
     public Student(String studentId, byte[] nameEncrypted, byte[] dataEncrypted, 
                    byte[] iv, String meta) {
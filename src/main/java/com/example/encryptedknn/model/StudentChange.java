@@ -0,0 +1,47 @@
+package com.example.encryptedknn.model;
+
+// One entry of the students change feed: the row as of its latest write, or its deletion
+public class StudentChange {
+    private long revision;
+    private String studentId;
+    // Null for a deletion
+    private Student student;
+
+    // Default constructor
+    public StudentChange() {}
+
+    public StudentChange(long revision, String studentId, Student student) {
+        this.revision = revision;
+        this.studentId = studentId;
+        this.student = student;
+    }
+
+    public boolean isDeletion() {
+        return student == null;
+    }
+
+    // Getters and Setters
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
+    public String getStudentId() {
+        return studentId;
+    }
+
+    public void setStudentId(String studentId) {
+        this.studentId = studentId;
+    }
+
+    public Student getStudent() {
+        return student;
+    }
+
+    public void setStudent(Student student) {
+        this.student = student;
+    }
+}
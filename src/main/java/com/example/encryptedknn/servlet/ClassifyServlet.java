@@ -1,7 +1,26 @@
 package com.example.encryptedknn.servlet;
 
+import com.example.encryptedknn.dao.ChangeFeedPoller;
+import com.example.encryptedknn.dao.ConnectionPool;
+import com.example.encryptedknn.dao.DatabaseConfig;
+import com.example.encryptedknn.dao.StudentDAO;
+import com.example.encryptedknn.dao.StudentRepository;
+import com.example.encryptedknn.knn.DistanceKernels;
+import com.example.encryptedknn.knn.DistanceMetric;
 import com.example.encryptedknn.knn.EncryptedKNN;
+import com.example.encryptedknn.knn.FeatureEncoding;
+import com.example.encryptedknn.knn.IndexType;
+import com.example.encryptedknn.knn.HnswIndex;
+import com.example.encryptedknn.knn.LeaveOneOutEvaluator;
+import com.example.encryptedknn.knn.ParallelScanner;
+import com.example.encryptedknn.knn.QueryOptions;
+import com.example.encryptedknn.knn.QueryResultCache;
+import com.example.encryptedknn.knn.SearchMode;
+import com.example.encryptedknn.knn.ShardCoordinator;
+import com.example.encryptedknn.knn.TrainingSetCache;
 import com.example.encryptedknn.util.AESUtil;
+import com.example.encryptedknn.util.JsonParser;
+import com.example.encryptedknn.util.LatencyTracker;
 
 import javax.crypto.SecretKey;
 import javax.servlet.ServletException;
@@ -10,17 +29,226 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 @WebServlet("/classify")
 public class ClassifyServlet extends HttpServlet {
+    // kMax for action=evaluate when none is given, and the largest accepted
+    private static final int DEFAULT_EVALUATION_K_MAX = 20;
+    private static final int MAX_EVALUATION_K_MAX = 100;
+
     private EncryptedKNN knnClassifier;
+    private int defaultEfSearch;
+    // Set when knn-shard-workers lists worker URLs; serves mode=sharded queries
+    private ShardCoordinator shardCoordinator;
+    // Applies writes made by other nodes; null when knn-change-poll-ms is 0
+    private ChangeFeedPoller changeFeedPoller;
 
     @Override
     public void init() throws ServletException {
         // Default k=3, can be configured
         knnClassifier = new EncryptedKNN(3);
+
+        // Size the shared decrypted training set cache from web.xml context params
+        TrainingSetCache.shared().configure(
+            getIntInitParameter("knn-cache-max-entries", TrainingSetCache.DEFAULT_MAX_ENTRIES),
+            getLongInitParameter("knn-cache-max-bytes", TrainingSetCache.DEFAULT_MAX_BYTES),
+            getLongInitParameter("knn-cache-ttl-seconds", TrainingSetCache.DEFAULT_TTL_MILLIS / 1000) * 1000);
+
+        // Results of repeated queries, dropped on any write to the students table
+        knnClassifier.getResultCache().configure(
+            getIntInitParameter("knn-result-cache-max-entries", QueryResultCache.DEFAULT_MAX_ENTRIES),
+            getIntInitParameter("knn-result-cache-precision", QueryResultCache.DEFAULT_PRECISION));
+
+        knnClassifier.setSinglePrecision(
+            Boolean.parseBoolean(getServletContext().getInitParameter("knn-float32-features")));
+
+        // Quantized encodings (float16, int8) take precedence over knn-float32-features
+        String encoding = getServletContext().getInitParameter("knn-feature-encoding");
+        if (encoding != null && !encoding.trim().isEmpty()) {
+            try {
+                knnClassifier.setFeatureEncoding(FeatureEncoding.fromString(encoding));
+            } catch (IllegalArgumentException e) {
+                throw new ServletException(e.getMessage(), e);
+            }
+        }
+        knnClassifier.setRerankFactor(getIntInitParameter("knn-rerank-factor", EncryptedKNN.DEFAULT_RERANK_FACTOR));
+
+        // Rows per round trip when a cache fill streams the students table
+        knnClassifier.setFetchSize(getIntInitParameter("knn-fetch-size", StudentDAO.DEFAULT_FETCH_SIZE));
+
+        // Multi-core scan; knn-parallelism=1 keeps everything on the request thread
+        knnClassifier.setParallelScanner(new ParallelScanner(
+            getIntInitParameter("knn-parallelism", Runtime.getRuntime().availableProcessors()),
+            getIntInitParameter("knn-parallel-min-chunk-rows", ParallelScanner.DEFAULT_MIN_CHUNK_ROWS)));
+
+        // Exact search index built on each cache fill: brute, kdtree or balltree
+        try {
+            knnClassifier.setIndexType(IndexType.fromString(getServletContext().getInitParameter("knn-index")));
+        } catch (IllegalArgumentException e) {
+            throw new ServletException(e.getMessage(), e);
+        }
+
+        // HNSW graph for mode=approx queries
+        knnClassifier.setHnswParameters(
+            getIntInitParameter("knn-hnsw-m", HnswIndex.DEFAULT_M),
+            getIntInitParameter("knn-hnsw-ef-construction", HnswIndex.DEFAULT_EF_CONSTRUCTION));
+        defaultEfSearch = getIntInitParameter("knn-hnsw-ef-search", HnswIndex.DEFAULT_EF_SEARCH);
+
+        // Shard workers in shard order, e.g. http://localhost:9101,http://localhost:9102
+        String workers = getServletContext().getInitParameter("knn-shard-workers");
+        if (workers != null && !workers.trim().isEmpty()) {
+            List<String> workerUrls = new ArrayList<>();
+            for (String url : workers.split(",")) {
+                if (!url.trim().isEmpty()) {
+                    workerUrls.add(url.trim());
+                }
+            }
+            String secret = getServletContext().getInitParameter("knn-shard-secret");
+            if (secret == null || secret.trim().isEmpty()) {
+                System.err.println("knn-shard-workers is set but knn-shard-secret is not; sharded search is disabled");
+            } else {
+                shardCoordinator = new ShardCoordinator(workerUrls,
+                    getIntInitParameter("knn-shard-timeout-ms", ShardCoordinator.DEFAULT_TIMEOUT_MILLIS),
+                    secret.trim());
+            }
+        }
+
+        // Follow the students change feed so writes through other nodes reach this node's
+        // caches within one interval. A segment store belongs to this process alone.
+        StudentRepository repository = DatabaseConfig.studentRepository();
+        long pollMillis = getLongInitParameter("knn-change-poll-ms", ChangeFeedPoller.DEFAULT_INTERVAL_MILLIS);
+        if (pollMillis > 0 && repository instanceof StudentDAO) {
+            changeFeedPoller = new ChangeFeedPoller(repository, pollMillis,
+                getIntInitParameter("knn-change-batch-size", ChangeFeedPoller.DEFAULT_BATCH_SIZE),
+                getLongInitParameter("knn-change-retention-seconds",
+                    ChangeFeedPoller.DEFAULT_DELETION_RETENTION_MILLIS / 1000) * 1000,
+                TrainingSetCache.shared()::invalidateAll);
+            changeFeedPoller.start();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (changeFeedPoller != null) {
+            changeFeedPoller.stop();
+        }
+        knnClassifier.shutdown();
+        TrainingSetCache.shared().shutdown();
+        if (shardCoordinator != null) {
+            shardCoordinator.shutdown();
+        }
+    }
+
+    private static boolean isShardedMode(HttpServletRequest request) {
+        String mode = request.getParameter("mode");
+        return mode != null && "sharded".equalsIgnoreCase(mode.trim());
+    }
+
+    // mode=sharded: scatter the query to the shard workers and answer with the merged
+    // prediction, votes and neighbours, whichever of classify, neighbors or
+    // classifyWithNeighbors was asked for
+    private void handleShardedQuery(HttpServletRequest request, HttpServletResponse response,
+                                    double[] features, String encryptionKey) throws IOException {
+        if (shardCoordinator == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"mode=sharded requires knn-shard-workers to be configured\"}");
+            return;
+        }
+
+        DistanceMetric metric;
+        ShardCoordinator.Result result;
+        try {
+            metric = DistanceMetric.fromString(request.getParameter("metric"));
+            result = shardCoordinator.classifyWithNeighbors(features, encryptionKey, knnClassifier.getK(), metric);
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid sharded query: " + e.getMessage() + "\"}");
+            return;
+        } catch (IllegalStateException e) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().write("{\"error\": \"Sharded query failed: " + e.getMessage() + "\"}");
+            return;
+        }
+
+        StringBuilder jsonResponse = new StringBuilder();
+        jsonResponse.append("{")
+            .append("\"success\": true, ")
+            .append("\"predictedLabel\": \"").append(result.classification.predictedLabel).append("\", ")
+            .append("\"queryFeatures\": [");
+
+        for (int i = 0; i < features.length; i++) {
+            if (i > 0) jsonResponse.append(", ");
+            jsonResponse.append(features[i]);
+        }
+
+        jsonResponse.append("], ")
+            .append("\"k\": ").append(knnClassifier.getK()).append(", ")
+            .append("\"mode\": \"sharded\", ")
+            .append("\"metric\": \"").append(metric.name().toLowerCase()).append("\", ")
+            .append("\"shards\": {")
+                .append("\"total\": ").append(result.shardCount).append(", ")
+                .append("\"responded\": ").append(result.shardCount - result.failedShards.size()).append(", ")
+                .append("\"failed\": ").append(result.failedShards)
+            .append("}, ")
+            .append("\"partial\": ").append(result.isPartial()).append(", ")
+            .append("\"votes\": {");
+
+        int n = 0;
+        for (Map.Entry<String, Integer> vote : result.classification.voteCounts.entrySet()) {
+            if (n++ > 0) jsonResponse.append(", ");
+            jsonResponse.append("\"").append(vote.getKey()).append("\": ").append(vote.getValue());
+        }
+        jsonResponse.append("}, ")
+            .append("\"neighbors\": [");
+        appendNeighbors(jsonResponse, result.classification.neighbors);
+        jsonResponse.append("]")
+            .append("}");
+
+        response.setContentType("application/json");
+        response.getWriter().write(jsonResponse.toString());
+    }
+
+    // Search options from the optional mode (exact|approx), efSearch and metric parameters
+    private QueryOptions parseQueryOptions(HttpServletRequest request) {
+        QueryOptions options = new QueryOptions()
+            .setMode(SearchMode.fromString(request.getParameter("mode")))
+            .setMetric(DistanceMetric.fromString(request.getParameter("metric")))
+            .setEfSearch(defaultEfSearch);
+        if (options.getMode() == SearchMode.APPROX && options.getMetric() != DistanceMetric.EUCLIDEAN) {
+            throw new IllegalArgumentException("mode=approx requires the euclidean metric");
+        }
+
+        String efSearchParam = request.getParameter("efSearch");
+        if (efSearchParam != null) {
+            int efSearch = Integer.parseInt(efSearchParam.trim());
+            if (efSearch < 1) {
+                throw new IllegalArgumentException("efSearch must be a positive integer");
+            }
+            options.setEfSearch(efSearch);
+        }
+        return options;
+    }
+
+    private int getIntInitParameter(String name, int defaultValue) {
+        return (int) getLongInitParameter(name, defaultValue);
+    }
+
+    private long getLongInitParameter(String name, long defaultValue) {
+        String value = getServletContext().getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
     }
 
     @Override
@@ -36,19 +264,69 @@ public class ClassifyServlet extends HttpServlet {
         }
 
         String action = request.getParameter("action");
+        // Query latency is what background jobs (key rotation) throttle themselves against
+        long start = System.nanoTime();
         
         if ("classify".equals(action)) {
             handleClassification(request, response, session);
+            recordLatency(start);
+        } else if ("classifyBatch".equals(action)) {
+            handleBatchClassification(request, response, session);
+            recordLatency(start);
         } else if ("neighbors".equals(action)) {
             handleGetNeighbors(request, response, session);
+            recordLatency(start);
+        } else if ("classifyWithNeighbors".equals(action)) {
+            handleClassifyWithNeighbors(request, response, session);
+            recordLatency(start);
+        } else if ("evaluate".equals(action)) {
+            handleEvaluation(request, response, session);
         } else if ("config".equals(action)) {
             handleConfiguration(request, response, session);
         } else {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            response.getWriter().write("{\"error\": \"Invalid action. Use 'classify', 'neighbors', or 'config'\"}");
+            response.getWriter().write("{\"error\": \"Invalid action. Use 'classify', 'classifyBatch', 'neighbors', 'classifyWithNeighbors', 'evaluate', or 'config'\"}");
         }
     }
 
+    private String changeFeedJson() {
+        if (changeFeedPoller == null) {
+            return "\"changeFeed\": {\"enabled\": false}, ";
+        }
+        return "\"changeFeed\": {" +
+                "\"enabled\": true, " +
+                "\"revision\": " + changeFeedPoller.getRevision() + ", " +
+                "\"changesApplied\": " + changeFeedPoller.getChangesApplied() +
+            "}, ";
+    }
+
+    // Built-in pool counters; a JNDI DataSource is monitored through the container
+    private static String connectionPoolJson() {
+        ConnectionPool.Metrics pool = DatabaseConfig.poolMetrics();
+        if (pool == null) {
+            String jndiName = DatabaseConfig.jndiName();
+            return "\"connectionPool\": {\"type\": \"jndi\"" +
+                    (jndiName != null ? ", \"name\": \"" + jndiName + "\"" : "") + "}, ";
+        }
+        return "\"connectionPool\": {" +
+                "\"type\": \"builtin\", " +
+                "\"active\": " + pool.active + ", " +
+                "\"idle\": " + pool.idle + ", " +
+                "\"maxSize\": " + pool.maxSize + ", " +
+                "\"waiting\": " + pool.waiting + ", " +
+                "\"borrows\": " + pool.borrows + ", " +
+                "\"timeouts\": " + pool.timeouts + ", " +
+                "\"created\": " + pool.created + ", " +
+                "\"leaksDetected\": " + pool.leaksDetected + ", " +
+                "\"averageWaitMillis\": " + pool.getAverageWaitMillis() + ", " +
+                "\"maxWaitMillis\": " + pool.maxWaitMillis +
+            "}, ";
+    }
+
+    private static void recordLatency(long startNanos) {
+        LatencyTracker.classify().record((System.nanoTime() - startNanos) / 1_000_000);
+    }
+
     private void handleClassification(HttpServletRequest request, HttpServletResponse response, HttpSession session) 
             throws IOException {
         
@@ -73,8 +351,22 @@ public class ClassifyServlet extends HttpServlet {
             // Convert the key string to SecretKey
             SecretKey key = AESUtil.keyFromString(encryptionKey);
 
+            if (isShardedMode(request)) {
+                handleShardedQuery(request, response, features, encryptionKey);
+                return;
+            }
+
+            QueryOptions options;
+            try {
+                options = parseQueryOptions(request);
+            } catch (IllegalArgumentException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("{\"error\": \"Invalid search options: " + e.getMessage() + "\"}");
+                return;
+            }
+
             // Perform classification
-            String predictedLabel = knnClassifier.classify(features, key);
+            String predictedLabel = knnClassifier.classify(features, key, options);
 
             // Build JSON response
             StringBuilder jsonResponse = new StringBuilder();
@@ -89,7 +381,9 @@ public class ClassifyServlet extends HttpServlet {
             }
             
             jsonResponse.append("], ")
-                .append("\"k\": ").append(knnClassifier.getK())
+                .append("\"k\": ").append(knnClassifier.getK()).append(", ")
+                .append("\"mode\": \"").append(options.getMode().name().toLowerCase()).append("\", ")
+                .append("\"metric\": \"").append(options.getMetric().name().toLowerCase()).append("\"")
                 .append("}");
 
             response.setContentType("application/json");
@@ -105,6 +399,73 @@ public class ClassifyServlet extends HttpServlet {
         }
     }
 
+    // Classify many vectors from one JSON body: {"encryptionKey": "...", "queries": [[...], ...]}
+    private void handleBatchClassification(HttpServletRequest request, HttpServletResponse response, HttpSession session)
+            throws IOException {
+
+        double[][] queries;
+        String encryptionKey;
+        QueryOptions options;
+        try {
+            StringBuilder body = new StringBuilder();
+            BufferedReader reader = request.getReader();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, read);
+            }
+
+            Map<String, Object> json = JsonParser.parseObject(body.toString());
+            queries = JsonParser.toMatrix(json.get("queries"));
+            Object keyValue = json.get("encryptionKey");
+            encryptionKey = keyValue instanceof String ? (String) keyValue : request.getParameter("encryptionKey");
+            options = parseQueryOptions(request);
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid batch request: " + e.getMessage() + "\"}");
+            return;
+        }
+
+        if (encryptionKey == null || queries.length == 0) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Queries and encryption key are required\"}");
+            return;
+        }
+
+        try {
+            SecretKey key = AESUtil.keyFromString(encryptionKey);
+            String[] predictedLabels = knnClassifier.classifyBatch(queries, key, options);
+
+            StringBuilder jsonResponse = new StringBuilder();
+            jsonResponse.append("{")
+                .append("\"success\": true, ")
+                .append("\"count\": ").append(predictedLabels.length).append(", ")
+                .append("\"k\": ").append(knnClassifier.getK()).append(", ")
+                .append("\"mode\": \"").append(options.getMode().name().toLowerCase()).append("\", ")
+                .append("\"metric\": \"").append(options.getMetric().name().toLowerCase()).append("\", ")
+                .append("\"predictedLabels\": [");
+
+            for (int i = 0; i < predictedLabels.length; i++) {
+                if (i > 0) jsonResponse.append(", ");
+                jsonResponse.append("\"").append(predictedLabels[i]).append("\"");
+            }
+
+            jsonResponse.append("]")
+                .append("}");
+
+            response.setContentType("application/json");
+            response.getWriter().write(jsonResponse.toString());
+
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid batch request: " + e.getMessage() + "\"}");
+        } catch (Exception e) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.getWriter().write("{\"error\": \"Batch classification error: " + e.getMessage() + "\"}");
+            e.printStackTrace();
+        }
+    }
+
     private void handleGetNeighbors(HttpServletRequest request, HttpServletResponse response, HttpSession session) 
             throws IOException {
         
@@ -129,8 +490,22 @@ public class ClassifyServlet extends HttpServlet {
             // Convert the key string to SecretKey
             SecretKey key = AESUtil.keyFromString(encryptionKey);
 
+            if (isShardedMode(request)) {
+                handleShardedQuery(request, response, features, encryptionKey);
+                return;
+            }
+
+            QueryOptions options;
+            try {
+                options = parseQueryOptions(request);
+            } catch (IllegalArgumentException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("{\"error\": \"Invalid search options: " + e.getMessage() + "\"}");
+                return;
+            }
+
             // Get k nearest neighbors
-            List<EncryptedKNN.NeighborInfo> neighbors = knnClassifier.getKNearestNeighbors(features, key);
+            List<EncryptedKNN.NeighborInfo> neighbors = knnClassifier.getKNearestNeighbors(features, key, options);
 
             // Build JSON response
             StringBuilder jsonResponse = new StringBuilder();
@@ -145,27 +520,127 @@ public class ClassifyServlet extends HttpServlet {
             
             jsonResponse.append("], ")
                 .append("\"k\": ").append(knnClassifier.getK()).append(", ")
+                .append("\"mode\": \"").append(options.getMode().name().toLowerCase()).append("\", ")
+                .append("\"metric\": \"").append(options.getMetric().name().toLowerCase()).append("\", ")
                 .append("\"neighbors\": [");
 
-            for (int i = 0; i < neighbors.size(); i++) {
+            appendNeighbors(jsonResponse, neighbors);
+            
+            jsonResponse.append("]")
+                .append("}");
+
+            response.setContentType("application/json");
+            response.getWriter().write(jsonResponse.toString());
+
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid feature format. Use comma-separated numbers\"}");
+        } catch (Exception e) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.getWriter().write("{\"error\": \"Neighbors retrieval error: " + e.getMessage() + "\"}");
+            e.printStackTrace();
+        }
+    }
+
+    private void appendNeighbors(StringBuilder json, List<EncryptedKNN.NeighborInfo> neighbors) {
+        for (int i = 0; i < neighbors.size(); i++) {
+            if (i > 0) json.append(", ");
+
+            EncryptedKNN.NeighborInfo neighbor = neighbors.get(i);
+            json.append("{")
+                .append("\"studentId\": \"").append(neighbor.studentId).append("\", ")
+                .append("\"label\": \"").append(neighbor.label).append("\", ")
+                .append("\"distance\": ").append(neighbor.distance).append(", ")
+                .append("\"features\": [");
+
+            for (int j = 0; j < neighbor.features.length; j++) {
+                if (j > 0) json.append(", ");
+                json.append(neighbor.features[j]);
+            }
+
+            json.append("]")
+                .append("}");
+        }
+    }
+
+    // Prediction, vote counts and neighbours from one search; weighted=true adds
+    // inverse-distance-weighted scores per label
+    private void handleClassifyWithNeighbors(HttpServletRequest request, HttpServletResponse response, HttpSession session)
+            throws IOException {
+
+        String featuresParam = request.getParameter("features");
+        String encryptionKey = request.getParameter("encryptionKey");
+
+        if (featuresParam == null || encryptionKey == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Features and encryption key are required\"}");
+            return;
+        }
+
+        try {
+            // Parse features from comma-separated string
+            String[] featureStrings = featuresParam.split(",");
+            double[] features = new double[featureStrings.length];
+
+            for (int i = 0; i < featureStrings.length; i++) {
+                features[i] = Double.parseDouble(featureStrings[i].trim());
+            }
+
+            SecretKey key = AESUtil.keyFromString(encryptionKey);
+            boolean weighted = Boolean.parseBoolean(request.getParameter("weighted"));
+
+            if (isShardedMode(request)) {
+                handleShardedQuery(request, response, features, encryptionKey);
+                return;
+            }
+
+            QueryOptions options;
+            try {
+                options = parseQueryOptions(request);
+            } catch (IllegalArgumentException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("{\"error\": \"Invalid search options: " + e.getMessage() + "\"}");
+                return;
+            }
+
+            EncryptedKNN.ClassificationResult result = knnClassifier.classifyWithNeighbors(features, key, options);
+
+            StringBuilder jsonResponse = new StringBuilder();
+            jsonResponse.append("{")
+                .append("\"success\": true, ")
+                .append("\"predictedLabel\": \"").append(result.predictedLabel).append("\", ")
+                .append("\"queryFeatures\": [");
+
+            for (int i = 0; i < features.length; i++) {
                 if (i > 0) jsonResponse.append(", ");
-                
-                EncryptedKNN.NeighborInfo neighbor = neighbors.get(i);
-                jsonResponse.append("{")
-                    .append("\"studentId\": \"").append(neighbor.studentId).append("\", ")
-                    .append("\"label\": \"").append(neighbor.label).append("\", ")
-                    .append("\"distance\": ").append(neighbor.distance).append(", ")
-                    .append("\"features\": [");
-                
-                for (int j = 0; j < neighbor.features.length; j++) {
-                    if (j > 0) jsonResponse.append(", ");
-                    jsonResponse.append(neighbor.features[j]);
+                jsonResponse.append(features[i]);
+            }
+
+            jsonResponse.append("], ")
+                .append("\"k\": ").append(knnClassifier.getK()).append(", ")
+                .append("\"mode\": \"").append(options.getMode().name().toLowerCase()).append("\", ")
+                .append("\"metric\": \"").append(options.getMetric().name().toLowerCase()).append("\", ")
+                .append("\"votes\": {");
+
+            int n = 0;
+            for (Map.Entry<String, Integer> vote : result.voteCounts.entrySet()) {
+                if (n++ > 0) jsonResponse.append(", ");
+                jsonResponse.append("\"").append(vote.getKey()).append("\": ").append(vote.getValue());
+            }
+            jsonResponse.append("}, ");
+
+            if (weighted) {
+                jsonResponse.append("\"weightedScores\": {");
+                n = 0;
+                for (Map.Entry<String, Double> score : result.weightedScores.entrySet()) {
+                    if (n++ > 0) jsonResponse.append(", ");
+                    jsonResponse.append("\"").append(score.getKey()).append("\": ").append(score.getValue());
                 }
-                
-                jsonResponse.append("]")
-                    .append("}");
+                jsonResponse.append("}, ");
             }
-            
+
+            jsonResponse.append("\"neighbors\": [");
+            appendNeighbors(jsonResponse, result.neighbors);
             jsonResponse.append("]")
                 .append("}");
 
@@ -177,7 +652,98 @@ public class ClassifyServlet extends HttpServlet {
             response.getWriter().write("{\"error\": \"Invalid feature format. Use comma-separated numbers\"}");
         } catch (Exception e) {
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            response.getWriter().write("{\"error\": \"Neighbors retrieval error: " + e.getMessage() + "\"}");
+            response.getWriter().write("{\"error\": \"Classification error: " + e.getMessage() + "\"}");
+            e.printStackTrace();
+        }
+    }
+
+    // Leave-one-out accuracy and confusion matrix for every k up to kMax
+    private void handleEvaluation(HttpServletRequest request, HttpServletResponse response, HttpSession session)
+            throws IOException {
+
+        String userRole = (String) session.getAttribute("role");
+
+        // Scores every training row, so only admins can run it
+        if (!"ADMIN".equals(userRole)) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            response.getWriter().write("{\"error\": \"Admin access required for evaluation\"}");
+            return;
+        }
+
+        String encryptionKey = request.getParameter("encryptionKey");
+        if (encryptionKey == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Encryption key is required\"}");
+            return;
+        }
+
+        int kMax = DEFAULT_EVALUATION_K_MAX;
+        DistanceMetric metric;
+        try {
+            String kMaxParam = request.getParameter("kMax");
+            if (kMaxParam != null) {
+                kMax = Integer.parseInt(kMaxParam.trim());
+            }
+            if (kMax < 1 || kMax > MAX_EVALUATION_K_MAX) {
+                throw new IllegalArgumentException("kMax must be between 1 and " + MAX_EVALUATION_K_MAX);
+            }
+            metric = DistanceMetric.fromString(request.getParameter("metric"));
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid evaluation options: " + e.getMessage() + "\"}");
+            return;
+        }
+
+        try {
+            SecretKey key = AESUtil.keyFromString(encryptionKey);
+            LeaveOneOutEvaluator.Result result = knnClassifier.evaluate(key, kMax, metric);
+            String[] labels = result.getLabels();
+
+            StringBuilder jsonResponse = new StringBuilder();
+            jsonResponse.append("{")
+                .append("\"success\": true, ")
+                .append("\"rows\": ").append(result.getRows()).append(", ")
+                .append("\"metric\": \"").append(metric.name().toLowerCase()).append("\", ")
+                .append("\"kMax\": ").append(result.getKMax()).append(", ")
+                .append("\"bestK\": ").append(result.getBestK()).append(", ")
+                .append("\"labels\": [");
+
+            for (int i = 0; i < labels.length; i++) {
+                if (i > 0) jsonResponse.append(", ");
+                jsonResponse.append("\"").append(labels[i]).append("\"");
+            }
+            jsonResponse.append("], ")
+                .append("\"results\": [");
+
+            // Confusion matrix rows are actual labels, columns predicted, both in label order
+            for (int k = 1; k <= result.getKMax(); k++) {
+                if (k > 1) jsonResponse.append(", ");
+                jsonResponse.append("{")
+                    .append("\"k\": ").append(k).append(", ")
+                    .append("\"accuracy\": ").append(result.getAccuracy(k)).append(", ")
+                    .append("\"confusionMatrix\": [");
+                int[][] confusion = result.getConfusionMatrix(k);
+                for (int a = 0; a < confusion.length; a++) {
+                    if (a > 0) jsonResponse.append(", ");
+                    jsonResponse.append("[");
+                    for (int p = 0; p < confusion[a].length; p++) {
+                        if (p > 0) jsonResponse.append(", ");
+                        jsonResponse.append(confusion[a][p]);
+                    }
+                    jsonResponse.append("]");
+                }
+                jsonResponse.append("]}");
+            }
+            jsonResponse.append("]")
+                .append("}");
+
+            response.setContentType("application/json");
+            response.getWriter().write(jsonResponse.toString());
+
+        } catch (Exception e) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.getWriter().write("{\"error\": \"Evaluation error: " + e.getMessage() + "\"}");
             e.printStackTrace();
         }
     }
@@ -233,10 +799,29 @@ public class ClassifyServlet extends HttpServlet {
         }
 
         // Return current configuration
+        TrainingSetCache cache = knnClassifier.getTrainingSetCache();
+        QueryResultCache resultCache = knnClassifier.getResultCache();
         response.setContentType("application/json");
         response.getWriter().write("{" +
             "\"success\": true, " +
             "\"k\": " + knnClassifier.getK() + ", " +
+            "\"index\": \"" + knnClassifier.getIndexType() + "\", " +
+            "\"featureEncoding\": \"" + knnClassifier.getFeatureEncoding() + "\", " +
+            "\"distanceKernel\": \"" + DistanceKernels.get().getName() + "\", " +
+            "\"cache\": {" +
+                "\"entries\": " + cache.size() + ", " +
+                "\"bytes\": " + cache.getCurrentBytes() + ", " +
+                "\"hits\": " + cache.getHits() + ", " +
+                "\"misses\": " + cache.getMisses() + ", " +
+                "\"evictions\": " + cache.getEvictions() +
+            "}, " +
+            "\"resultCache\": {" +
+                "\"entries\": " + resultCache.size() + ", " +
+                "\"hits\": " + resultCache.getHits() + ", " +
+                "\"misses\": " + resultCache.getMisses() +
+            "}, " +
+            connectionPoolJson() +
+            changeFeedJson() +
             "\"message\": \"KNN Classifier ready\"" +
             "}");
     }
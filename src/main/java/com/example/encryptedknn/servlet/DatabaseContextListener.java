@@ -0,0 +1,22 @@
+package com.example.encryptedknn.servlet;
+
+import com.example.encryptedknn.dao.DatabaseConfig;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+// Sets up the shared DataSource from web.xml before any servlet starts, and closes the
+// built-in pool when the application stops
+public class DatabaseContextListener implements ServletContextListener {
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+        DatabaseConfig.configure(context::getInitParameter);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        DatabaseConfig.shutdown();
+    }
+}
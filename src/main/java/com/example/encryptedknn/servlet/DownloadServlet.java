@@ -1,8 +1,11 @@
 package com.example.encryptedknn.servlet;
 
+import com.example.encryptedknn.dao.DatabaseConfig;
 import com.example.encryptedknn.dao.StudentDAO;
+import com.example.encryptedknn.dao.StudentRepository;
 import com.example.encryptedknn.model.Student;
 import com.example.encryptedknn.util.AESUtil;
+import com.example.encryptedknn.util.RecordCodec;
 
 import javax.crypto.SecretKey;
 import javax.servlet.ServletException;
@@ -12,16 +15,56 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 @WebServlet("/download")
 public class DownloadServlet extends HttpServlet {
-    private StudentDAO studentDAO;
+    // Students per bulk decryption task, and tasks in flight per worker
+    private static final int BULK_CHUNK_ROWS = 256;
+    private static final int BULK_CHUNKS_PER_WORKER = 2;
+    // Page size of action=list
+    private static final int DEFAULT_LIST_LIMIT = 100;
+    private static final int MAX_LIST_LIMIT = 1000;
+
+    private StudentRepository studentDAO;
+    // Shared by all bulk decryptions; each request bounds its own tasks in flight
+    private ExecutorService bulkPool;
+    private int bulkThreads;
 
     @Override
     public void init() throws ServletException {
-        studentDAO = new StudentDAO();
+        studentDAO = DatabaseConfig.studentRepository();
+
+        bulkThreads = Runtime.getRuntime().availableProcessors();
+        String threads = getServletContext().getInitParameter("download-decrypt-threads");
+        if (threads != null && !threads.trim().isEmpty()) {
+            try {
+                bulkThreads = Integer.parseInt(threads.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid value for download-decrypt-threads: " + threads + ", using " + bulkThreads);
+            }
+        }
+        bulkThreads = Math.max(bulkThreads, 1);
+        bulkPool = Executors.newFixedThreadPool(bulkThreads, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-decrypt");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void destroy() {
+        bulkPool.shutdownNow();
     }
 
     @Override
@@ -51,11 +94,49 @@ public class DownloadServlet extends HttpServlet {
         }
     }
 
+    // Newest first, one page per request; nextCursor fetches the page after this one
     private void handleListStudents(HttpServletRequest request, HttpServletResponse response, HttpSession session) 
             throws IOException {
+
+        int limit = DEFAULT_LIST_LIMIT;
+        String limitParam = request.getParameter("limit");
+        Timestamp afterCreatedAt = null;
+        int afterId = 0;
+        try {
+            if (limitParam != null) {
+                limit = Integer.parseInt(limitParam.trim());
+                if (limit < 1 || limit > MAX_LIST_LIMIT) {
+                    throw new NumberFormatException();
+                }
+            }
+            String cursor = request.getParameter("cursor");
+            if (cursor != null && !cursor.isEmpty()) {
+                // "<created_at epoch millis>.<created_at nanos>.<id>", as written below
+                String[] parts = cursor.split("\\.");
+                if (parts.length != 3) {
+                    throw new NumberFormatException();
+                }
+                afterCreatedAt = new Timestamp(Long.parseLong(parts[0]));
+                afterCreatedAt.setNanos(Integer.parseInt(parts[1]));
+                afterId = Integer.parseInt(parts[2]);
+            }
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"limit must be 1-" + MAX_LIST_LIMIT
+                + " and cursor must be a nextCursor from a previous page\"}");
+            return;
+        }
         
         try {
-            List<Student> students = studentDAO.getAllStudents();
+            // One extra row says whether there is a next page
+            List<Student> students = studentDAO.listStudents(afterCreatedAt, afterId, limit + 1);
+            if (students == null) {
+                throw new IllegalStateException("Listing query failed");
+            }
+            boolean hasMore = students.size() > limit;
+            if (hasMore) {
+                students = students.subList(0, limit);
+            }
             
             StringBuilder jsonResponse = new StringBuilder();
             jsonResponse.append("{\"success\": true, \"students\": [");
@@ -71,7 +152,15 @@ public class DownloadServlet extends HttpServlet {
                     .append("}");
             }
             
-            jsonResponse.append("]}");
+            jsonResponse.append("], \"nextCursor\": ");
+            if (hasMore) {
+                Student last = students.get(students.size() - 1);
+                jsonResponse.append("\"").append(last.getCreatedAt().getTime()).append('.')
+                    .append(last.getCreatedAt().getNanos()).append('.').append(last.getId()).append("\"");
+            } else {
+                jsonResponse.append("null");
+            }
+            jsonResponse.append("}");
             
             response.setContentType("application/json");
             response.getWriter().write(jsonResponse.toString());
@@ -110,12 +199,9 @@ public class DownloadServlet extends HttpServlet {
             // Convert the key string to SecretKey
             SecretKey key = AESUtil.keyFromString(encryptionKey);
 
-            // Decrypt the student data
-            byte[] decryptedName = AESUtil.decrypt(student.getNameEncrypted(), key, student.getIv());
-            byte[] decryptedData = AESUtil.decrypt(student.getDataEncrypted(), key, student.getIv());
-
-            String studentName = new String(decryptedName);
-            String studentData = new String(decryptedData);
+            // Decrypt the student data (v1 or v2 records)
+            String studentName = RecordCodec.decryptName(student, key);
+            String studentData = RecordCodec.decryptData(student, key);
 
             // Build JSON response
             StringBuilder jsonResponse = new StringBuilder();
@@ -179,49 +265,131 @@ public class DownloadServlet extends HttpServlet {
             return;
         }
 
+        SecretKey key;
         try {
-            List<Student> students = studentDAO.getAllStudents();
-            SecretKey key = AESUtil.keyFromString(encryptionKey);
-            
-            StringBuilder jsonResponse = new StringBuilder();
-            jsonResponse.append("{\"success\": true, \"students\": [");
-            
-            for (int i = 0; i < students.size(); i++) {
-                Student student = students.get(i);
-                if (i > 0) jsonResponse.append(", ");
-                
-                try {
-                    byte[] decryptedName = AESUtil.decrypt(student.getNameEncrypted(), key, student.getIv());
-                    byte[] decryptedData = AESUtil.decrypt(student.getDataEncrypted(), key, student.getIv());
-
-                    String studentName = new String(decryptedName);
-                    String studentData = new String(decryptedData);
-
-                    jsonResponse.append("{")
-                        .append("\"studentId\": \"").append(student.getStudentId()).append("\", ")
-                        .append("\"studentName\": \"").append(studentName).append("\", ")
-                        .append("\"studentData\": \"").append(studentData).append("\", ")
-                        .append("\"meta\": \"").append(student.getMeta() != null ? student.getMeta() : "").append("\", ")
-                        .append("\"createdAt\": \"").append(student.getCreatedAt()).append("\"")
-                        .append("}");
-                } catch (Exception e) {
-                    // If decryption fails for this student, include error info
-                    jsonResponse.append("{")
-                        .append("\"studentId\": \"").append(student.getStudentId()).append("\", ")
-                        .append("\"error\": \"Decryption failed\"")
-                        .append("}");
+            key = AESUtil.keyFromString(encryptionKey);
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid encryption key\"}");
+            return;
+        }
+
+        // Rows are read off a cursor and decrypted on the pool in chunks while the next
+        // rows arrive. Finished chunks are written in table order and flushed as soon as
+        // every earlier chunk is out, so at most a few chunks per worker are ever held.
+        response.setContentType("application/json");
+        PrintWriter writer = response.getWriter();
+        writer.write("{\"success\": true, \"students\": [");
+        writer.flush();
+
+        Semaphore inFlight = new Semaphore(BULK_CHUNKS_PER_WORKER * bulkThreads);
+        ArrayDeque<Future<String>> chunks = new ArrayDeque<>();
+        List<Student> pending = new ArrayList<>(BULK_CHUNK_ROWS);
+        boolean[] first = {true};
+        boolean complete;
+        try {
+            complete = studentDAO.streamStudents(StudentDAO.DEFAULT_FETCH_SIZE, student -> {
+                pending.add(student);
+                if (pending.size() == BULK_CHUNK_ROWS) {
+                    submitChunk(new ArrayList<>(pending), key, inFlight, chunks, writer, first);
+                    pending.clear();
+                }
+            });
+            if (complete) {
+                if (!pending.isEmpty()) {
+                    submitChunk(pending, key, inFlight, chunks, writer, first);
+                }
+                while (!chunks.isEmpty()) {
+                    writeChunk(chunks.poll(), writer, first);
                 }
             }
-            
-            jsonResponse.append("]}");
-            
-            response.setContentType("application/json");
-            response.getWriter().write(jsonResponse.toString());
-            
-        } catch (Exception e) {
-            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            response.getWriter().write("{\"error\": \"Error during bulk decryption: " + e.getMessage() + "\"}");
+        } catch (RuntimeException e) {
+            complete = false;
             e.printStackTrace();
         }
+        for (Future<String> chunk : chunks) {
+            chunk.cancel(false);
+        }
+
+        // The status is already sent, so a failed scan is reported in the trailer
+        writer.write("], \"complete\": " + complete);
+        if (!complete) {
+            writer.write(", \"error\": \"Bulk decryption stopped early; see the server log\"");
+        }
+        writer.write("}");
+        writer.flush();
+    }
+
+    // Queue a chunk for decryption. While the pipeline is full, the oldest chunk is
+    // waited for and written, which both frees a slot and pauses reading the cursor.
+    private void submitChunk(List<Student> students, SecretKey key, Semaphore inFlight,
+                             ArrayDeque<Future<String>> chunks, PrintWriter writer, boolean[] first) {
+        while (!inFlight.tryAcquire()) {
+            writeChunk(chunks.poll(), writer, first);
+        }
+        chunks.add(bulkPool.submit(() -> {
+            try {
+                return renderChunk(students, key);
+            } finally {
+                inFlight.release();
+            }
+        }));
+        while (!chunks.isEmpty() && chunks.peek().isDone()) {
+            writeChunk(chunks.poll(), writer, first);
+        }
+    }
+
+    private static void writeChunk(Future<String> chunk, PrintWriter writer, boolean[] first) {
+        String json;
+        try {
+            json = chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during bulk decryption", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Bulk decryption failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        if (json.isEmpty()) {
+            return;
+        }
+        if (!first[0]) {
+            writer.write(", ");
+        }
+        first[0] = false;
+        writer.write(json);
+        writer.flush();
+        // PrintWriter swallows I/O errors; stop decrypting for a client that has gone away
+        if (writer.checkError()) {
+            throw new IllegalStateException("Client disconnected during bulk decryption");
+        }
+    }
+
+    // JSON objects for a chunk of students, comma-separated
+    private static String renderChunk(List<Student> students, SecretKey key) {
+        StringBuilder json = new StringBuilder(students.size() * 128);
+        for (int i = 0; i < students.size(); i++) {
+            Student student = students.get(i);
+            if (i > 0) json.append(", ");
+
+            try {
+                String studentName = RecordCodec.decryptName(student, key);
+                String studentData = RecordCodec.decryptData(student, key);
+
+                json.append("{")
+                    .append("\"studentId\": \"").append(student.getStudentId()).append("\", ")
+                    .append("\"studentName\": \"").append(studentName).append("\", ")
+                    .append("\"studentData\": \"").append(studentData).append("\", ")
+                    .append("\"meta\": \"").append(student.getMeta() != null ? student.getMeta() : "").append("\", ")
+                    .append("\"createdAt\": \"").append(student.getCreatedAt()).append("\"")
+                    .append("}");
+            } catch (Exception e) {
+                // If decryption fails for this student, include error info
+                json.append("{")
+                    .append("\"studentId\": \"").append(student.getStudentId()).append("\", ")
+                    .append("\"error\": \"Decryption failed\"")
+                    .append("}");
+            }
+        }
+        return json.toString();
     }
 }
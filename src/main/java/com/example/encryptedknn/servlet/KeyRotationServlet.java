@@ -0,0 +1,195 @@
+package com.example.encryptedknn.servlet;
+
+import com.example.encryptedknn.dao.DatabaseConfig;
+import com.example.encryptedknn.dao.StudentRepository;
+import com.example.encryptedknn.model.RotationCheckpoint;
+import com.example.encryptedknn.util.AESUtil;
+import com.example.encryptedknn.util.KeyRotationJob;
+import com.example.encryptedknn.util.LatencyTracker;
+
+import javax.crypto.SecretKey;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+
+@WebServlet("/rotate-key")
+public class KeyRotationServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private StudentRepository studentDAO;
+    private int chunkRows;
+    private int threads;
+    private long latencySloMillis;
+
+    // At most one rotation runs at a time
+    private KeyRotationJob currentJob;
+
+    @Override
+    public void init() throws ServletException {
+        studentDAO = DatabaseConfig.studentRepository();
+        chunkRows = (int) getLongInitParameter("key-rotation-chunk-rows", KeyRotationJob.DEFAULT_CHUNK_ROWS);
+        threads = (int) getLongInitParameter("key-rotation-threads", Runtime.getRuntime().availableProcessors());
+        latencySloMillis = getLongInitParameter("key-rotation-latency-slo-ms", KeyRotationJob.DEFAULT_LATENCY_SLO_MILLIS);
+    }
+
+    @Override
+    public void destroy() {
+        KeyRotationJob job = getCurrentJob();
+        if (job != null) {
+            job.stop();
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        if (!isAdmin(request)) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            response.getWriter().write("{\"error\": \"Admin access required\"}");
+            return;
+        }
+
+        String action = request.getParameter("action");
+        if ("start".equals(action)) {
+            handleStart(request, response);
+        } else if ("stop".equals(action)) {
+            handleStop(response);
+        } else {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid action. Use 'start' or 'stop'\"}");
+        }
+    }
+
+    // Start a job, or resume one with the same jobId after its last committed page
+    private void handleStart(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String jobId = request.getParameter("jobId");
+        String oldKeyParam = request.getParameter("oldEncryptionKey");
+        String newKeyParam = request.getParameter("newEncryptionKey");
+
+        if (jobId == null || jobId.trim().isEmpty() || jobId.length() > 64 || oldKeyParam == null || newKeyParam == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"jobId (up to 64 characters), oldEncryptionKey and newEncryptionKey are required\"}");
+            return;
+        }
+
+        SecretKey oldKey;
+        SecretKey newKey;
+        try {
+            oldKey = AESUtil.keyFromString(oldKeyParam);
+            newKey = AESUtil.keyFromString(newKeyParam);
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\": \"Invalid encryption key\"}");
+            return;
+        }
+
+        KeyRotationJob job;
+        synchronized (this) {
+            if (currentJob != null && currentJob.isRunning()) {
+                response.setStatus(HttpServletResponse.SC_CONFLICT);
+                response.getWriter().write("{\"error\": \"Key rotation " + currentJob.getJobId() + " is already running\"}");
+                return;
+            }
+            job = new KeyRotationJob(studentDAO, jobId.trim(), oldKey, newKey, chunkRows, threads,
+                    LatencyTracker.classify(), latencySloMillis);
+            currentJob = job;
+            Thread thread = new Thread(job, "key-rotation-" + job.getJobId());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setContentType("application/json");
+        response.getWriter().write(toJson(job.getStatus()));
+    }
+
+    private void handleStop(HttpServletResponse response) throws IOException {
+        KeyRotationJob job = getCurrentJob();
+        if (job == null || !job.isRunning()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().write("{\"error\": \"No key rotation is running\"}");
+            return;
+        }
+        job.stop();
+        response.setContentType("application/json");
+        response.getWriter().write(toJson(job.getStatus()));
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        if (!isAdmin(request)) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            response.getWriter().write("{\"error\": \"Admin access required\"}");
+            return;
+        }
+
+        String jobId = request.getParameter("jobId");
+        KeyRotationJob job = getCurrentJob();
+        KeyRotationJob.Status status = null;
+        if (job != null && (jobId == null || job.getJobId().equals(jobId))) {
+            status = job.getStatus();
+        } else if (jobId != null) {
+            RotationCheckpoint checkpoint = studentDAO.getRotationCheckpoint(jobId);
+            if (checkpoint != null) {
+                status = KeyRotationJob.statusOf(checkpoint);
+            }
+        }
+
+        if (status == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().write("{\"error\": \"Key rotation job not found\"}");
+            return;
+        }
+        response.setContentType("application/json");
+        response.getWriter().write(toJson(status));
+    }
+
+    private synchronized KeyRotationJob getCurrentJob() {
+        return currentJob;
+    }
+
+    private static boolean isAdmin(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        return session != null && Boolean.TRUE.equals(session.getAttribute("authenticated"))
+                && "ADMIN".equals(session.getAttribute("role"));
+    }
+
+    private static String toJson(KeyRotationJob.Status status) {
+        StringBuilder json = new StringBuilder();
+        json.append("{")
+            .append("\"success\": true, ")
+            .append("\"jobId\": \"").append(status.jobId).append("\", ")
+            .append("\"running\": ").append(status.running).append(", ")
+            .append("\"completed\": ").append(status.completed).append(", ")
+            .append("\"lastId\": ").append(status.lastId).append(", ")
+            .append("\"rowsRotated\": ").append(status.rowsRotated).append(", ")
+            .append("\"rowsSkipped\": ").append(status.rowsSkipped).append(", ")
+            .append("\"rowsFailed\": ").append(status.rowsFailed).append(", ")
+            .append("\"pauseMillis\": ").append(status.pauseMillis).append(", ")
+            .append("\"classifyP95Millis\": ").append(status.latencyMillis);
+        if (status.error != null) {
+            json.append(", \"error\": \"").append(status.error.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+        }
+        return json.append("}").toString();
+    }
+
+    private long getLongInitParameter(String name, long defaultValue) {
+        String value = getServletContext().getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
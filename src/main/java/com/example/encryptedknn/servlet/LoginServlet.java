@@ -1,5 +1,7 @@
 package com.example.encryptedknn.servlet;
 
+import com.example.encryptedknn.dao.DatabaseConfig;
+
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -8,16 +10,11 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 
 @WebServlet("/login")
 public class LoginServlet extends HttpServlet {
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/encrypted_knn";
-    private static final String DB_USER = "root";
-    private static final String DB_PASSWORD = "";
-
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) 
             throws ServletException, IOException {
@@ -72,7 +69,7 @@ public class LoginServlet extends HttpServlet {
     private boolean authenticateUser(String username, String password) throws Exception {
         String sql = "SELECT password_hash FROM users WHERE username = ?";
         
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        try (Connection conn = DatabaseConfig.dataSource().getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
             stmt.setString(1, username);
@@ -91,7 +88,7 @@ public class LoginServlet extends HttpServlet {
     private String getUserRole(String username) throws Exception {
         String sql = "SELECT role FROM users WHERE username = ?";
         
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        try (Connection conn = DatabaseConfig.dataSource().getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
             stmt.setString(1, username);
@@ -1,8 +1,11 @@
 package com.example.encryptedknn.servlet;
 
-import com.example.encryptedknn.dao.StudentDAO;
+import com.example.encryptedknn.dao.DatabaseConfig;
+import com.example.encryptedknn.dao.StudentRepository;
 import com.example.encryptedknn.model.Student;
 import com.example.encryptedknn.util.AESUtil;
+import com.example.encryptedknn.util.PayloadCodec;
+import com.example.encryptedknn.util.RecordCodec;
 
 import javax.crypto.SecretKey;
 import javax.servlet.ServletException;
@@ -13,15 +16,48 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 @WebServlet("/upload")
 @MultipartConfig
 public class UploadServlet extends HttpServlet {
-    private StudentDAO studentDAO;
+    private StudentRepository studentDAO;
+    // Value width of written binary payloads, or 0 to store the CSV text as sent
+    private int payloadWidth = PayloadCodec.FLOAT64;
 
     @Override
     public void init() throws ServletException {
-        studentDAO = new StudentDAO();
+        studentDAO = DatabaseConfig.studentRepository();
+
+        String format = getServletContext().getInitParameter("student-payload-format");
+        if (format != null && !format.trim().isEmpty()) {
+            switch (format.trim().toLowerCase()) {
+                case "binary64":
+                    payloadWidth = PayloadCodec.FLOAT64;
+                    break;
+                case "binary32":
+                    payloadWidth = PayloadCodec.FLOAT32;
+                    break;
+                case "csv":
+                    payloadWidth = 0;
+                    break;
+                default:
+                    throw new ServletException("Unknown student-payload-format: " + format);
+            }
+        }
+    }
+
+    // Feature payload for "f1,f2,...,label" in the configured format, or null if the
+    // text is not valid feature data
+    private byte[] encodePayload(String studentData) {
+        if (payloadWidth == 0) {
+            return studentData.getBytes(StandardCharsets.UTF_8);
+        }
+        try {
+            return PayloadCodec.encodeCsv(studentData, payloadWidth);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
     @Override
@@ -60,15 +96,15 @@ public class UploadServlet extends HttpServlet {
             // Convert the key string to SecretKey
             SecretKey key = AESUtil.keyFromString(encryptionKey);
             
-            // Generate a random IV
-            byte[] iv = AESUtil.generateIV();
-
-            // Encrypt the student name and data
-            byte[] encryptedName = AESUtil.encrypt(studentName.getBytes(), key, iv);
-            byte[] encryptedData = AESUtil.encrypt(studentData.getBytes(), key, iv);
+            byte[] payload = encodePayload(studentData);
+            if (payload == null) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("{\"error\": \"Invalid student data format\"}");
+                return;
+            }
 
-            // Create student object
-            Student student = new Student(studentId, encryptedName, encryptedData, iv, meta);
+            // Encrypt the student name and data as a v2 record
+            Student student = RecordCodec.encrypt(studentId, studentName, payload, key, meta);
 
             // Save to database
             if (studentDAO.insertStudent(student)) {
@@ -122,15 +158,15 @@ public class UploadServlet extends HttpServlet {
             // Convert the key string to SecretKey
             SecretKey key = AESUtil.keyFromString(encryptionKey);
             
-            // Generate a new IV for updated data
-            byte[] iv = AESUtil.generateIV();
-
-            // Encrypt the student name and data
-            byte[] encryptedName = AESUtil.encrypt(studentName.getBytes(), key, iv);
-            byte[] encryptedData = AESUtil.encrypt(studentData.getBytes(), key, iv);
+            byte[] payload = encodePayload(studentData);
+            if (payload == null) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write("{\"error\": \"Invalid student data format\"}");
+                return;
+            }
 
-            // Create student object with updated data
-            Student student = new Student(studentId, encryptedName, encryptedData, iv, meta);
+            // Re-encrypt the student name and data as a v2 record, whatever format the row had
+            Student student = RecordCodec.encrypt(studentId, studentName, payload, key, meta);
 
             // Update in database
             if (studentDAO.updateStudent(student)) {
@@ -162,9 +198,13 @@ public class UploadServlet extends HttpServlet {
         }
 
         try {
+            int totalStudents = studentDAO.countStudents();
+            if (totalStudents < 0) {
+                throw new IllegalStateException("Count query failed");
+            }
             response.setContentType("application/json");
             response.getWriter().write("{\"message\": \"Upload endpoint ready\", \"totalStudents\": " + 
-                studentDAO.getAllStudents().size() + "}");
+                totalStudents + "}");
         } catch (Exception e) {
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             response.getWriter().write("{\"error\": \"Error retrieving student count\"}");
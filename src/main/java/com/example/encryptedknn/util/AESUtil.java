@@ -3,43 +3,122 @@ package com.example.encryptedknn.util;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class AESUtil {
     private static final String ALGO = "AES";
     private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    // Authenticated mode used by v2 records (see RecordCodec); AES-NI and carry-less
+    // multiply intrinsics make it faster than CBC on current JVMs
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    public static final int GCM_NONCE_BYTES = 12;
+    public static final int GCM_TAG_BYTES = 16;
+    // Parsed keys remembered by keyFromString; requests repeat the same few keys
+    private static final int MAX_PARSED_KEYS = 64;
+
+    // Cipher.getInstance is a provider lookup on every call, so each thread keeps one
+    // Cipher and re-initialises it per operation. A Cipher is not thread-safe, and init()
+    // fully resets it, so reuse within a thread is safe between calls.
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    });
+
+    private static final ThreadLocal<Cipher> GCM_CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(GCM_TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(GCM_TRANSFORMATION + " is not available", e);
+        }
+    });
+
+    // Seeded once; SecureRandom is thread-safe
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Map<String, SecretKey> PARSED_KEYS = new LinkedHashMap<String, SecretKey>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+            return size() > MAX_PARSED_KEYS;
+        }
+    };
 
     // Generate a random AES key (128/192/256 bits)
     public static SecretKey generateKey(int bitLength) throws Exception {
         KeyGenerator keyGen = KeyGenerator.getInstance(ALGO);
-        keyGen.init(bitLength, new SecureRandom());
+        keyGen.init(bitLength, RANDOM);
         return keyGen.generateKey();
     }
 
     // Generate a random 16-byte IV
     public static byte[] generateIV() {
         byte[] iv = new byte[16];
-        new SecureRandom().nextBytes(iv);
+        RANDOM.nextBytes(iv);
         return iv;
     }
 
     public static byte[] encrypt(byte[] plaintext, SecretKey key, byte[] iv) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
         return cipher.doFinal(plaintext);
     }
 
     public static byte[] decrypt(byte[] ciphertext, SecretKey key, byte[] iv) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
         return cipher.doFinal(ciphertext);
     }
 
+    // Decrypt into the caller's buffer and return the plaintext length. The plaintext is
+    // never longer than the ciphertext, so a buffer of ciphertext.length bytes always fits
+    // (see maxPlaintextLength()).
+    public static int decrypt(byte[] ciphertext, SecretKey key, byte[] iv, byte[] output) throws Exception {
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher.doFinal(ciphertext, 0, ciphertext.length, output, 0);
+    }
+
+    public static int maxPlaintextLength(byte[] ciphertext) {
+        return ciphertext.length;
+    }
+
+    // Random 12-byte GCM nonce; a nonce must never be reused with the same key
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[GCM_NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    // AES-GCM with associated data; the output is the ciphertext followed by the tag
+    public static byte[] encryptGcm(byte[] plaintext, SecretKey key, byte[] nonce, byte[] aad) throws Exception {
+        Cipher cipher = GCM_CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BYTES * 8, nonce));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(plaintext);
+    }
+
+    // Verify and decrypt input[offset, offset + length) into the caller's buffer, which
+    // must hold length - GCM_TAG_BYTES bytes; returns the plaintext length. Fails with
+    // AEADBadTagException if the key is wrong or the record was altered.
+    public static int decryptGcm(byte[] input, int offset, int length, SecretKey key, byte[] nonce, byte[] aad,
+                                 byte[] output) throws Exception {
+        Cipher cipher = GCM_CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BYTES * 8, nonce));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(input, offset, length, output, 0);
+    }
+
     // helper: convert raw key bytes to SecretKey
     public static SecretKey keyFromBytes(byte[] keyBytes) {
         return new SecretKeySpec(keyBytes, ALGO);
@@ -50,9 +129,20 @@ public class AESUtil {
         return Base64.getEncoder().encodeToString(key.getEncoded());
     }
 
-    // helper: convert base64 string back to SecretKey
+    // helper: convert base64 string back to SecretKey. Recently parsed keys are reused;
+    // SecretKeySpec is immutable, so sharing one instance between requests is safe.
     public static SecretKey keyFromString(String keyString) {
-        byte[] keyBytes = Base64.getDecoder().decode(keyString);
-        return keyFromBytes(keyBytes);
+        synchronized (PARSED_KEYS) {
+            SecretKey key = PARSED_KEYS.get(keyString);
+            if (key != null) {
+                return key;
+            }
+        }
+        // Invalid strings throw here and are never remembered
+        SecretKey key = keyFromBytes(Base64.getDecoder().decode(keyString));
+        synchronized (PARSED_KEYS) {
+            PARSED_KEYS.put(keyString, key);
+        }
+        return key;
     }
 }
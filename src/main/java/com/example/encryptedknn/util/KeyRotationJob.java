@@ -0,0 +1,283 @@
+package com.example.encryptedknn.util;
+
+import com.example.encryptedknn.dao.StudentRepository;
+import com.example.encryptedknn.model.RotationCheckpoint;
+import com.example.encryptedknn.model.Student;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Re-encrypts every student row from one key to another while the application keeps
+// serving. The table is walked in id order one page at a time, so memory is bounded by
+// the page size. Each page is re-encrypted on a small pool and written back as one
+// batch, together with the job's checkpoint in the same transaction; a job stopped or
+// crashed at any point resumes after the last committed page.
+//
+// Between pages the job checks recent /classify latency and, while its p95 is over the
+// target, pauses for longer and longer (doubling up to MAX_PAUSE_MILLIS), halving the
+// pause again once latency recovers.
+public class KeyRotationJob implements Runnable {
+    public static final int DEFAULT_CHUNK_ROWS = 500;
+    public static final long DEFAULT_LATENCY_SLO_MILLIS = 250;
+    static final long MIN_PAUSE_MILLIS = 50;
+    static final long MAX_PAUSE_MILLIS = 5000;
+    private static final double LATENCY_PERCENTILE = 95;
+
+    // Progress as last seen by the job, for status reporting
+    public static class Status {
+        public final String jobId;
+        public final boolean running;
+        public final boolean completed;
+        public final int lastId;
+        public final int rowsRotated;
+        public final int rowsSkipped;
+        public final int rowsFailed;
+        public final long pauseMillis;
+        public final long latencyMillis;
+        public final String error;
+
+        Status(String jobId, boolean running, RotationCheckpoint checkpoint, long pauseMillis, long latencyMillis,
+               String error) {
+            this.jobId = jobId;
+            this.running = running;
+            this.completed = checkpoint != null && checkpoint.isCompleted();
+            this.lastId = checkpoint != null ? checkpoint.getLastId() : 0;
+            this.rowsRotated = checkpoint != null ? checkpoint.getRowsRotated() : 0;
+            this.rowsSkipped = checkpoint != null ? checkpoint.getRowsSkipped() : 0;
+            this.rowsFailed = checkpoint != null ? checkpoint.getRowsFailed() : 0;
+            this.pauseMillis = pauseMillis;
+            this.latencyMillis = latencyMillis;
+            this.error = error;
+        }
+    }
+
+    private enum Outcome { ROTATED, ALREADY_ROTATED, FAILED }
+
+    // One row's result; rotated is set only for ROTATED
+    private static class RowResult {
+        final Outcome outcome;
+        final Student rotated;
+
+        RowResult(Outcome outcome, Student rotated) {
+            this.outcome = outcome;
+            this.rotated = rotated;
+        }
+    }
+
+    private final StudentRepository studentDAO;
+    private final String jobId;
+    private final SecretKey oldKey;
+    private final SecretKey newKey;
+    private final int chunkRows;
+    private final int threads;
+    private final LatencyTracker latency;
+    private final long latencySloMillis;
+
+    private volatile boolean stopRequested;
+    private volatile boolean running;
+    private volatile RotationCheckpoint checkpoint;
+    private volatile long pauseMillis;
+    private volatile long latencyMillis;
+    private volatile String error;
+
+    public KeyRotationJob(StudentRepository studentDAO, String jobId, SecretKey oldKey, SecretKey newKey,
+                          int chunkRows, int threads, LatencyTracker latency, long latencySloMillis) {
+        this.studentDAO = studentDAO;
+        this.jobId = jobId;
+        this.oldKey = oldKey;
+        this.newKey = newKey;
+        this.chunkRows = Math.max(chunkRows, 1);
+        this.threads = Math.max(threads, 1);
+        this.latency = latency;
+        this.latencySloMillis = latencySloMillis;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Finish the page in progress, commit it and stop; run the job again to resume
+    public void stop() {
+        stopRequested = true;
+    }
+
+    public Status getStatus() {
+        return new Status(jobId, running, checkpoint, pauseMillis, latencyMillis, error);
+    }
+
+    // Status of a job that is not running in this process, from its stored checkpoint
+    public static Status statusOf(RotationCheckpoint checkpoint) {
+        return new Status(checkpoint.getJobId(), false, checkpoint, 0, 0, null);
+    }
+
+    // Checkpoints remember which new key a job writes, without storing the key
+    public static String keyHash(SecretKey key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        error = null;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "key-rotation-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            String newKeyHash = keyHash(newKey);
+            RotationCheckpoint current = studentDAO.getRotationCheckpoint(jobId);
+            if (current == null) {
+                current = new RotationCheckpoint(jobId, newKeyHash);
+            } else if (!newKeyHash.equals(current.getNewKeyHash())) {
+                throw new IllegalArgumentException("Job " + jobId + " was started with a different new key");
+            }
+            checkpoint = current;
+
+            while (!current.isCompleted() && !stopRequested) {
+                throttle();
+                List<Student> page = studentDAO.getStudentsAfterId(current.getLastId(), chunkRows);
+                if (page == null) {
+                    throw new IllegalStateException("Failed to read students after id " + current.getLastId());
+                }
+
+                RotationCheckpoint next = new RotationCheckpoint(current);
+                List<Student> rotated = new ArrayList<>(page.size());
+                List<byte[]> previousData = new ArrayList<>(page.size());
+                if (page.isEmpty()) {
+                    next.setCompleted(true);
+                } else {
+                    List<RowResult> results = reencrypt(pool, page);
+                    for (int i = 0; i < page.size(); i++) {
+                        RowResult result = results.get(i);
+                        if (result.outcome == Outcome.ROTATED) {
+                            rotated.add(result.rotated);
+                            previousData.add(page.get(i).getDataEncrypted());
+                            next.setRowsRotated(next.getRowsRotated() + 1);
+                        } else if (result.outcome == Outcome.ALREADY_ROTATED) {
+                            next.setRowsSkipped(next.getRowsSkipped() + 1);
+                        } else {
+                            System.err.println("Key rotation " + jobId + ": student " + page.get(i).getStudentId()
+                                    + " decrypts under neither key; left unchanged");
+                            next.setRowsFailed(next.getRowsFailed() + 1);
+                        }
+                    }
+                    next.setLastId(page.get(page.size() - 1).getId());
+                }
+
+                if (studentDAO.rotateStudents(rotated, previousData, next) == null) {
+                    throw new IllegalStateException("Failed to write students after id " + current.getLastId());
+                }
+                current = next;
+                checkpoint = next;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Interrupted";
+        } catch (RuntimeException e) {
+            error = e.getMessage();
+            e.printStackTrace();
+        } finally {
+            pool.shutdownNow();
+            running = false;
+        }
+    }
+
+    // Sleep between pages while foreground latency is over target
+    private void throttle() throws InterruptedException {
+        latencyMillis = latency.percentile(LATENCY_PERCENTILE);
+        if (latencyMillis > latencySloMillis) {
+            pauseMillis = Math.min(Math.max(pauseMillis * 2, MIN_PAUSE_MILLIS), MAX_PAUSE_MILLIS);
+        } else {
+            pauseMillis = pauseMillis / 2 >= MIN_PAUSE_MILLIS ? pauseMillis / 2 : 0;
+        }
+        if (pauseMillis > 0) {
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    // Results in page order; the page is split into one slice per thread
+    private List<RowResult> reencrypt(ExecutorService pool, List<Student> page) throws InterruptedException {
+        int slice = (page.size() + threads - 1) / threads;
+        List<Future<List<RowResult>>> slices = new ArrayList<>();
+        for (int from = 0; from < page.size(); from += slice) {
+            List<Student> rows = page.subList(from, Math.min(from + slice, page.size()));
+            slices.add(pool.submit(() -> {
+                List<RowResult> results = new ArrayList<>(rows.size());
+                for (Student student : rows) {
+                    results.add(reencrypt(student));
+                }
+                return results;
+            }));
+        }
+
+        List<RowResult> results = new ArrayList<>(page.size());
+        try {
+            for (Future<List<RowResult>> future : slices) {
+                results.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Re-encryption failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        return results;
+    }
+
+    // The payload bytes are carried over unchanged, so CSV and binary payloads keep their
+    // format; v1 rows are rewritten as v2 records
+    private RowResult reencrypt(Student student) {
+        String name;
+        byte[] data;
+        try {
+            name = RecordCodec.decryptName(student, oldKey);
+            byte[] buffer = new byte[RecordCodec.maxDataLength(student)];
+            data = Arrays.copyOf(buffer, RecordCodec.decryptDataInto(student, oldKey, buffer));
+            if (student.getFormatVersion() == RecordCodec.FORMAT_V1) {
+                // CBC is unauthenticated, so a wrong key can pass the padding check; only
+                // rotate plaintext that parses as feature data
+                PayloadCodec.encodeCsv(new String(data, StandardCharsets.UTF_8), PayloadCodec.FLOAT64);
+            }
+        } catch (Exception e) {
+            // Rotated by an earlier run or rewritten under the new key by an update
+            return new RowResult(decryptsWith(student, newKey) ? Outcome.ALREADY_ROTATED : Outcome.FAILED, null);
+        }
+        try {
+            Student rotated = RecordCodec.encrypt(student.getStudentId(), name, data, newKey, student.getMeta());
+            rotated.setId(student.getId());
+            return new RowResult(Outcome.ROTATED, rotated);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to encrypt student " + student.getStudentId(), e);
+        }
+    }
+
+    private static boolean decryptsWith(Student student, SecretKey key) {
+        try {
+            RecordCodec.decryptName(student, key);
+            RecordCodec.decryptDataInto(student, key, new byte[RecordCodec.maxDataLength(student)]);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
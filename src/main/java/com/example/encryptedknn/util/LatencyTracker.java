@@ -0,0 +1,58 @@
+package com.example.encryptedknn.util;
+
+import java.util.Arrays;
+
+// Recent request latencies, for background work that must back off while foreground
+// requests slow down. Keeps the last few hundred samples in a ring; samples older than
+// the window are ignored, so an idle server reads as having no latency at all.
+public class LatencyTracker {
+    public static final int DEFAULT_SAMPLES = 512;
+    public static final long DEFAULT_WINDOW_MILLIS = 10_000;
+
+    private static final LatencyTracker CLASSIFY = new LatencyTracker(DEFAULT_SAMPLES, DEFAULT_WINDOW_MILLIS);
+
+    private final long[] latencies;
+    private final long[] recordedAt;
+    private final long windowMillis;
+    private int next;
+    private int size;
+
+    public LatencyTracker(int samples, long windowMillis) {
+        this.latencies = new long[Math.max(samples, 1)];
+        this.recordedAt = new long[latencies.length];
+        this.windowMillis = windowMillis;
+    }
+
+    // Latencies of /classify requests
+    public static LatencyTracker classify() {
+        return CLASSIFY;
+    }
+
+    public synchronized void record(long latencyMillis) {
+        latencies[next] = latencyMillis;
+        recordedAt[next] = System.currentTimeMillis();
+        next = (next + 1) % latencies.length;
+        size = Math.min(size + 1, latencies.length);
+    }
+
+    // The given percentile (0-100) of latencies recorded within the window, or 0 if none were
+    public long percentile(double percentile) {
+        long[] recent;
+        int count = 0;
+        synchronized (this) {
+            long since = System.currentTimeMillis() - windowMillis;
+            recent = new long[size];
+            for (int i = 0; i < size; i++) {
+                if (recordedAt[i] >= since) {
+                    recent[count++] = latencies[i];
+                }
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(recent, 0, count);
+        int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return recent[Math.min(Math.max(rank, 0), count - 1)];
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.encryptedknn.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Plaintext layouts of a student's feature payload (the data section of a record).
+//
+// CSV:    "f1,f2,...,label" as text; always readable, written when configured.
+// Binary: version (1 byte, 1) | value width (1 byte, 4 or 8) | dimension (2 bytes)
+//         | values (float32 or float64) | label length (2 bytes) | label (UTF-8)
+//         with all multi-byte fields little-endian.
+//
+// A binary payload starts with a control byte, which no CSV payload can, so the two are
+// told apart without a flag. Decoding a binary payload reads values straight from the
+// decrypted buffer, with no string splitting or number parsing.
+public final class PayloadCodec {
+    public static final byte BINARY_V1 = 1;
+    public static final int FLOAT32 = 4;
+    public static final int FLOAT64 = 8;
+
+    private static final int HEADER_BYTES = 4;
+
+    private PayloadCodec() {
+    }
+
+    // Binary payload for these features; width is FLOAT32 or FLOAT64
+    public static byte[] encode(double[] features, String label, int width) {
+        if (width != FLOAT32 && width != FLOAT64) {
+            throw new IllegalArgumentException("Value width must be 4 or 8 bytes");
+        }
+        if (features.length > 0xffff) {
+            throw new IllegalArgumentException("Too many features: " + features.length);
+        }
+        byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
+        if (labelBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Label too long");
+        }
+
+        byte[] payload = new byte[HEADER_BYTES + width * features.length + 2 + labelBytes.length];
+        payload[0] = BINARY_V1;
+        payload[1] = (byte) width;
+        writeShort(payload, 2, features.length);
+        int pos = HEADER_BYTES;
+        for (double value : features) {
+            if (width == FLOAT64) {
+                writeLong(payload, pos, Double.doubleToRawLongBits(value));
+            } else {
+                writeInt(payload, pos, Float.floatToRawIntBits((float) value));
+            }
+            pos += width;
+        }
+        writeShort(payload, pos, labelBytes.length);
+        System.arraycopy(labelBytes, 0, payload, pos + 2, labelBytes.length);
+        return payload;
+    }
+
+    // Binary payload from CSV text, for writers that receive "f1,f2,...,label"
+    public static byte[] encodeCsv(String csv, int width) {
+        String[] parts = csv.split(",");
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Invalid data format");
+        }
+        double[] features = new double[parts.length - 1];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = Double.parseDouble(parts[i].trim());
+        }
+        return encode(features, parts[parts.length - 1].trim(), width);
+    }
+
+    public static boolean isBinary(byte[] payload, int length) {
+        return length > 0 && payload[0] == BINARY_V1;
+    }
+
+    public static int dimension(byte[] payload, int length) {
+        checkHeader(payload, length);
+        return readShort(payload, 2);
+    }
+
+    // Decode the values of payload[0, length) into features, which must hold dimension()
+    // values; returns the offset of the label field
+    public static int decodeFeatures(byte[] payload, int length, double[] features) {
+        checkHeader(payload, length);
+        int width = payload[1];
+        int dimension = readShort(payload, 2);
+        int labelOffset = HEADER_BYTES + width * dimension;
+        if (labelOffset + 2 > length || features.length < dimension) {
+            throw new IllegalArgumentException("Truncated binary payload");
+        }
+        int pos = HEADER_BYTES;
+        for (int i = 0; i < dimension; i++, pos += width) {
+            features[i] = width == FLOAT64
+                    ? Double.longBitsToDouble(readLong(payload, pos))
+                    : Float.intBitsToFloat(readInt(payload, pos));
+        }
+        return labelOffset;
+    }
+
+    // CSV text of any payload, for display
+    public static String toText(byte[] payload, int length) {
+        if (!isBinary(payload, length)) {
+            return new String(payload, 0, length, StandardCharsets.UTF_8);
+        }
+        double[] features = new double[dimension(payload, length)];
+        int labelOffset = decodeFeatures(payload, length, features);
+        boolean single = payload[1] == FLOAT32;
+        StringBuilder sb = new StringBuilder();
+        for (double value : features) {
+            sb.append(single ? Float.toString((float) value) : Double.toString(value)).append(',');
+        }
+        return sb.append(readLabel(payload, length, labelOffset)).toString();
+    }
+
+    private static String readLabel(byte[] payload, int length, int labelOffset) {
+        int labelLength = readShort(payload, labelOffset);
+        if (labelOffset + 2 + labelLength > length) {
+            throw new IllegalArgumentException("Truncated binary payload");
+        }
+        return new String(payload, labelOffset + 2, labelLength, StandardCharsets.UTF_8);
+    }
+
+    // Reuses one String per distinct label, matched on the raw bytes, so decoding a row
+    // whose label has been seen before allocates nothing for it. Not thread-safe; label
+    // sets are small, so lookup is a linear scan.
+    public static final class LabelInterner {
+        private byte[][] keys = new byte[8][];
+        private String[] values = new String[8];
+        private int size;
+
+        public String label(byte[] payload, int length, int labelOffset) {
+            int labelLength = readShort(payload, labelOffset);
+            int from = labelOffset + 2;
+            if (from + labelLength > length) {
+                throw new IllegalArgumentException("Truncated binary payload");
+            }
+            for (int i = 0; i < size; i++) {
+                byte[] key = keys[i];
+                if (key.length == labelLength && rangeEquals(key, payload, from)) {
+                    return values[i];
+                }
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = Arrays.copyOfRange(payload, from, from + labelLength);
+            values[size] = new String(keys[size], StandardCharsets.UTF_8);
+            return values[size++];
+        }
+
+        private static boolean rangeEquals(byte[] key, byte[] payload, int from) {
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != payload[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static void checkHeader(byte[] payload, int length) {
+        if (length < HEADER_BYTES || payload[0] != BINARY_V1 || (payload[1] != FLOAT32 && payload[1] != FLOAT64)) {
+            throw new IllegalArgumentException("Unsupported binary payload");
+        }
+    }
+
+    private static int readShort(byte[] b, int pos) {
+        return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8;
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8 | (b[pos + 2] & 0xff) << 16 | (b[pos + 3] & 0xff) << 24;
+    }
+
+    private static long readLong(byte[] b, int pos) {
+        return (readInt(b, pos) & 0xffffffffL) | ((long) readInt(b, pos + 4)) << 32;
+    }
+
+    private static void writeShort(byte[] b, int pos, int value) {
+        b[pos] = (byte) value;
+        b[pos + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) value;
+        b[pos + 1] = (byte) (value >>> 8);
+        b[pos + 2] = (byte) (value >>> 16);
+        b[pos + 3] = (byte) (value >>> 24);
+    }
+
+    private static void writeLong(byte[] b, int pos, long value) {
+        writeInt(b, pos, (int) value);
+        writeInt(b, pos + 4, (int) (value >>> 32));
+    }
+}
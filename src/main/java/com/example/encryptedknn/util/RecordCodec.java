@@ -0,0 +1,143 @@
+package com.example.encryptedknn.util;
+
+import com.example.encryptedknn.model.Student;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+
+// Encrypted student record formats, selected by the format_version column.
+//
+// v1: name_encrypted and data_encrypted are separate AES-CBC ciphertexts under the same
+//     IV from the iv column. Still read, no longer written.
+// v2: a single AES-GCM blob in data_encrypted, with name_encrypted and iv left empty:
+//
+//       version (1 byte, 2) | data nonce (12) | data length (4, big-endian)
+//       | data ciphertext + tag | name nonce (12) | name ciphertext + tag
+//
+//     The feature payload and the name are sealed separately, so a scan decrypts only
+//     the features and the name is decrypted when a caller asks for it. Each section is
+//     authenticated together with its section tag and the student ID, so sections cannot
+//     be swapped between rows or with each other.
+public final class RecordCodec {
+    public static final int FORMAT_V1 = 1;
+    public static final int FORMAT_V2 = 2;
+
+    private static final int HEADER_BYTES = 1 + AESUtil.GCM_NONCE_BYTES + 4;
+    private static final byte SECTION_DATA = 'D';
+    private static final byte SECTION_NAME = 'N';
+    private static final byte[] EMPTY = new byte[0];
+
+    private RecordCodec() {
+    }
+
+    // A new v2 record for this student with a CSV feature payload
+    public static Student encrypt(String studentId, String name, String data, SecretKey key, String meta)
+            throws Exception {
+        return encrypt(studentId, name, data.getBytes(StandardCharsets.UTF_8), key, meta);
+    }
+
+    // A new v2 record for this student; data is any PayloadCodec payload
+    public static Student encrypt(String studentId, String name, byte[] data, SecretKey key, String meta)
+            throws Exception {
+        byte[] dataNonce = AESUtil.generateNonce();
+        byte[] sealedData = AESUtil.encryptGcm(data, key, dataNonce, aad(SECTION_DATA, studentId));
+        byte[] nameNonce = AESUtil.generateNonce();
+        byte[] sealedName = AESUtil.encryptGcm(name.getBytes(StandardCharsets.UTF_8), key, nameNonce,
+                aad(SECTION_NAME, studentId));
+
+        byte[] blob = new byte[HEADER_BYTES + sealedData.length + nameNonce.length + sealedName.length];
+        blob[0] = FORMAT_V2;
+        System.arraycopy(dataNonce, 0, blob, 1, dataNonce.length);
+        writeInt(blob, 1 + AESUtil.GCM_NONCE_BYTES, sealedData.length);
+        int pos = HEADER_BYTES;
+        System.arraycopy(sealedData, 0, blob, pos, sealedData.length);
+        pos += sealedData.length;
+        System.arraycopy(nameNonce, 0, blob, pos, nameNonce.length);
+        pos += nameNonce.length;
+        System.arraycopy(sealedName, 0, blob, pos, sealedName.length);
+
+        Student student = new Student(studentId, EMPTY, blob, EMPTY, meta);
+        student.setFormatVersion(FORMAT_V2);
+        return student;
+    }
+
+    // Buffer size that always fits decryptDataInto()'s output for this record
+    public static int maxDataLength(Student student) {
+        return student.getDataEncrypted().length;
+    }
+
+    // Decrypt only the feature payload into the caller's buffer; returns its length
+    public static int decryptDataInto(Student student, SecretKey key, byte[] output) throws Exception {
+        if (student.getFormatVersion() == FORMAT_V1) {
+            return AESUtil.decrypt(student.getDataEncrypted(), key, student.getIv(), output);
+        }
+        byte[] blob = checkV2(student);
+        int length = dataLength(blob);
+        return AESUtil.decryptGcm(blob, HEADER_BYTES, length, key, nonceAt(blob, 1),
+                aad(SECTION_DATA, student.getStudentId()), output);
+    }
+
+    // The feature payload as "f1,f2,...,label" text, whether it was stored as CSV or binary
+    public static String decryptData(Student student, SecretKey key) throws Exception {
+        byte[] output = new byte[maxDataLength(student)];
+        int length = decryptDataInto(student, key, output);
+        return PayloadCodec.toText(output, length);
+    }
+
+    // Decrypt the name; v2 records must have been read with data_encrypted selected
+    public static String decryptName(Student student, SecretKey key) throws Exception {
+        if (student.getFormatVersion() == FORMAT_V1) {
+            return new String(AESUtil.decrypt(student.getNameEncrypted(), key, student.getIv()), StandardCharsets.UTF_8);
+        }
+        byte[] blob = checkV2(student);
+        int nonceOffset = HEADER_BYTES + dataLength(blob);
+        int nameOffset = nonceOffset + AESUtil.GCM_NONCE_BYTES;
+        if (nameOffset + AESUtil.GCM_TAG_BYTES > blob.length) {
+            throw new IllegalArgumentException("Truncated record for student " + student.getStudentId());
+        }
+        byte[] output = new byte[blob.length - nameOffset];
+        int length = AESUtil.decryptGcm(blob, nameOffset, blob.length - nameOffset, key,
+                nonceAt(blob, nonceOffset), aad(SECTION_NAME, student.getStudentId()), output);
+        return new String(output, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] checkV2(Student student) {
+        byte[] blob = student.getDataEncrypted();
+        if (student.getFormatVersion() != FORMAT_V2 || blob.length < HEADER_BYTES || blob[0] != FORMAT_V2) {
+            throw new IllegalArgumentException("Unsupported record format " + student.getFormatVersion()
+                    + " for student " + student.getStudentId());
+        }
+        return blob;
+    }
+
+    private static int dataLength(byte[] blob) {
+        int offset = 1 + AESUtil.GCM_NONCE_BYTES;
+        int length = ((blob[offset] & 0xff) << 24) | ((blob[offset + 1] & 0xff) << 16)
+                | ((blob[offset + 2] & 0xff) << 8) | (blob[offset + 3] & 0xff);
+        if (length < AESUtil.GCM_TAG_BYTES || length > blob.length - HEADER_BYTES) {
+            throw new IllegalArgumentException("Corrupt record header");
+        }
+        return length;
+    }
+
+    private static byte[] nonceAt(byte[] blob, int offset) {
+        byte[] nonce = new byte[AESUtil.GCM_NONCE_BYTES];
+        System.arraycopy(blob, offset, nonce, 0, nonce.length);
+        return nonce;
+    }
+
+    private static void writeInt(byte[] blob, int offset, int value) {
+        blob[offset] = (byte) (value >>> 24);
+        blob[offset + 1] = (byte) (value >>> 16);
+        blob[offset + 2] = (byte) (value >>> 8);
+        blob[offset + 3] = (byte) value;
+    }
+
+    private static byte[] aad(byte section, String studentId) {
+        byte[] id = studentId.getBytes(StandardCharsets.UTF_8);
+        byte[] aad = new byte[1 + id.length];
+        aad[0] = section;
+        System.arraycopy(id, 0, aad, 1, id.length);
+        return aad;
+    }
+}
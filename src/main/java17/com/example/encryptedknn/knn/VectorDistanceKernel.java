@@ -0,0 +1,124 @@
+package com.example.encryptedknn.knn;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD kernel on the JDK 17+ Vector API. Only compiled by the vector-api build profile
+// and only instantiated reflectively by DistanceKernels, so Java 8 builds and JVMs
+// never see it. Float rows are widened to double lanes so results keep double precision.
+// Checking the bound only reads the accumulator, so the final sum does not depend on it.
+public class VectorDistanceKernel implements DistanceKernel {
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    // Half the bit width, so it holds the same number of lanes as DOUBLES
+    private static final VectorSpecies<Float> FLOATS =
+            VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+    // Vectors narrower than one register gain nothing from SIMD setup and reduction
+    private final ScalarDistanceKernel scalar = new ScalarDistanceKernel();
+    // Early-abandon checks reduce the accumulator, so only do it every few registers
+    private final int checkInterval = 4 * DOUBLES.length();
+
+    @Override
+    public double squaredDistance(double[] query, double[] values, int offset, int dimension, double bound) {
+        if (dimension < DOUBLES.length()) {
+            return scalar.squaredDistance(query, values, offset, dimension, bound);
+        }
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (int loopBound = DOUBLES.loopBound(dimension); i < loopBound; i += DOUBLES.length()) {
+            if (i > 0 && i % checkInterval == 0) {
+                double partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial > bound) {
+                    return partial;
+                }
+            }
+            DoubleVector diff = DoubleVector.fromArray(DOUBLES, query, i)
+                    .sub(DoubleVector.fromArray(DOUBLES, values, offset + i));
+            acc = acc.add(diff.mul(diff));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dimension; i++) {
+            double d = query[i] - values[offset + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Override
+    public double squaredDistance(double[] query, float[] values, int offset, int dimension, double bound) {
+        if (dimension < DOUBLES.length()) {
+            return scalar.squaredDistance(query, values, offset, dimension, bound);
+        }
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (int loopBound = DOUBLES.loopBound(dimension); i < loopBound; i += DOUBLES.length()) {
+            if (i > 0 && i % checkInterval == 0) {
+                double partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial > bound) {
+                    return partial;
+                }
+            }
+            DoubleVector row = (DoubleVector) FloatVector.fromArray(FLOATS, values, offset + i)
+                    .convertShape(VectorOperators.F2D, DOUBLES, 0);
+            DoubleVector diff = DoubleVector.fromArray(DOUBLES, query, i).sub(row);
+            acc = acc.add(diff.mul(diff));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dimension; i++) {
+            double d = query[i] - values[offset + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Override
+    public double squaredDistance(double[] values, int offsetA, int offsetB, int dimension) {
+        if (dimension < DOUBLES.length()) {
+            return scalar.squaredDistance(values, offsetA, offsetB, dimension);
+        }
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(dimension); i < bound; i += DOUBLES.length()) {
+            DoubleVector diff = DoubleVector.fromArray(DOUBLES, values, offsetA + i)
+                    .sub(DoubleVector.fromArray(DOUBLES, values, offsetB + i));
+            acc = acc.add(diff.mul(diff));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dimension; i++) {
+            double d = values[offsetA + i] - values[offsetB + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Override
+    public double squaredDistance(float[] values, int offsetA, int offsetB, int dimension) {
+        if (dimension < DOUBLES.length()) {
+            return scalar.squaredDistance(values, offsetA, offsetB, dimension);
+        }
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(dimension); i < bound; i += DOUBLES.length()) {
+            DoubleVector a = (DoubleVector) FloatVector.fromArray(FLOATS, values, offsetA + i)
+                    .convertShape(VectorOperators.F2D, DOUBLES, 0);
+            DoubleVector b = (DoubleVector) FloatVector.fromArray(FLOATS, values, offsetB + i)
+                    .convertShape(VectorOperators.F2D, DOUBLES, 0);
+            DoubleVector diff = a.sub(b);
+            acc = acc.add(diff.mul(diff));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dimension; i++) {
+            double d = (double) values[offsetA + i] - values[offsetB + i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    @Override
+    public String getName() {
+        return "vector-" + DOUBLES.vectorBitSize();
+    }
+}